@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.Arrays;
+
+/**
+ * Analitzador lèxic de les definicions de funcions. Recorre el text un sol cop,
+ * caràcter a caràcter, i el divideix en una llista de components lèxics, guardant
+ * el tipus i la posició al text de cadascun. Els espais no generen cap component.
+ *
+ * Fins al primer signe d'igual (el pròleg de la definició), qualsevol seqüència
+ * de lletres, xifres i guions baixos és un nom. Després, una seqüència que comença
+ * per una xifra és un nombre, tal com l'interpreta el processador d'expressions.
+ *
+ * Quan el text és una modificació d'un altre text ja analitzat, només s'analitza
+ * la part modificada i s'aprofiten els components d'abans i de després.
+ */
+class AnalitzadorLexic {
+    /**
+     * Tipus de component: un nombre, de la forma 12, 1.5, 2e-3, etc.
+     */
+    static final int NOMBRE = 0;
+
+    /**
+     * Tipus de component: un nom (de funció, paràmetre, etc.)
+     */
+    static final int NOM = 1;
+
+    /**
+     * Tipus de component: un dels operadors +, -, *, / o ^.
+     */
+    static final int OPERADOR = 2;
+
+    /**
+     * Tipus de component: un parèntesi o claudàtor d'obrir.
+     */
+    static final int OBRIR = 3;
+
+    /**
+     * Tipus de component: un parèntesi o claudàtor de tancar.
+     */
+    static final int TANCAR = 4;
+
+    /**
+     * Tipus de component: una coma.
+     */
+    static final int COMA = 5;
+
+    /**
+     * Tipus de component: un signe d'igual.
+     */
+    static final int IGUAL = 6;
+
+    /**
+     * Tipus de component: qualsevol altre caràcter.
+     */
+    static final int ALTRE = 7;
+
+    /**
+     * Tipus de component: el final del text. Sempre és l'últim de la llista.
+     */
+    static final int FI = 8;
+
+    /**
+     * Potències de 10 que es poden representar exactament amb un double.
+     */
+    private static final double[] POTENCIES_10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Nombre de caràcters posteriors a un component que poden canviar-ne el tipus o
+     * la llargada (per exemple, ".5" o "e-3" després d'un nombre).
+     */
+    private static final int MARGE = 3;
+
+    /**
+     * El text analitzat.
+     */
+    final String txt;
+
+    /**
+     * Nombre de components, incloent el final del text.
+     */
+    int mida;
+
+    /**
+     * Tipus de cada component.
+     */
+    int[] tipus;
+
+    /**
+     * Posició al text del primer caràcter de cada component.
+     */
+    int[] inicis;
+
+    /**
+     * Posició al text del caràcter següent a l'últim de cada component.
+     */
+    int[] fins;
+
+    /**
+     * Índex del primer signe d'igual, on acaba el pròleg, o Integer.MAX_VALUE si no n'hi ha.
+     */
+    int primerIgual = Integer.MAX_VALUE;
+
+    /**
+     * Índex del primer component que pot ser diferent dels de l'anàlisi anterior.
+     * Els components anteriors són iguals, amb el mateix índex.
+     */
+    int primerCanvi = 0;
+
+    /**
+     * Índex, a l'anàlisi anterior, del primer component que torna a ser igual
+     * després de la modificació. Tots els següents també ho són.
+     */
+    int fiCanviAnterior = 0;
+
+    /**
+     * Diferència entre l'índex dels components posteriors a la modificació i el
+     * que tenien a l'anàlisi anterior.
+     */
+    int desplacament = 0;
+
+    /**
+     * Analitzar un text.
+     * @param txt El text a analitzar.
+     */
+    AnalitzadorLexic(String txt) {
+        this.txt = txt;
+        int capacitat = txt.length() / 2 + 2;
+        tipus = new int[capacitat];
+        inicis = new int[capacitat];
+        fins = new int[capacitat];
+        analitzar(0, null, 0, 0);
+    }
+
+    /**
+     * Analitzar un text que és una modificació del text d'una altra anàlisi.
+     * Només s'analitza el tros entre el principi i el final comuns dels dos textos.
+     * @param anterior L'anàlisi del text anterior.
+     * @param txt El text a analitzar.
+     */
+    AnalitzadorLexic(AnalitzadorLexic anterior, String txt) {
+        this.txt = txt;
+        String vell = anterior.txt;
+        int n = txt.length(), nv = vell.length();
+
+        // Trobar el principi i el final comuns
+        int maxim = Math.min(n, nv);
+        int principi = 0;
+        while (principi < maxim && txt.charAt(principi) == vell.charAt(principi))
+            principi++;
+
+        int final_ = 0;
+        while (final_ < maxim - principi && txt.charAt(n - 1 - final_) == vell.charAt(nv - 1 - final_))
+            final_++;
+
+        // Aprofitar els components que acaben prou abans del primer caràcter modificat
+        int a = 0;
+        while (a < anterior.mida - 1 && anterior.fins[a] + MARGE <= principi)
+            a++;
+
+        int capacitat = Math.max(anterior.tipus.length, n / 2 + 2);
+        tipus = Arrays.copyOf(anterior.tipus, capacitat);
+        inicis = Arrays.copyOf(anterior.inicis, capacitat);
+        fins = Arrays.copyOf(anterior.fins, capacitat);
+        mida = a;
+        if (anterior.primerIgual < a)
+            primerIgual = anterior.primerIgual;
+        primerCanvi = a;
+
+        analitzar(a > 0 ? fins[a - 1] : 0, anterior, n - final_, n - nv);
+    }
+
+    /**
+     * Dividir el text en components, a partir d'una posició.
+     * Si hi ha una anàlisi anterior, s'atura quan a partir de la posició límit es
+     * troba un component que comença al mateix lloc (desplaçat) que un dels
+     * anteriors, i copia la resta de components de l'anàlisi anterior.
+     * @param pos La posició on es comença a analitzar.
+     * @param anterior L'anàlisi anterior, o null.
+     * @param limit Posició a partir de la qual el text és igual que l'anterior.
+     * @param delta Diferència de llargada entre el text i l'anterior.
+     */
+    private void analitzar(int pos, AnalitzadorLexic anterior, int limit, int delta) {
+        int n = txt.length();
+        int k = primerCanvi;
+
+        while (true) {
+            // Saltar els espais
+            while (pos < n && Character.isWhitespace(txt.charAt(pos)))
+                pos++;
+
+            if (anterior != null && pos >= limit) {
+                while (k < anterior.mida && anterior.inicis[k] < pos - delta)
+                    k++;
+                if (k < anterior.mida && anterior.inicis[k] == pos - delta
+                        && (primerIgual >= mida) == (anterior.primerIgual >= k)) {
+                    copiar(anterior, k, delta);
+                    return;
+                }
+            }
+
+            if (pos >= n) {
+                afegir(FI, n, n);
+                fiCanviAnterior = anterior != null ? anterior.mida : 0;
+                desplacament = anterior != null ? mida - anterior.mida : 0;
+                return;
+            }
+
+            char c = txt.charAt(pos);
+            int inici = pos;
+            int t;
+
+            if (esXifra(c) && primerIgual < mida) {
+                pos = finalNombre(pos);
+                t = NOMBRE;
+            } else if (esCaracterNom(c)) {
+                pos++;
+                while (pos < n && esCaracterNom(txt.charAt(pos)))
+                    pos++;
+                t = NOM;
+            } else {
+                pos++;
+                switch (c) {
+                    case '+': case '-': case '*': case '/': case '^':
+                        t = OPERADOR;
+                        break;
+                    case '(': case '[':
+                        t = OBRIR;
+                        break;
+                    case ')': case ']':
+                        t = TANCAR;
+                        break;
+                    case ',':
+                        t = COMA;
+                        break;
+                    case '=':
+                        t = IGUAL;
+                        if (primerIgual == Integer.MAX_VALUE)
+                            primerIgual = mida;
+                        break;
+                    default:
+                        t = ALTRE;
+                }
+            }
+
+            afegir(t, inici, pos);
+        }
+    }
+
+    /**
+     * Trobar el final d'un nombre de la forma \d+(\.\d+)?([eE][+-]?\d+)?
+     * @param pos La posició de la primera xifra.
+     * @return La posició següent a l'últim caràcter del nombre.
+     */
+    private int finalNombre(int pos) {
+        int n = txt.length();
+        while (pos < n && esXifra(txt.charAt(pos)))
+            pos++;
+
+        // Part decimal, només si hi ha alguna xifra després del punt
+        if (pos + 1 < n && txt.charAt(pos) == '.' && esXifra(txt.charAt(pos + 1))) {
+            pos += 2;
+            while (pos < n && esXifra(txt.charAt(pos)))
+                pos++;
+        }
+
+        // Exponent, només si hi ha alguna xifra després de la e i el signe
+        if (pos < n && (txt.charAt(pos) == 'e' || txt.charAt(pos) == 'E')) {
+            int p = pos + 1;
+            if (p < n && (txt.charAt(p) == '+' || txt.charAt(p) == '-'))
+                p++;
+            if (p < n && esXifra(txt.charAt(p))) {
+                pos = p + 1;
+                while (pos < n && esXifra(txt.charAt(pos)))
+                    pos++;
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * Copiar els components de l'anàlisi anterior a partir d'un índex.
+     * @param anterior L'anàlisi anterior.
+     * @param k L'índex del primer component a copiar.
+     * @param delta Diferència de posició dels components al text.
+     */
+    private void copiar(AnalitzadorLexic anterior, int k, int delta) {
+        int quants = anterior.mida - k;
+        fiCanviAnterior = k;
+        desplacament = mida - k;
+
+        if (mida + quants > tipus.length) {
+            int novaMida = Math.max(mida + quants, tipus.length * 2);
+            tipus = Arrays.copyOf(tipus, novaMida);
+            inicis = Arrays.copyOf(inicis, novaMida);
+            fins = Arrays.copyOf(fins, novaMida);
+        }
+
+        System.arraycopy(anterior.tipus, k, tipus, mida, quants);
+        for (int i = 0; i < quants; i++) {
+            inicis[mida + i] = anterior.inicis[k + i] + delta;
+            fins[mida + i] = anterior.fins[k + i] + delta;
+        }
+
+        if (primerIgual == Integer.MAX_VALUE && anterior.primerIgual != Integer.MAX_VALUE)
+            primerIgual = anterior.primerIgual + desplacament;
+        mida += quants;
+    }
+
+    /**
+     * Afegir un component a la llista.
+     */
+    private void afegir(int t, int inici, int fi) {
+        if (mida == tipus.length) {
+            int novaMida = mida * 2;
+            tipus = Arrays.copyOf(tipus, novaMida);
+            inicis = Arrays.copyOf(inicis, novaMida);
+            fins = Arrays.copyOf(fins, novaMida);
+        }
+
+        tipus[mida] = t;
+        inicis[mida] = inici;
+        fins[mida] = fi;
+        mida++;
+    }
+
+    /**
+     * Obtè el text d'un component.
+     * @param i L'índex del component.
+     * @return El text.
+     */
+    String text(int i) {
+        return txt.substring(inicis[i], fins[i]);
+    }
+
+    /**
+     * Obtè el primer caràcter d'un component.
+     * @param i L'índex del component.
+     * @return El caràcter.
+     */
+    char caracter(int i) {
+        return txt.charAt(inicis[i]);
+    }
+
+    /**
+     * Obtè el valor d'un component de tipus nombre.
+     * Si el nombre té com a molt 15 xifres significatives i l'exponent resultant és
+     * petit, es calcula amb una sola multiplicació o divisió per una potència de 10
+     * exacta, que dóna el mateix resultat que Double.parseDouble.
+     * @param i L'índex del component.
+     * @return El valor.
+     */
+    double valor(int i) {
+        int p = inicis[i], fi = fins[i];
+        long mantissa = 0;
+        int xifres = 0, exponent = 0;
+
+        for (; p < fi && esXifra(txt.charAt(p)); p++) {
+            mantissa = mantissa * 10 + (txt.charAt(p) - '0');
+            if (mantissa != 0)
+                xifres++;
+        }
+
+        if (p < fi && txt.charAt(p) == '.') {
+            for (p++; p < fi && esXifra(txt.charAt(p)); p++) {
+                mantissa = mantissa * 10 + (txt.charAt(p) - '0');
+                if (mantissa != 0)
+                    xifres++;
+                exponent--;
+            }
+        }
+
+        if (p < fi) {
+            // Exponent
+            p++;
+            boolean negatiu = txt.charAt(p) == '-';
+            if (txt.charAt(p) == '+' || negatiu)
+                p++;
+
+            int e = 0;
+            for (; p < fi && e < 1000; p++)
+                e = e * 10 + (txt.charAt(p) - '0');
+            exponent += negatiu ? -e : e;
+        }
+
+        if (xifres > 15 || p < fi || exponent < -22 || exponent > 22)
+            return Double.parseDouble(text(i));
+
+        return exponent < 0 ? mantissa / POTENCIES_10[-exponent] : mantissa * POTENCIES_10[exponent];
+    }
+
+    private static boolean esXifra(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean esCaracterNom(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+}
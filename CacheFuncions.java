@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memòria cau de funcions ja processades, indexada pel text de la definició.
+ * Guarda la FuncioUsuari sencera, de manera que també s'aprofiten el cos
+ * optimitzat i el codi compilat. Quan s'omple, s'esborra la funció que fa més
+ * temps que no s'ha utilitzat.
+ *
+ * Cada funció només és vàlida mentre no es redefineixi ni s'esborri cap de les
+ * funcions que crida, directament o a través d'altres funcions d'usuari; els
+ * canvis a la resta de la llista no l'afecten.
+ */
+public class CacheFuncions {
+    /**
+     * Funció guardada.
+     */
+    private static class Entrada {
+        final FuncioUsuari funcio;
+
+        /**
+         * Versió de la llista de funcions quan s'ha guardat.
+         */
+        final int versio;
+
+        Entrada(FuncioUsuari funcio, int versio) {
+            this.funcio = funcio;
+            this.versio = versio;
+        }
+    }
+
+    private final Map<String, Entrada> entrades;
+
+    private int encerts = 0;
+    private int fallades = 0;
+    private int invalidades = 0;
+
+    /**
+     * Crear una memòria cau.
+     * @param mida El nombre màxim de funcions guardades.
+     */
+    public CacheFuncions(final int mida) {
+        entrades = new LinkedHashMap<String, Entrada>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Entrada> eldest) {
+                return size() > mida;
+            }
+        };
+    }
+
+    /**
+     * Normalitzar el text d'una definició, de manera que els textos que només es
+     * diferencien pels espais tinguin la mateixa clau. La clau són els components
+     * lèxics separats per un espai: dos textos amb els mateixos components donen
+     * la mateixa funció.
+     * @param txt El text.
+     * @return El text normalitzat.
+     */
+    public static String normalitzar(String txt) {
+        AnalitzadorLexic lex = new AnalitzadorLexic(txt);
+        StringBuilder sb = new StringBuilder(txt.length());
+        for (int i = 0; i < lex.mida - 1; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(txt, lex.inicis[i], lex.fins[i]);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Obtè una funció guardada, si encara és vàlida.
+     * @param clau El text normalitzat de la definició.
+     * @return La funció, o null si no hi és o ja no és vàlida.
+     */
+    public synchronized FuncioUsuari obtenir(String clau) {
+        Entrada e = entrades.get(clau);
+        if (e == null) {
+            fallades++;
+            return null;
+        }
+
+        if (e.funcio.ultimCanviDependencies() > e.versio) {
+            entrades.remove(clau);
+            invalidades++;
+            fallades++;
+            return null;
+        }
+
+        encerts++;
+        return e.funcio;
+    }
+
+    /**
+     * Guardar una funció.
+     * @param clau El text normalitzat de la definició.
+     * @param f La funció.
+     */
+    public synchronized void guardar(String clau, FuncioUsuari f) {
+        entrades.put(clau, new Entrada(f, Funcio.versio()));
+    }
+
+    /**
+     * Esborrar totes les funcions guardades.
+     */
+    public synchronized void buidar() {
+        entrades.clear();
+    }
+
+    /**
+     * Obtè el nombre de funcions guardades.
+     */
+    public synchronized int mida() {
+        return entrades.size();
+    }
+
+    /**
+     * Obtè el nombre de vegades que s'ha trobat una funció vàlida.
+     */
+    public synchronized int encerts() {
+        return encerts;
+    }
+
+    /**
+     * Obtè el nombre de vegades que no s'ha trobat cap funció vàlida.
+     */
+    public synchronized int fallades() {
+        return fallades;
+    }
+
+    /**
+     * Obtè el nombre de funcions descartades perquè havia canviat alguna de les
+     * funcions de les que depenien.
+     */
+    public synchronized int invalidades() {
+        return invalidades;
+    }
+
+    @Override public synchronized String toString() {
+        return "Memòria cau: " + entrades.size() + " funcions, " + encerts + " encerts, "
+                + fallades + " fallades, " + invalidades + " invalidades";
+    }
+}
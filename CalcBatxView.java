@@ -24,12 +24,14 @@ import org.jdesktop.application.FrameView;
 import javax.swing.DefaultListModel;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 import java.awt.Color;
 import java.awt.Point;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.KeyEvent;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * The application's main frame.
@@ -40,6 +42,30 @@ public class CalcBatxView extends FrameView {
         super(app);
 
         initComponents();
+
+        Funcio.afegirEscoltador(new EscoltadorFuncions() {
+            public void funcioCanviada(final CanviFuncio canvi) {
+                if (SwingUtilities.isEventDispatchThread())
+                    aplicarCanviFuncio(canvi);
+                else {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            aplicarCanviFuncio(canvi);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Actualitzar la finestra després de canviar una funció de la llista. Només es
+     * torna a calcular el resultat si la funció introduïda la crida.
+     */
+    private void aplicarCanviFuncio(CanviFuncio canvi) {
+        actualitzarLlistaFuncions();
+        if (funcioResultat != null && canvi.afecta(funcioResultat.dependencies()))
+            processarEntrada();
     }
     
     @Action
@@ -119,13 +145,14 @@ public class CalcBatxView extends FrameView {
         jPanel1 = new javax.swing.JPanel();
         labelExtrem1 = new javax.swing.JLabel();
         labelExtrem2 = new javax.swing.JLabel();
-        labelNombreDivisions = new javax.swing.JLabel();
+        labelTolerancia = new javax.swing.JLabel();
         textExtrem1 = new javax.swing.JTextField();
         textExtrem2 = new javax.swing.JTextField();
-        textNombreParts = new javax.swing.JTextField();
+        textTolerancia = new javax.swing.JTextField();
         botoIntegrar = new javax.swing.JButton();
         labelIntegral = new javax.swing.JLabel();
         textIntegral = new javax.swing.JTextField();
+        labelErrorIntegral = new javax.swing.JLabel();
         panelFuncions = new javax.swing.JPanel();
         jScrollPane1 = new javax.swing.JScrollPane();
         llistaFuncionsUsuari = new javax.swing.JList();
@@ -579,8 +606,8 @@ public class CalcBatxView extends FrameView {
         labelExtrem2.setText(resourceMap.getString("labelExtrem2.text")); // NOI18N
         labelExtrem2.setName("labelExtrem2"); // NOI18N
 
-        labelNombreDivisions.setText(resourceMap.getString("labelNombreDivisions.text")); // NOI18N
-        labelNombreDivisions.setName("labelNombreDivisions"); // NOI18N
+        labelTolerancia.setText(resourceMap.getString("labelTolerancia.text")); // NOI18N
+        labelTolerancia.setName("labelTolerancia"); // NOI18N
 
         textExtrem1.setText(resourceMap.getString("textExtrem1.text")); // NOI18N
         textExtrem1.setName("textExtrem1"); // NOI18N
@@ -588,8 +615,8 @@ public class CalcBatxView extends FrameView {
         textExtrem2.setText(resourceMap.getString("textExtrem2.text")); // NOI18N
         textExtrem2.setName("textExtrem2"); // NOI18N
 
-        textNombreParts.setText(resourceMap.getString("textNombreParts.text")); // NOI18N
-        textNombreParts.setName("textNombreParts"); // NOI18N
+        textTolerancia.setText(resourceMap.getString("textTolerancia.text")); // NOI18N
+        textTolerancia.setName("textTolerancia"); // NOI18N
 
         botoIntegrar.setText(resourceMap.getString("botoIntegrar.text")); // NOI18N
         botoIntegrar.setName("botoIntegrar"); // NOI18N
@@ -606,6 +633,9 @@ public class CalcBatxView extends FrameView {
         textIntegral.setText(resourceMap.getString("textIntegral.text")); // NOI18N
         textIntegral.setName("textIntegral"); // NOI18N
 
+        labelErrorIntegral.setText(resourceMap.getString("labelErrorIntegral.text")); // NOI18N
+        labelErrorIntegral.setName("labelErrorIntegral"); // NOI18N
+
         javax.swing.GroupLayout jPanel1Layout = new javax.swing.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(
@@ -617,12 +647,13 @@ public class CalcBatxView extends FrameView {
                         .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.TRAILING)
                             .addComponent(labelExtrem2)
                             .addComponent(labelExtrem1)
-                            .addComponent(labelNombreDivisions)
+                            .addComponent(labelTolerancia)
                             .addComponent(labelIntegral))
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                         .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                             .addComponent(textIntegral, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.DEFAULT_SIZE, 450, Short.MAX_VALUE)
-                            .addComponent(textNombreParts, javax.swing.GroupLayout.DEFAULT_SIZE, 450, Short.MAX_VALUE)
+                            .addComponent(labelErrorIntegral)
+                            .addComponent(textTolerancia, javax.swing.GroupLayout.DEFAULT_SIZE, 450, Short.MAX_VALUE)
                             .addComponent(textExtrem2, javax.swing.GroupLayout.DEFAULT_SIZE, 450, Short.MAX_VALUE)
                             .addComponent(textExtrem1, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.DEFAULT_SIZE, 450, Short.MAX_VALUE)))
                     .addGroup(jPanel1Layout.createSequentialGroup()
@@ -643,15 +674,17 @@ public class CalcBatxView extends FrameView {
                     .addComponent(textExtrem2, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
-                    .addComponent(textNombreParts, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
-                    .addComponent(labelNombreDivisions))
+                    .addComponent(textTolerancia, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(labelTolerancia))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                 .addGroup(jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(textIntegral, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(labelIntegral))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(labelErrorIntegral)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                 .addComponent(botoIntegrar)
-                .addContainerGap(209, Short.MAX_VALUE))
+                .addContainerGap(189, Short.MAX_VALUE))
         );
 
         panelPestanyes.addTab(resourceMap.getString("jPanel1.TabConstraints.tabTitle"), jPanel1); // NOI18N
@@ -893,41 +926,126 @@ public class CalcBatxView extends FrameView {
         labelEstat.setForeground(Color.RED);
     }
 
+    /**
+     * Text de l'estat mentre es mostra l'avanç d'una tasca, o null.
+     */
+    private String textEstatProgres = null;
+
+    private void mostrarEstatProgres(String tasca, int percentatge) {
+        labelEstat.setText(tasca + "... " + percentatge + "%");
+        labelEstat.setForeground(Color.BLACK);
+        textEstatProgres = labelEstat.getText();
+    }
+
+    /**
+     * Treure l'avanç d'una tasca de l'estat, si no s'hi ha mostrat res més.
+     */
+    private void acabarEstatProgres() {
+        if (labelEstat.getText().equals(textEstatProgres))
+            mostrarEstatCorrecte();
+        textEstatProgres = null;
+    }
+
     FuncioUsuari funcioResultat = null;
     Complex valorX = Complex.NaN;
     Complex resultat = Complex.NaN;
 
-    private void processarEntrada() {
-        funcioResultat = null;
-        mostrarEstatCorrecte();
+    /**
+     * Processadors de l'entrada i del valor d'x, que només tornen a processar la
+     * part del text que ha canviat.
+     */
+    private ProcessadorExpressio processadorEntrada = new ProcessadorExpressio("");
+    private ProcessadorExpressio processadorValorX = new ProcessadorExpressio("");
 
-        try {
-            funcioResultat = new ProcessadorExpressio("f(x)=" + textEntrada.getText()).processar();
-        } catch (Exception exception) {
-            mostrarEstatError(exception.getMessage());
-        }
+    /**
+     * Cos de la funció que mostra el gràfic i versió de la llista de funcions amb
+     * la que s'ha dibuixat, per no tornar-lo a dibuixar si no canvia.
+     */
+    private Expressio cosGrafic = null;
+    private int versioGrafic = -1;
 
-        try {
-            valorX = new ProcessadorExpressio("x=" + textValorX.getText()).processar().calcular(null);
-        } catch (Exception exception) {
-            mostrarEstatError("No es pot calcular el valor d'x (" + exception.getMessage() + ")");
-        }
+    /**
+     * Les tasques que s'executen en segon pla: processar l'entrada, integrar i
+     * processar el polinomi.
+     */
+    private final PlanificadorTasques tasques = new PlanificadorTasques();
 
-        calcularResultat();
+    /**
+     * Mil·lisegons que s'espera després de cada canvi abans de processar l'entrada.
+     */
+    private static final int RETARD_ENTRADA = 100;
+
+    /**
+     * Resultat de processar l'entrada i el valor d'x.
+     */
+    private static class ResultatEntrada {
+        FuncioUsuari funcio = null;
+        Complex valorX;
+        Complex resultat = Complex.NaN;
+        String error = null;
     }
 
-    private void calcularResultat() {
-        resultat = Complex.NaN;
-        if (funcioResultat != null) {
-            try {
-                resultat = funcioResultat.calcular(new Complex[] { valorX });
-            } catch (Exception exception) {
-                mostrarEstatError(exception.getMessage());
+    private void processarEntrada() {
+        final String entrada = "f(x)=" + textEntrada.getText();
+        final String textX = "x=" + textValorX.getText();
+        final Complex valorAnterior = valorX;
+
+        tasques.programar("entrada", RETARD_ENTRADA, new Tasca<ResultatEntrada, FuncioUsuari>() {
+            protected ResultatEntrada calcular() {
+                ResultatEntrada r = new ResultatEntrada();
+                try {
+                    r.funcio = processadorEntrada.processar(entrada);
+                    publicar(r.funcio);
+                } catch (Exception exception) {
+                    r.error = exception.getMessage();
+                }
+
+                r.valorX = valorAnterior;
+                try {
+                    r.valorX = processadorValorX.processar(textX).calcular(null);
+                } catch (Exception exception) {
+                    r.error = "No es pot calcular el valor d'x (" + exception.getMessage() + ")";
+                }
+
+                if (r.funcio != null) {
+                    try {
+                        r.resultat = r.funcio.calcular(new Complex[] { r.valorX });
+                    } catch (Exception exception) {
+                        r.error = exception.getMessage();
+                    }
+                }
+                return r;
             }
-        }
 
-        panelGrafic.setFuncio(funcioResultat);
-        textResultat.setText(resultat.toString());
+            @Override protected void parcials(List<FuncioUsuari> funcions) {
+                // Dibuixar ja la funció, abans de calcular el resultat
+                funcioResultat = funcions.get(funcions.size() - 1);
+                actualitzarGrafic();
+            }
+
+            protected void acabar(ResultatEntrada r) {
+                funcioResultat = r.funcio;
+                valorX = r.valorX;
+                resultat = r.resultat;
+
+                if (r.error == null)
+                    mostrarEstatCorrecte();
+                else
+                    mostrarEstatError(r.error);
+
+                actualitzarGrafic();
+                textResultat.setText(resultat.toString());
+            }
+        });
+    }
+
+    private void actualitzarGrafic() {
+        Expressio cos = funcioResultat != null ? funcioResultat.cos : null;
+        if (cos == null || cos != cosGrafic || funcioResultat.ultimCanviDependencies() > versioGrafic) {
+            panelGrafic.setFuncio(funcioResultat);
+            cosGrafic = cos;
+            versioGrafic = Funcio.versio();
+        }
     }
 
     private void textFuncioUsuariActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_textFuncioUsuariActionPerformed
@@ -946,7 +1064,7 @@ public class CalcBatxView extends FrameView {
     private void actualitzarLlistaFuncions() {
         DefaultListModel model = (DefaultListModel)llistaFuncionsUsuari.getModel();
         model.clear();
-        for (Funcio f : Funcio.llista.values())
+        for (Funcio f : Funcio.llista().funcions().values())
             model.addElement(f);
     }
 
@@ -957,15 +1075,11 @@ public class CalcBatxView extends FrameView {
         } catch (ProcessadorExpressioException exception) {
             mostrarEstatError(exception.getMessage());
         }
-
-        actualitzarLlistaFuncions();
     }//GEN-LAST:event_botoAfegirFuncioUsuariActionPerformed
 
     private void botoEsborrarFuncioUsuariActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_botoEsborrarFuncioUsuariActionPerformed
         for (Object f : llistaFuncionsUsuari.getSelectedValues())
-            Funcio.llista.remove(((Funcio)f).nom);
-
-        actualitzarLlistaFuncions();
+            Funcio.esborrar(((Funcio)f).nom);
     }//GEN-LAST:event_botoEsborrarFuncioUsuariActionPerformed
 
     private void afegirText(String s) {
@@ -991,6 +1105,7 @@ public class CalcBatxView extends FrameView {
 
     private void botoIntegrarActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_botoIntegrarActionPerformed
         textIntegral.setText(Complex.NaN.toString());
+        labelErrorIntegral.setText("");
 
         if (funcioResultat == null) {
             mostrarEstatError("No hi ha funció.");
@@ -998,10 +1113,28 @@ public class CalcBatxView extends FrameView {
         }
 
         try {
-            double extrem1 = Double.parseDouble(textExtrem1.getText());
-            double extrem2 = Double.parseDouble(textExtrem2.getText());
-            int parts = Integer.parseInt(textNombreParts.getText());
-            textIntegral.setText(Integral.calcular(funcioResultat, extrem1, extrem2, parts).toString());
+            final double extrem1 = Double.parseDouble(textExtrem1.getText());
+            final double extrem2 = Double.parseDouble(textExtrem2.getText());
+            final double tolerancia = Double.parseDouble(textTolerancia.getText());
+            final FuncioUsuari f = funcioResultat;
+
+            tasques.programar("integral", 0, new Tasca<IntegralAdaptativa, Void>() {
+                protected IntegralAdaptativa calcular() throws InterruptedException {
+                    return IntegralAdaptativa.calcular(f, extrem1, extrem2, tolerancia, this);
+                }
+
+                @Override protected void progres(int percentatge) {
+                    mostrarEstatProgres("Calculant la integral", percentatge);
+                }
+
+                protected void acabar(IntegralAdaptativa integral) {
+                    textIntegral.setText(integral.valor.toString());
+                    labelErrorIntegral.setText(String.format("Error estimat: %.2g, amb %d avaluacions%s",
+                            integral.error, integral.avaluacions,
+                            integral.convergit ? "" : " (no s'ha arribat a la tolerància)"));
+                    acabarEstatProgres();
+                }
+            });
         } catch (NumberFormatException exception) {
             mostrarEstatError("Les dades introduides per calcular la integral no són vàlides.");
         }
@@ -1026,16 +1159,31 @@ public class CalcBatxView extends FrameView {
             return;
         }
 
-        try {
-            Polinomi p = new ProcessadorPolinomi(funcioResultat).processar();
+        final FuncioUsuari f = funcioResultat;
+        tasques.programar("polinomi", 0, new Tasca<Complex[], Polinomi>() {
+            protected Complex[] calcular() throws ExpressioException {
+                Polinomi p = new ProcessadorPolinomi(f).processar();
+                publicar(p);
 
-            textCoeficients.setText(Arrays.toString(p.getCoeficients()));
-            textArrels.setText(Arrays.toString(p.trobarArrels()));
-            textDerivada.setText(p.derivada().toString());
-            textPrimitiva.setText(p.primitiva().toString());
-        } catch (ExpressioException exception) {
-            mostrarEstatError(exception.getMessage());
-        }
+                // Buscar les arrels és la part lenta
+                return p.trobarArrels();
+            }
+
+            @Override protected void parcials(List<Polinomi> polinomis) {
+                Polinomi p = polinomis.get(polinomis.size() - 1);
+                textCoeficients.setText(Arrays.toString(p.getCoeficients()));
+                textDerivada.setText(p.derivada().toString());
+                textPrimitiva.setText(p.primitiva().toString());
+            }
+
+            protected void acabar(Complex[] arrels) {
+                textArrels.setText(Arrays.toString(arrels));
+            }
+
+            @Override protected void fallar(Exception exception) {
+                mostrarEstatError(exception.getMessage());
+            }
+        });
 }//GEN-LAST:event_botoProcessarPolinomiActionPerformed
 
     private void botoSumarActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_botoSumarActionPerformed
@@ -1193,14 +1341,15 @@ public class CalcBatxView extends FrameView {
     private javax.swing.JLabel labelArrels;
     private javax.swing.JLabel labelCoeficients;
     private javax.swing.JLabel labelDerivada;
+    private javax.swing.JLabel labelErrorIntegral;
     private javax.swing.JLabel labelEstat;
     private javax.swing.JLabel labelExtrem1;
     private javax.swing.JLabel labelExtrem2;
     private javax.swing.JLabel labelFx;
     private javax.swing.JLabel labelFzero;
     private javax.swing.JLabel labelIntegral;
-    private javax.swing.JLabel labelNombreDivisions;
     private javax.swing.JLabel labelPrimitiva;
+    private javax.swing.JLabel labelTolerancia;
     private javax.swing.JLabel labelValorX;
     private javax.swing.JList llistaFuncionsUsuari;
     private javax.swing.JPopupMenu menuGrafic;
@@ -1229,9 +1378,9 @@ public class CalcBatxView extends FrameView {
     private javax.swing.JTextField textExtrem2;
     private javax.swing.JTextField textFuncioUsuari;
     private javax.swing.JTextField textIntegral;
-    private javax.swing.JTextField textNombreParts;
     private javax.swing.JTextField textPrimitiva;
     private javax.swing.JTextField textResultat;
+    private javax.swing.JTextField textTolerancia;
     private javax.swing.JTextField textValorX;
     private org.jdesktop.beansbinding.BindingGroup bindingGroup;
     // End of variables declaration//GEN-END:variables
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.Set;
+
+/**
+ * Canvi a la llista de funcions: s'hi ha afegit, redefinit o esborrat una funció.
+ */
+public class CanviFuncio {
+    /**
+     * S'ha afegit una funció amb un nom que no existia.
+     */
+    public static final int AFEGIDA = 0;
+
+    /**
+     * S'ha substituït una funció per una altra amb el mateix nom.
+     */
+    public static final int REDEFINIDA = 1;
+
+    /**
+     * S'ha esborrat una funció.
+     */
+    public static final int ESBORRADA = 2;
+
+    /**
+     * El tipus de canvi.
+     */
+    public final int tipus;
+
+    /**
+     * El nom de la funció que ha canviat.
+     */
+    public final String nom;
+
+    /**
+     * Els noms de les funcions de la llista que criden la funció que ha canviat,
+     * directament o a través d'altres funcions.
+     */
+    public final Set<String> afectades;
+
+    /**
+     * La versió de la llista després del canvi.
+     */
+    public final int versio;
+
+    public CanviFuncio(int tipus, String nom, Set<String> afectades, int versio) {
+        this.tipus = tipus;
+        this.nom = nom;
+        this.afectades = afectades;
+        this.versio = versio;
+    }
+
+    /**
+     * Indica si el canvi afecta a una funció que crida les funcions indicades.
+     * @param noms Els noms de les funcions que crida.
+     * @return true si crida la funció que ha canviat o alguna de les afectades.
+     */
+    public boolean afecta(Set<String> noms) {
+        if (noms.contains(nom))
+            return true;
+        for (String n : afectades)
+            if (noms.contains(n))
+                return true;
+        return false;
+    }
+}
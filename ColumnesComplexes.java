@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.util.Arrays;
+
+/**
+ * Conjunt de registres on cada registre és una columna de nombres complexos,
+ * per evaluar una expressió sobre molts punts a la vegada.
+ * El valor del punt j al registre i està format per re[i][j] i im[i][j].
+ */
+public class ColumnesComplexes {
+    /**
+     * Nombre de punts per defecte de cada columna.
+     */
+    public static final int MIDA_LOT = 256;
+
+    /**
+     * Parts reals de les columnes.
+     */
+    public double[][] re;
+
+    /**
+     * Parts imaginàries de les columnes.
+     */
+    public double[][] im;
+
+    /**
+     * Nombre màxim de punts de cada columna.
+     */
+    public final int mida;
+
+    /**
+     * Registres per calcular punt per punt les funcions que no treballen per columnes.
+     */
+    public final RegistresComplexos registres = new RegistresComplexos(4);
+
+    /**
+     * Crear un conjunt de columnes amb la mida per defecte.
+     * @param columnes El nombre inicial de columnes.
+     */
+    public ColumnesComplexes(int columnes) {
+        this(columnes, MIDA_LOT);
+    }
+
+    /**
+     * Crear un conjunt de columnes.
+     * @param columnes El nombre inicial de columnes.
+     * @param mida El nombre màxim de punts de cada columna.
+     */
+    public ColumnesComplexes(int columnes, int mida) {
+        this.mida = mida;
+        re = new double[0][];
+        im = new double[0][];
+        assegurar(columnes);
+    }
+
+    /**
+     * Assegura que hi hagi com a mínim el nombre de columnes indicat, conservant-ne
+     * el contingut. Com que pot canviar els vectors re i im, no se'n poden guardar
+     * referències mentre s'evalua una expressió (però sí de les columnes).
+     * @param columnes El nombre de columnes necessàries.
+     */
+    public void assegurar(int columnes) {
+        if (columnes > re.length) {
+            int anterior = re.length;
+            int nou = Math.max(columnes, anterior * 2);
+            re = Arrays.copyOf(re, nou);
+            im = Arrays.copyOf(im, nou);
+            for (int i = anterior; i < nou; i++) {
+                re[i] = new double[mida];
+                im[i] = new double[mida];
+            }
+        }
+    }
+
+    /**
+     * Intercanvia el contingut de dues columnes, sense copiar-les.
+     * @param a La primera columna.
+     * @param b La segona columna.
+     */
+    public void intercanviar(int a, int b) {
+        double[] t = re[a];
+        re[a] = re[b];
+        re[b] = t;
+
+        t = im[a];
+        im[a] = im[b];
+        im[b] = t;
+    }
+
+    /**
+     * Omple els primers punts d'una columna amb un valor.
+     * @param i La columna.
+     * @param n El nombre de punts.
+     * @param c El valor.
+     */
+    public void omplir(int i, int n, Complex c) {
+        Arrays.fill(re[i], 0, n, c.re());
+        Arrays.fill(im[i], 0, n, c.im());
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import calcbatx.funcions.*;
+
+/**
+ * Compila el cos d'una funció d'usuari a una classe de la màquina virtual de Java.
+ * Les funcions bàsiques (sumar, multiplicar, elevar, sin...) s'incrusten com a
+ * operacions sobre la part real i imaginària, i la resta de funcions es criden
+ * directament, sense buscar-les per nom. El resultat és idèntic al de l'evaluació
+ * de l'arbre de l'expressió, que continua sent el mètode per defecte quan no es
+ * pot compilar (per exemple, si no hi ha un compilador de Java disponible).
+ */
+public class CompiladorFuncio {
+    /**
+     * Paquet on es generen les classes compilades.
+     */
+    private static final String PAQUET = "calcbatx.generat";
+
+    /**
+     * Nombre màxim de funcions d'usuari incrustades una dins l'altra, per no
+     * entrar en un bucle amb les funcions recursives.
+     */
+    private static final int MAX_PROFUNDITAT = 8;
+
+    /**
+     * Mida màxima del codi generat a partir de la qual ja no s'incrusten més
+     * funcions d'usuari.
+     */
+    private static final int MAX_CODI = 100000;
+
+    /**
+     * Comptador per donar un nom únic a cada classe generada.
+     */
+    private static int numClasses = 0;
+
+    /**
+     * Fil on es compilen les funcions, per no aturar qui les evalua.
+     */
+    private static final ExecutorService fil = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CompiladorFuncio");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Codi font de la classe que s'està generant.
+     */
+    private StringBuilder codi = new StringBuilder();
+
+    /**
+     * Funcions que es criden des del codi generat.
+     */
+    private List<Funcio> funcions = new ArrayList<Funcio>();
+
+    /**
+     * Nombre de paràmetres de la funció que s'està compilant.
+     */
+    private int numParams;
+
+    /**
+     * Nombre de variables (parells real/imaginari) declarades fins ara.
+     */
+    private int numVariables = 0;
+
+    /**
+     * Mètode que s'està generant: CALCULAR, REGISTRES o LOT.
+     */
+    private int mode = CALCULAR;
+
+    /**
+     * Posició del codi on comença el mètode que s'està generant.
+     */
+    private int iniciMetode = 0;
+
+    /**
+     * Indica si el mètode que s'està generant crida alguna funció d'usuari sense
+     * incrustar-la.
+     */
+    private boolean cridaFuncioUsuari = false;
+
+    private static final int CALCULAR = 0;
+    private static final int REGISTRES = 1;
+    private static final int LOT = 2;
+
+    /**
+     * Variables on ja s'ha calculat cada node, per a cada conjunt de paràmetres
+     * (null pels de la funció compilada). Com que les expressions estan internades,
+     * les subexpressions repetides només es calculen un cop.
+     */
+    private Map<int[], Map<Expressio, Integer>> calculades = new IdentityHashMap<int[], Map<Expressio, Integer>>();
+
+    private CompiladorFuncio() {
+    }
+
+    /**
+     * Comprova si es poden compilar funcions (és a dir, si hi ha un compilador de Java).
+     * @return true si es poden compilar funcions.
+     */
+    public static boolean disponible() {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /**
+     * Compila una funció d'usuari.
+     * @param f La funció a compilar.
+     * @return La funció compilada, o null si no s'ha pogut compilar.
+     */
+    public static FuncioCompilada compilar(FuncioUsuari f) {
+        try {
+            String nomClasse;
+            synchronized (CompiladorFuncio.class) {
+                nomClasse = "Funcio" + (numClasses++);
+            }
+
+            CompiladorFuncio c = new CompiladorFuncio();
+            String font = c.generarClasse(nomClasse, f);
+            Class<?> classe = compilarFont(PAQUET + "." + nomClasse, font);
+            if (classe == null)
+                return null;
+
+            return (FuncioCompilada)classe
+                    .getConstructor(Funcio[].class)
+                    .newInstance((Object)c.funcions.toArray(new Funcio[c.funcions.size()]));
+        } catch (Exception exception) {
+            return null;
+        } catch (LinkageError error) {
+            return null;
+        }
+    }
+
+    /**
+     * Compila una funció d'usuari en un altre fil, amb la llista de funcions que
+     * fa servir el fil que la demana. Quan s'acaba de compilar, la funció passa a
+     * utilitzar el codi compilat.
+     * @param f La funció a compilar.
+     */
+    static void compilarEnSegonPla(final FuncioUsuari f) {
+        if (!disponible())
+            return;
+
+        final LlistaFuncions llista = Funcio.llista();
+        fil.execute(new Runnable() {
+            public void run() {
+                LlistaFuncions anterior = Funcio.usarLlista(llista);
+                try {
+                    f.compilar();
+                } finally {
+                    Funcio.usarLlista(anterior);
+                }
+            }
+        });
+    }
+
+    /**
+     * Genera el codi font de la classe per a una funció.
+     * @param nomClasse El nom de la classe a generar.
+     * @param f La funció.
+     * @return El codi font.
+     * @throws ExpressioException Si la funció no es pot compilar.
+     */
+    private String generarClasse(String nomClasse, FuncioUsuari f) throws ExpressioException {
+        numParams = f.numParams;
+        codi.append("package ").append(PAQUET).append(";\n")
+            .append("import calcbatx.*;\n")
+            .append("public final class ").append(nomClasse).append(" extends FuncioCompilada {\n")
+            .append("public ").append(nomClasse).append("(Funcio[] funcions) { super(funcions); }\n")
+            .append("public Complex calcular(Complex[] p) throws ExpressioException {\n");
+
+        int r = generarMetode(f, CALCULAR);
+
+        codi.append("return new Complex(r").append(r).append(", i").append(r).append(");\n")
+            .append("}\n")
+            .append("public void calcular(RegistresComplexos r, int s) throws ExpressioException {\n");
+
+        r = generarMetode(f, REGISTRES);
+
+        codi.append("r.re[s] = r").append(r).append("; r.im[s] = i").append(r).append(";\n")
+            .append("}\n")
+            .append("public boolean calcularLot(ColumnesComplexes c, int s, int n) {\n");
+
+        // Les funcions d'usuari que no s'incrusten (per exemple, les recursives) es
+        // calcularien punt per punt; l'intèrpret les calcula per columnes
+        int iniciLot = codi.length();
+        cridaFuncioUsuari = false;
+        codi.append("RegistresComplexos r = c.registres;\n")
+            .append("for (int j = 0; j < n; j++) {\n");
+
+        r = generarMetode(f, LOT);
+
+        codi.append("c.re[s][j] = r").append(r).append("; c.im[s][j] = i").append(r).append(";\n")
+            .append("}\nreturn true;\n");
+        if (cridaFuncioUsuari) {
+            codi.setLength(iniciLot);
+            codi.append("return false;\n");
+        }
+        codi.append("}\n}\n");
+
+        return codi.toString();
+    }
+
+    /**
+     * Genera el cos d'un dels mètodes de la classe.
+     * @param f La funció.
+     * @param mode El mètode: CALCULAR, REGISTRES o LOT.
+     * @return L'index de la variable on queda el resultat.
+     * @throws ExpressioException Si la funció no es pot compilar.
+     */
+    private int generarMetode(FuncioUsuari f, int mode) throws ExpressioException {
+        this.mode = mode;
+        iniciMetode = codi.length();
+        numVariables = 0;
+        calculades.clear();
+        return generar(f.cosOptimitzat(), null, 0);
+    }
+
+    /**
+     * Genera el codi que calcula una expressió.
+     * @param e L'expressió.
+     * @param params Les variables on hi ha els paràmetres, o null si són els de la funció compilada.
+     * @param profunditat Nombre de funcions d'usuari incrustades fins arribar a l'expressió.
+     * @return L'index de la variable on queda el resultat.
+     * @throws ExpressioException Si l'expressió no es pot compilar.
+     */
+    private int generar(Expressio e, int[] params, int profunditat) throws ExpressioException {
+        Map<Expressio, Integer> variables = calculades.get(params);
+        if (variables == null) {
+            variables = new IdentityHashMap<Expressio, Integer>();
+            calculades.put(params, variables);
+        }
+
+        Integer v = variables.get(e);
+        if (v == null) {
+            v = generarNode(e, params, profunditat);
+            variables.put(e, v);
+        }
+
+        return v;
+    }
+
+    /**
+     * Genera el codi que calcula un node d'una expressió, que encara no s'ha calculat.
+     * @param e L'expressió.
+     * @param params Les variables on hi ha els paràmetres, o null si són els de la funció compilada.
+     * @param profunditat Nombre de funcions d'usuari incrustades fins arribar a l'expressió.
+     * @return L'index de la variable on queda el resultat.
+     * @throws ExpressioException Si l'expressió no es pot compilar.
+     */
+    private int generarNode(Expressio e, int[] params, int profunditat) throws ExpressioException {
+        if (e instanceof ExpressioNombre) {
+            Complex valor = ((ExpressioNombre)e).getValor();
+            int v = numVariables++;
+            codi.append("double r").append(v).append(" = ").append(literal(valor.re()))
+                .append(", i").append(v).append(" = ").append(literal(valor.im())).append(";\n");
+            return v;
+        }
+
+        if (e instanceof ExpressioParametre) {
+            int index = ((ExpressioParametre)e).getIndex();
+            if (params != null)
+                return params[index];
+
+            int v = numVariables++;
+            if (mode == REGISTRES)
+                codi.append("double r").append(v).append(" = r.re[s + ").append(index).append("]")
+                    .append(", i").append(v).append(" = r.im[s + ").append(index).append("];\n");
+            else if (mode == LOT)
+                codi.append("double r").append(v).append(" = c.re[s + ").append(index).append("][j]")
+                    .append(", i").append(v).append(" = c.im[s + ").append(index).append("][j];\n");
+            else
+                codi.append("double r").append(v).append(" = p[").append(index).append("].re()")
+                    .append(", i").append(v).append(" = p[").append(index).append("].im();\n");
+            return v;
+        }
+
+        if (e instanceof ExpressioFuncio) {
+            ExpressioFuncio ef = (ExpressioFuncio)e;
+            Funcio f = ef.getFuncio();
+
+            // La derivada no depèn dels valors dels paràmetres, es pot calcular ara
+            if (f instanceof FuncioDerivada)
+                return generar(ef.parametres[0].derivada(), params, profunditat);
+            if (f.esSimbolica())
+                throw new ExpressioException("No es pot compilar la funció " + ef.nom + ".");
+
+            int[] a = new int[ef.parametres.length];
+            for (int i = 0; i < a.length; i++)
+                a[i] = generar(ef.parametres[i], params, profunditat);
+
+            // Incrustar també el cos de les funcions d'usuari, mentre no sigui massa gran
+            if (f.getClass() == FuncioUsuari.class && profunditat < MAX_PROFUNDITAT && codi.length() - iniciMetode < MAX_CODI)
+                return generar(((FuncioUsuari)f).cosOptimitzat(), a, profunditat + 1);
+
+            return generarFuncio(f, a);
+        }
+
+        throw new ExpressioException("Tipus d'expressió desconegut.");
+    }
+
+    /**
+     * Genera el codi que calcula una funció a partir dels seus paràmetres ja calculats.
+     * El codi de les funcions bàsiques reprodueix exactament les operacions del seu
+     * mètode calcular.
+     * @param f La funció.
+     * @param a Les variables on hi ha els paràmetres.
+     * @return L'index de la variable on queda el resultat.
+     */
+    private int generarFuncio(Funcio f, int[] a) {
+        int v = numVariables++;
+        String r = "r" + v, i = "i" + v;
+        String ra = a.length > 0 ? "r" + a[0] : null, ia = a.length > 0 ? "i" + a[0] : null;
+        String rb = a.length > 1 ? "r" + a[1] : null, ib = a.length > 1 ? "i" + a[1] : null;
+
+        Class<?> c = f.getClass();
+        if (c == FuncioSumar.class) {
+            codi.append("double ").append(r).append(" = ").append(ra).append(" + ").append(rb)
+                .append(", ").append(i).append(" = ").append(ia).append(" + ").append(ib).append(";\n");
+        } else if (c == FuncioNegar.class) {
+            codi.append("double ").append(r).append(" = -").append(ra)
+                .append(", ").append(i).append(" = -").append(ia).append(";\n");
+        } else if (c == FuncioMultiplicar.class) {
+            codi.append("double ").append(r).append(", ").append(i).append(";\n")
+                .append("if (").append(esReal(ra, ia)).append(") { ")
+                .append(r).append(" = ").append(ra).append(" * ").append(rb).append("; ")
+                .append(i).append(" = ").append(ra).append(" * ").append(ib).append("; } else { ")
+                .append(r).append(" = ").append(ra).append(" * ").append(rb).append(" - ").append(ia).append(" * ").append(ib).append("; ")
+                .append(i).append(" = ").append(ra).append(" * ").append(ib).append(" + ").append(ia).append(" * ").append(rb).append("; }\n");
+        } else if (c == FuncioInvers.class) {
+            String d = "d" + v;
+            codi.append("double ").append(d).append(" = ").append(ra).append(" * ").append(ra).append(" + ").append(ia).append(" * ").append(ia).append(";\n")
+                .append("double ").append(r).append(", ").append(i).append(";\n")
+                .append("if (").append(d).append(" == 0) { ")
+                .append(r).append(" = Double.POSITIVE_INFINITY; ").append(i).append(" = 0.0; } else { ")
+                .append(r).append(" = ").append(ra).append(" / ").append(d).append("; ")
+                .append(i).append(" = -").append(ia).append(" / ").append(d).append("; }\n");
+        } else if (c == FuncioElevar.class) {
+            String m = "m" + v, ang = "a" + v;
+            codi.append("double ").append(r).append(", ").append(i).append(";\n");
+            generarComprovacioReal(f, ib, r, i);
+            codi.append("if (").append(esReal(rb, ib)).append(" && ").append(rb).append(" == 0.5 && ").append(ra).append(" < 0) { ")
+                .append(r).append(" = 0; ").append(i).append(" = Math.sqrt(-").append(ra).append("); } else { ")
+                .append("double ").append(m).append(" = Math.hypot(").append(ra).append(", ").append(ia).append("), ")
+                .append(ang).append(" = Math.atan2(").append(ia).append(", ").append(ra).append("); ")
+                .append(r).append(" = Math.pow(").append(m).append(", ").append(rb).append(") * Math.cos(").append(rb).append(" * ").append(ang).append("); ")
+                .append(i).append(" = Math.pow(").append(m).append(", ").append(rb).append(") * Math.sin(").append(rb).append(" * ").append(ang).append("); }\n}\n");
+        } else if (c == FuncioLn.class) {
+            codi.append("double ").append(r).append(", ").append(i).append(";\n");
+            generarComprovacioReal(f, ia, r, i);
+            codi.append("if (").append(ra).append(" >= 0) { ")
+                .append(r).append(" = Math.log(").append(ra).append("); ").append(i).append(" = 0.0; } else { ")
+                .append(r).append(" = Math.log(-").append(ra).append("); ").append(i).append(" = Math.PI; }\n}\n");
+        } else if (c == FuncioSin.class || c == FuncioCos.class ||
+                   c == FuncioArcSin.class || c == FuncioArcCos.class || c == FuncioArcTan.class) {
+            String metode = c == FuncioSin.class ? "sin" : c == FuncioCos.class ? "cos" :
+                            c == FuncioArcSin.class ? "asin" : c == FuncioArcCos.class ? "acos" : "atan";
+            codi.append("double ").append(r).append(", ").append(i).append(";\n");
+            generarComprovacioReal(f, ia, r, i);
+            codi.append(r).append(" = Math.").append(metode).append("(").append(ra).append("); ")
+                .append(i).append(" = 0.0;\n}\n");
+        } else {
+            // Qualsevol altra funció es crida directament
+            int index = funcions.indexOf(f);
+            if (index < 0) {
+                index = funcions.size();
+                funcions.add(f);
+            }
+
+            if (f instanceof FuncioUsuari)
+                cridaFuncioUsuari = true;
+
+            if (mode == LOT) {
+                // Passar els paràmetres als primers registres; si falla, el punt queda indefinit
+                codi.append("double ").append(r).append(", ").append(i).append(";\n")
+                    .append("r.assegurar(").append(Math.max(a.length, 1)).append(");\n");
+                for (int k = 0; k < a.length; k++)
+                    codi.append("r.re[").append(k).append("] = r").append(a[k]).append("; ")
+                        .append("r.im[").append(k).append("] = i").append(a[k]).append(";\n");
+                codi.append("try { funcions[").append(index).append("].calcular(r, 0); ")
+                    .append(r).append(" = r.re[0]; ").append(i).append(" = r.im[0]; } ")
+                    .append("catch (ExpressioException e) { ")
+                    .append(r).append(" = Double.NaN; ").append(i).append(" = 0.0; }\n");
+            } else if (mode == REGISTRES) {
+                // Passar els paràmetres als registres de després dels de la funció compilada
+                String base = "b" + v;
+                codi.append("int ").append(base).append(" = s + Math.max(").append(numParams).append(", 1);\n")
+                    .append("r.assegurar(").append(base).append(" + ").append(Math.max(a.length, 1)).append(");\n");
+                for (int k = 0; k < a.length; k++)
+                    codi.append("r.re[").append(base).append(" + ").append(k).append("] = r").append(a[k]).append("; ")
+                        .append("r.im[").append(base).append(" + ").append(k).append("] = i").append(a[k]).append(";\n");
+                codi.append("funcions[").append(index).append("].calcular(r, ").append(base).append(");\n")
+                    .append("double ").append(r).append(" = r.re[").append(base).append("], ")
+                    .append(i).append(" = r.im[").append(base).append("];\n");
+            } else {
+                String resultat = "c" + v;
+                codi.append("Complex ").append(resultat).append(" = funcions[").append(index).append("].calcular(new Complex[] {");
+                for (int k = 0; k < a.length; k++) {
+                    if (k != 0)
+                        codi.append(", ");
+                    codi.append("new Complex(r").append(a[k]).append(", i").append(a[k]).append(")");
+                }
+                codi.append("});\n")
+                    .append("double ").append(r).append(" = ").append(resultat).append(".re(), ")
+                    .append(i).append(" = ").append(resultat).append(".im();\n");
+            }
+        }
+
+        return v;
+    }
+
+    /**
+     * Genera el codi que comprova que un paràmetre no sigui complex, igual que les
+     * funcions que encara no poden operar amb nombres complexos: llança una excepció,
+     * o en el mètode per lots deixa el punt com a NaN, igual que el seu calcularLot.
+     * Obre un bloc pel càlcul del resultat, que s'ha de tancar després.
+     * @param f La funció.
+     * @param im La variable amb la part imaginària del paràmetre.
+     * @param r La variable on es guarda la part real del resultat.
+     * @param i La variable on es guarda la part imaginària del resultat.
+     */
+    private void generarComprovacioReal(Funcio f, String im, String r, String i) {
+        codi.append("if (!Nombre.practicamentIgual(").append(im).append(", 0)) ");
+        if (mode == LOT)
+            codi.append("{ ").append(r).append(" = Double.NaN; ").append(i).append(" = 0.0; } else {\n");
+        else
+            codi.append("throw new ExpressioException(\"Encara no es pot operar amb nombres complexos amb ")
+                .append(f.nom).append(".\"); else {\n");
+    }
+
+    /**
+     * Genera la condició equivalent a Complex.esReal().
+     * @param re La variable amb la part real.
+     * @param im La variable amb la part imaginària.
+     * @return El codi de la condició.
+     */
+    private static String esReal(String re, String im) {
+        return "Nombre.practicamentIgual(" + im + ", 0) && Nombre.esFinit(" + re + ")";
+    }
+
+    /**
+     * Genera un literal de Java que representa exactament un nombre.
+     * @param x El nombre.
+     * @return El literal.
+     */
+    private static String literal(double x) {
+        if (Double.isNaN(x))
+            return "Double.NaN";
+        else if (x == Double.POSITIVE_INFINITY)
+            return "Double.POSITIVE_INFINITY";
+        else if (x == Double.NEGATIVE_INFINITY)
+            return "Double.NEGATIVE_INFINITY";
+        else
+            return "(" + Double.toHexString(x) + ")";
+    }
+
+    /**
+     * Compila el codi font d'una classe i la carrega.
+     * @param nomClasse El nom complet de la classe.
+     * @param font El codi font.
+     * @return La classe carregada, o null si no s'ha pogut compilar.
+     */
+    private static Class<?> compilarFont(final String nomClasse, final String font) {
+        JavaCompiler compilador = ToolProvider.getSystemJavaCompiler();
+        if (compilador == null)
+            return null;
+
+        final Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+
+        StandardJavaFileManager fitxers = compilador.getStandardFileManager(null, null, null);
+        JavaFileManager memoria = new ForwardingJavaFileManager<StandardJavaFileManager>(fitxers) {
+            @Override public JavaFileObject getJavaFileForOutput(Location location, String nom,
+                    JavaFileObject.Kind kind, FileObject sibling) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                classes.put(nom, bytes);
+                return new SimpleJavaFileObject(URI.create("mem:///" + nom.replace('.', '/') + kind.extension), kind) {
+                    @Override public OutputStream openOutputStream() {
+                        return bytes;
+                    }
+                };
+            }
+        };
+
+        JavaFileObject fitxerFont = new SimpleJavaFileObject(
+                URI.create("mem:///" + nomClasse.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return font;
+            }
+        };
+
+        List<String> opcions = Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-g:none", "-nowarn", "-proc:none");
+
+        Boolean correcte = compilador.getTask(null, memoria, new DiagnosticCollector<JavaFileObject>(),
+                opcions, null, Arrays.asList(fitxerFont)).call();
+        if (correcte == null || !correcte || !classes.containsKey(nomClasse))
+            return null;
+
+        final byte[] bytecode = classes.get(nomClasse).toByteArray();
+        ClassLoader carregador = new ClassLoader(CompiladorFuncio.class.getClassLoader()) {
+            @Override protected Class<?> findClass(String nom) throws ClassNotFoundException {
+                if (!nom.equals(nomClasse))
+                    throw new ClassNotFoundException(nom);
+                return defineClass(nom, bytecode, 0, bytecode.length);
+            }
+        };
+
+        try {
+            return carregador.loadClass(nomClasse);
+        } catch (ClassNotFoundException exception) {
+            return null;
+        }
+    }
+}
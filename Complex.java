@@ -117,6 +117,16 @@ public class Complex {
      * @return true si és un nombre real.
      */
     public boolean esReal() {
+        return esReal(re, im);
+    }
+
+    /**
+     * Comprova si el nombre format per una part real i imaginària és un nombre real.
+     * @param re Part real.
+     * @param im Part imaginària.
+     * @return true si és un nombre real.
+     */
+    public static boolean esReal(double re, double im) {
         // Permetre una petita part imaginària que pot ser fruit d'un error
         return Nombre.practicamentIgual(im, 0) && Nombre.esFinit(re);
     }
@@ -126,6 +136,15 @@ public class Complex {
      * @return true si és un nombre real.
      */
     public boolean esComplex() {
+        return esComplex(im);
+    }
+
+    /**
+     * Comprova si un nombre amb la part imaginària indicada és complex.
+     * @param im Part imaginària.
+     * @return true si és un nombre complex.
+     */
+    public static boolean esComplex(double im) {
         // Permetre una petita part imaginària que pot ser fruit d'un error
         return !Nombre.practicamentIgual(im, 0);
     }
@@ -184,4 +203,10 @@ public class Complex {
 
         return false;
     }
+
+    @Override public int hashCode() {
+        // 0.0 i -0.0 són iguals segons equals, han de tenir el mateix hash
+        long bits = Double.doubleToLongBits(re == 0 ? 0.0 : re) * 31 + Double.doubleToLongBits(im == 0 ? 0.0 : im);
+        return (int)(bits ^ (bits >>> 32));
+    }
 }
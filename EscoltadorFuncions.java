@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.EventListener;
+
+/**
+ * Rep els canvis a la llista de funcions.
+ */
+public interface EscoltadorFuncions extends EventListener {
+    /**
+     * S'ha afegit, redefinit o esborrat una funció. Es crida des del fil que ha
+     * modificat la llista, un cop ja s'ha modificat.
+     * @param canvi El canvi.
+     */
+    void funcioCanviada(CanviFuncio canvi);
+}
@@ -24,6 +24,18 @@ package calcbatx;
  * Classe abstracta que forma la base de totes les expressions matemàtiques.
  */
 public abstract class Expressio {
+    /**
+     * Indica si és la instància canònica de l'expressió (veure FabricaExpressions).
+     */
+    boolean internada = false;
+
+    /**
+     * Versió de la llista de funcions amb la que s'ha comprovat que l'expressió no
+     * es pot simplificar més (veure Simplificador), o -1 si no s'ha comprovat. Les
+     * regles depenen de les definicions, i el node és compartit entre redefinicions.
+     */
+    volatile int versioSimplificada = -1;
+
     /**
      * Evalua l'expressió i calcula el valor numèric resultant.
      * @param ctx Context en el que s'evalua l'expressió.
@@ -32,6 +44,55 @@ public abstract class Expressio {
      */
     public abstract Complex evaluar(Complex[] params) throws ExpressioException;
 
+    /**
+     * Evalua l'expressió sense crear cap objecte, utilitzant registres.
+     * Els registres a partir de out es poden utilitzar com a espai temporal.
+     * @param r Els registres.
+     * @param params El primer registre on hi ha els paràmetres.
+     * @param out El registre on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public abstract void evaluar(RegistresComplexos r, int params, int out) throws ExpressioException;
+
+    /**
+     * Evalua l'expressió sobre un lot de punts, utilitzant columnes.
+     * Les columnes a partir de out es poden utilitzar com a espai temporal.
+     * Els punts on no es pot calcular alguna funció bàsica queden com a NaN.
+     * @param c Les columnes.
+     * @param params La primera columna on hi ha els paràmetres.
+     * @param out La columna on es guarda el resultat.
+     * @param n El nombre de punts del lot.
+     * @throws ExpressioException
+     */
+    public abstract void evaluarLot(ColumnesComplexes c, int params, int out, int n) throws ExpressioException;
+
+    /**
+     * Evalua l'expressió i la seva derivada al mateix temps, amb nombres duals.
+     * Els registres dels paràmetres han de contenir també la seva derivada
+     * (1 per la variable respecte la que es deriva, 0 per la resta).
+     * @param r Els registres.
+     * @param params El primer registre on hi ha els paràmetres.
+     * @param out El registre on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public abstract void evaluarDual(RegistresDuals r, int params, int out) throws ExpressioException;
+
+    /**
+     * Calcula la sèrie de Taylor de l'expressió, a partir de les sèries dels paràmetres.
+     * @param params Les sèries dels paràmetres.
+     * @param grau El grau de les sèries.
+     * @return La sèrie de l'expressió.
+     * @throws ExpressioException
+     */
+    public abstract SerieTaylor evaluarTaylor(SerieTaylor[] params, int grau) throws ExpressioException;
+
+    /**
+     * Calcula el nombre de registres, a partir del de resultat, que s'utilitzen
+     * per evaluar l'expressió. També és el nombre de columnes per evaluar-la per lots.
+     * @return El nombre de registres necessaris.
+     */
+    public abstract int registresNecessaris();
+
     public abstract Expressio derivada() throws ExpressioException;
 
     /**
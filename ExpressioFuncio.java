@@ -29,26 +29,138 @@ public class ExpressioFuncio extends Expressio {
      */
     public Expressio[] parametres;
     
+    /**
+     * Funció a la que està enllaçat el node, o null si no s'ha enllaçat. Es
+     * substitueix sencer perquè els altres fils no vegin mai una funció d'una
+     * versió de la llista amb la versió d'una altra.
+     */
+    private volatile Enllac enllac = null;
+
+    /**
+     * Funció enllaçada i versió de la llista de funcions amb la que s'ha enllaçat.
+     */
+    private static final class Enllac {
+        /**
+         * La funció, o null si no existeix.
+         */
+        final Funcio funcio;
+
+        final int versio;
+
+        /**
+         * Indica si la funció accepta el nombre de paràmetres del node.
+         */
+        final boolean paramsCorrectes;
+
+        Enllac(Funcio funcio, int versio, boolean paramsCorrectes) {
+            this.funcio = funcio;
+            this.versio = versio;
+            this.paramsCorrectes = paramsCorrectes;
+        }
+    }
+
+    /**
+     * Nombre de registres necessaris per evaluar el node, o 0 si no s'ha calculat.
+     */
+    private int registres = 0;
+
+    /**
+     * Hash de l'expressió, o 0 si no s'ha calculat. Un cop calculat, no es poden
+     * modificar ni el nom ni els paràmetres.
+     */
+    private int hash = 0;
+
+    /**
+     * Derivada ja calculada del node i versió de la llista de funcions amb la que
+     * s'ha calculat, o null si no s'ha calculat.
+     */
+    private volatile Derivada derivada = null;
+
+    private static final class Derivada {
+        final Expressio expressio;
+        final int versio;
+
+        Derivada(Expressio expressio, int versio) {
+            this.expressio = expressio;
+            this.versio = versio;
+        }
+    }
+
     public ExpressioFuncio(String nom, Expressio[] parametres)
     {
         this.nom = nom;
         this.parametres = parametres;
     }
 
-    private Funcio buscarFuncio(String nom, int numParams) throws ExpressioException {
-        if (!Funcio.llista.containsKey(nom))
+    /**
+     * Enllaça el node amb la funció que té el seu nom, de manera que no s'hagi
+     * de buscar per nom cada cop que s'evalua. Només es torna a buscar quan
+     * s'afegeix o s'esborra alguna funció.
+     * @return true si la funció existeix.
+     */
+    public boolean enllacar() {
+        return enllac().funcio != null;
+    }
+
+    private Enllac enllac() {
+        LlistaFuncions llista = Funcio.llista();
+        Enllac e = enllac;
+        if (e == null || e.versio != llista.versio()) {
+            Funcio f = llista.obtenir(nom);
+            e = new Enllac(f, llista.versio(), f != null && f.numParamsCorrecte(parametres.length));
+            enllac = e;
+        }
+
+        return e;
+    }
+
+    /**
+     * Obtè la funció que executa el node.
+     * @return La funció.
+     * @throws ExpressioException Si la funció no existeix o no accepta els paràmetres.
+     */
+    public Funcio getFuncio() throws ExpressioException {
+        Enllac e = enllac();
+        if (e.funcio == null)
             throw new ExpressioException("No es troba la funció \"" + nom + "\".");
 
-        Funcio f = Funcio.llista.get(nom);
-        if (!f.numParamsCorrecte(numParams))
+        if (!e.paramsCorrectes)
             throw new ExpressioException("Nombre invàlid de paràmetres per a la funció " + nom + ".");
 
-        return f;
+        return e.funcio;
     }
     
     public Complex evaluar(Complex[] params) throws ExpressioException {
         // Executar la funció amb els paràmetres
-        return buscarFuncio(nom, parametres.length).evaluar(parametres, params).evaluar(params);
+        return getFuncio().evaluar(parametres, params).evaluar(params);
+    }
+
+    public void evaluar(RegistresComplexos r, int params, int out) throws ExpressioException {
+        getFuncio().evaluar(parametres, r, params, out);
+    }
+
+    public void evaluarLot(ColumnesComplexes c, int params, int out, int n) throws ExpressioException {
+        getFuncio().evaluarLot(parametres, c, params, out, n);
+    }
+
+    public void evaluarDual(RegistresDuals r, int params, int out) throws ExpressioException {
+        getFuncio().evaluarDual(parametres, r, params, out);
+    }
+
+    public SerieTaylor evaluarTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        return getFuncio().evaluarTaylor(parametres, params, grau);
+    }
+
+    public int registresNecessaris() {
+        if (registres == 0) {
+            // Cada paràmetre es calcula al seu registre, i pot utilitzar els següents
+            int n = Math.max(parametres.length, 1);
+            for (int i = 0; i < parametres.length; i++)
+                n = Math.max(n, i + parametres[i].registresNecessaris());
+            registres = n;
+        }
+
+        return registres;
     }
 
     public boolean esConstant() throws ExpressioException {
@@ -76,8 +188,20 @@ public class ExpressioFuncio extends Expressio {
         }
     }
 
+    /**
+     * Calcula la derivada del node, simplificada. Es guarda el resultat, ja que les
+     * derivades de les funcions bàsiques reutilitzen els paràmetres a diverses
+     * branques i, sense guardar-la, la mateixa derivada es calcularia moltes vegades.
+     */
     @Override public Expressio derivada() throws ExpressioException {
-        return buscarFuncio(nom, parametres.length).derivada(parametres);
+        int versioActual = Funcio.versio();
+        Derivada d = derivada;
+        if (d == null || d.versio != versioActual) {
+            d = new Derivada(Simplificador.simplificar(getFuncio().derivada(parametres)), versioActual);
+            derivada = d;
+        }
+
+        return d.expressio;
     }
 
     public Expressio substituirParametres(Expressio[] params) {
@@ -90,4 +214,36 @@ public class ExpressioFuncio extends Expressio {
 
         return new ExpressioFuncio(nom, parametresNous);
     }
+
+    @Override public boolean equals(Object o) {
+        if (o == this)
+            return true;
+
+        if (!(o instanceof ExpressioFuncio))
+            return false;
+
+        ExpressioFuncio ef = (ExpressioFuncio)o;
+        if (hashCode() != ef.hashCode() || !nom.equals(ef.nom) || parametres.length != ef.parametres.length)
+            return false;
+
+        for (int i = 0; i < parametres.length; i++)
+            if (!parametres[i].equals(ef.parametres[i]))
+                return false;
+
+        return true;
+    }
+
+    @Override public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = nom.hashCode();
+            for (Expressio p : parametres)
+                h = h * 31 + p.hashCode();
+            if (h == 0)
+                h = 1;
+            hash = h;
+        }
+
+        return h;
+    }
 }
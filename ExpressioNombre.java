@@ -28,10 +28,42 @@ public class ExpressioNombre extends Expressio {
         this.valor = valor;
     }
     
+    /**
+     * Obtè el valor constant de l'expressió.
+     * @return El valor.
+     */
+    public Complex getValor() {
+        return valor;
+    }
+
     public Complex evaluar(Complex[] params) {
         return valor;
     }
 
+    public void evaluar(RegistresComplexos r, int params, int out) {
+        r.re[out] = valor.re();
+        r.im[out] = valor.im();
+    }
+
+    public void evaluarLot(ColumnesComplexes c, int params, int out, int n) {
+        c.omplir(out, n, valor);
+    }
+
+    public void evaluarDual(RegistresDuals r, int params, int out) {
+        r.re[out] = valor.re();
+        r.im[out] = valor.im();
+        r.dre[out] = 0.0;
+        r.dim[out] = 0.0;
+    }
+
+    public SerieTaylor evaluarTaylor(SerieTaylor[] params, int grau) {
+        return SerieTaylor.constant(valor, grau);
+    }
+
+    public int registresNecessaris() {
+        return 1;
+    }
+
     public boolean esConstant() {
         return true;
     }
@@ -47,4 +79,23 @@ public class ExpressioNombre extends Expressio {
     public Expressio substituirParametres(Expressio[] params) {
         return new ExpressioNombre(valor);
     }
+
+    /**
+     * Dues expressions nombre són iguals si els seus valors tenen exactament els
+     * mateixos bits, de manera que no es confonen 0.0 i -0.0.
+     */
+    @Override public boolean equals(Object o) {
+        if (o instanceof ExpressioNombre) {
+            Complex c = ((ExpressioNombre)o).valor;
+            return Double.doubleToLongBits(valor.re()) == Double.doubleToLongBits(c.re()) &&
+                   Double.doubleToLongBits(valor.im()) == Double.doubleToLongBits(c.im());
+        }
+
+        return false;
+    }
+
+    @Override public int hashCode() {
+        long bits = Double.doubleToLongBits(valor.re()) * 31 + Double.doubleToLongBits(valor.im());
+        return (int)(bits ^ (bits >>> 32));
+    }
 }
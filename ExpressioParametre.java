@@ -28,10 +28,43 @@ public class ExpressioParametre extends Expressio {
         this.index = index;
     }
 
+    /**
+     * Obtè l'index del paràmetre dins la llista de paràmetres.
+     * @return L'index del paràmetre.
+     */
+    public int getIndex() {
+        return index;
+    }
+
     public Complex evaluar(Complex[] params) throws ExpressioException {
         return params[index];
     }
 
+    public void evaluar(RegistresComplexos r, int params, int out) {
+        r.re[out] = r.re[params + index];
+        r.im[out] = r.im[params + index];
+    }
+
+    public void evaluarLot(ColumnesComplexes c, int params, int out, int n) {
+        System.arraycopy(c.re[params + index], 0, c.re[out], 0, n);
+        System.arraycopy(c.im[params + index], 0, c.im[out], 0, n);
+    }
+
+    public void evaluarDual(RegistresDuals r, int params, int out) {
+        r.re[out] = r.re[params + index];
+        r.im[out] = r.im[params + index];
+        r.dre[out] = r.dre[params + index];
+        r.dim[out] = r.dim[params + index];
+    }
+
+    public SerieTaylor evaluarTaylor(SerieTaylor[] params, int grau) {
+        return params[index];
+    }
+
+    public int registresNecessaris() {
+        return 1;
+    }
+
     public boolean esConstant() {
         return false;
     }
@@ -47,4 +80,12 @@ public class ExpressioParametre extends Expressio {
     public Expressio substituirParametres(Expressio[] params) throws ExpressioException {
         return params[index];
     }
+
+    @Override public boolean equals(Object o) {
+        return o instanceof ExpressioParametre && ((ExpressioParametre)o).index == index;
+    }
+
+    @Override public int hashCode() {
+        return index;
+    }
 }
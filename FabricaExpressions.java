@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Taula de les expressions canòniques (hash-consing). Cada expressió internada es
+ * substitueix per l'única instància que té la mateixa estructura, de manera que
+ * les subexpressions repetides es comparteixen i les expressions formen un graf
+ * dirigit acíclic en lloc d'un arbre.
+ */
+public class FabricaExpressions {
+    /**
+     * Expressions canòniques. Es guarden amb referències febles perquè s'alliberin
+     * quan ja no les utilitza cap funció.
+     */
+    private static final Map<Expressio, WeakReference<Expressio>> taula =
+            new WeakHashMap<Expressio, WeakReference<Expressio>>();
+
+    /**
+     * Obtè la instància canònica d'una expressió, internant també totes les seves
+     * subexpressions.
+     * @param e L'expressió.
+     * @return L'expressió canònica, amb la mateixa estructura que e.
+     */
+    public static Expressio internar(Expressio e) {
+        return internar(e, new IdentityHashMap<Expressio, Expressio>());
+    }
+
+    /**
+     * Obtè la instància canònica d'una expressió.
+     * @param e L'expressió.
+     * @param fets Les subexpressions ja internades en aquesta crida, per no recórrer
+     * més d'un cop els nodes compartits.
+     * @return L'expressió canònica.
+     */
+    static Expressio internar(Expressio e, Map<Expressio, Expressio> fets) {
+        if (e.internada)
+            return e;
+
+        Expressio resultat = fets.get(e);
+        if (resultat != null)
+            return resultat;
+
+        Expressio node = e;
+        if (e instanceof ExpressioFuncio) {
+            ExpressioFuncio ef = (ExpressioFuncio)e;
+            Expressio[] parametres = new Expressio[ef.parametres.length];
+            boolean canviat = false;
+            for (int i = 0; i < parametres.length; i++) {
+                parametres[i] = internar(ef.parametres[i], fets);
+                if (parametres[i] != ef.parametres[i])
+                    canviat = true;
+            }
+
+            // No es modifica l'expressió original, es crea un node nou
+            if (canviat)
+                node = new ExpressioFuncio(ef.nom, parametres);
+        }
+
+        synchronized (taula) {
+            WeakReference<Expressio> ref = taula.get(node);
+            resultat = ref != null ? ref.get() : null;
+            if (resultat == null) {
+                node.internada = true;
+                taula.put(node, new WeakReference<Expressio>(node));
+                resultat = node;
+            }
+        }
+
+        fets.put(e, resultat);
+        return resultat;
+    }
+
+    /**
+     * Substitueix els paràmetres d'una expressió per altres expressions, igual que
+     * Expressio.substituirParametres, però substituint només un cop els nodes
+     * compartits.
+     * @param e L'expressió.
+     * @param params Les expressions per les que se substitueixen els paràmetres.
+     * @return L'expressió resultant, internada.
+     * @throws ExpressioException
+     */
+    public static Expressio substituir(Expressio e, Expressio[] params) throws ExpressioException {
+        return internar(substituir(e, params, new IdentityHashMap<Expressio, Expressio>()));
+    }
+
+    /**
+     * Substitueix els paràmetres d'una expressió.
+     * @param e L'expressió.
+     * @param params Les expressions per les que se substitueixen els paràmetres.
+     * @param fets Les subexpressions ja substituïdes en aquesta crida.
+     * @return L'expressió resultant.
+     * @throws ExpressioException
+     */
+    private static Expressio substituir(Expressio e, Expressio[] params, Map<Expressio, Expressio> fets)
+            throws ExpressioException {
+        Expressio resultat = fets.get(e);
+        if (resultat != null)
+            return resultat;
+
+        if (e instanceof ExpressioFuncio) {
+            ExpressioFuncio ef = (ExpressioFuncio)e;
+            Expressio[] parametres = new Expressio[ef.parametres.length];
+            for (int i = 0; i < parametres.length; i++)
+                parametres[i] = substituir(ef.parametres[i], params, fets);
+            resultat = new ExpressioFuncio(ef.nom, parametres);
+        } else {
+            resultat = e.substituirParametres(params);
+        }
+
+        fets.put(e, resultat);
+        return resultat;
+    }
+}
@@ -18,8 +18,11 @@
 
 package calcbatx;
 
-import java.util.Map;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import calcbatx.funcions.*;
 
 /**
@@ -27,16 +30,119 @@ import calcbatx.funcions.*;
  */
 public abstract class Funcio {
     /**
-     * Llista de funcions definides.
+     * Llista de funcions definides. Cada canvi hi publica una llista nova.
      */
-    public static final Map<String, Funcio> llista = new LinkedHashMap<String, Funcio>();
+    private static final AtomicReference<LlistaFuncions> llista =
+            new AtomicReference<LlistaFuncions>(LlistaFuncions.BUIDA);
+
+    /**
+     * Llista local que fa servir cada fil en lloc de la general, o null si fa
+     * servir la general.
+     */
+    private static final ThreadLocal<LlistaFuncions> llistaFil = new ThreadLocal<LlistaFuncions>();
+
+    /**
+     * Obtè l'estat actual de la llista de funcions, que no canviarà encara que
+     * després s'hi afegeixin o s'hi esborrin funcions. Si el fil fa servir una
+     * llista local (veure usarLlista), és aquesta.
+     * @return La llista de funcions.
+     */
+    public static LlistaFuncions llista() {
+        LlistaFuncions l = llistaFil.get();
+        return l != null ? l : llista.get();
+    }
+
+    /**
+     * Fer que el fil actual busqui les funcions en una llista concreta en lloc de
+     * l'actual, per exemple una llista local amb funcions que no s'han publicat
+     * (veure LlistaFuncions.afegirLocal).
+     * @param l La llista, o null per tornar a fer servir la llista actual.
+     * @return La llista que feia servir el fil abans, o null si feia servir l'actual.
+     */
+    public static LlistaFuncions usarLlista(LlistaFuncions l) {
+        LlistaFuncions anterior = llistaFil.get();
+        if (l != null)
+            llistaFil.set(l);
+        else
+            llistaFil.remove();
+        return anterior;
+    }
+
+    /**
+     * Obtè la versió actual de la llista de funcions. S'incrementa cada cop que
+     * s'hi afegeix o s'hi esborra una funció, i permet saber si el codi generat a
+     * partir de la llista encara és vàlid.
+     * @return La versió de la llista de funcions.
+     */
+    public static int versio() {
+        return llista().versio();
+    }
+
+    /**
+     * Objectes que reben els canvis a la llista.
+     */
+    private static final List<EscoltadorFuncions> escoltadors = new CopyOnWriteArrayList<EscoltadorFuncions>();
 
     /**
      * Afegir una funció a la llista de funcions.
      * @param f La funció a afegir.
      */
     public static void afegir(Funcio f) {
-        llista.put(f.nom, f);
+        LlistaFuncions anterior, nova;
+        do {
+            anterior = llista.get();
+            nova = anterior.afegir(f);
+        } while (!llista.compareAndSet(anterior, nova));
+
+        int tipus = anterior.conte(f.nom) ? CanviFuncio.REDEFINIDA : CanviFuncio.AFEGIDA;
+        notificar(new CanviFuncio(tipus, f.nom, nova.dependents(f.nom), nova.versio()));
+    }
+
+    /**
+     * Esborrar una funció de la llista de funcions.
+     * @param nom El nom de la funció a esborrar.
+     */
+    public static void esborrar(String nom) {
+        LlistaFuncions anterior, nova;
+        do {
+            anterior = llista.get();
+            nova = anterior.esborrar(nom);
+            if (nova == anterior)
+                return;
+        } while (!llista.compareAndSet(anterior, nova));
+
+        notificar(new CanviFuncio(CanviFuncio.ESBORRADA, nom, nova.dependents(nom), nova.versio()));
+    }
+
+    /**
+     * Afegir un objecte que rebrà els canvis a la llista de funcions.
+     * @param e L'objecte.
+     */
+    public static void afegirEscoltador(EscoltadorFuncions e) {
+        escoltadors.add(e);
+    }
+
+    /**
+     * Deixar d'enviar els canvis a la llista de funcions a un objecte.
+     * @param e L'objecte.
+     */
+    public static void esborrarEscoltador(EscoltadorFuncions e) {
+        escoltadors.remove(e);
+    }
+
+    /**
+     * Obtè els noms de les funcions de la llista que criden una funció,
+     * directament o a través d'altres funcions.
+     * @param nom El nom de la funció.
+     * @return Els noms de les funcions.
+     */
+    public static Set<String> dependents(String nom) {
+        return llista.get().dependents(nom);
+    }
+
+    private static void notificar(CanviFuncio canvi) {
+        for (EscoltadorFuncions e : escoltadors)
+            e.funcioCanviada(canvi);
     }
 
     /**
@@ -52,9 +158,42 @@ public abstract class Funcio {
     }
 
     /**
-     * Constructor estàtic. Defineix les funcions del sistema.
+     * Afegir una funció del sistema definida amb un text, que no s'analitzarà fins
+     * que es busqui per primer cop.
+     * @param s El codi de la funció a afegir.
+     */
+    private static void afegirDiferida(String s) {
+        LlistaFuncions anterior;
+        do {
+            anterior = llista.get();
+        } while (!llista.compareAndSet(anterior, anterior.afegirDiferida(s)));
+    }
+
+    /**
+     * Temps que ha tardat a definir les funcions del sistema, en nanosegons.
+     */
+    private static final long tempsInici;
+
+    /**
+     * Obtè un informe del que ha costat preparar les funcions del sistema: el
+     * temps de definir-les en carregar la classe i el de les definicions diferides
+     * que s'han hagut d'analitzar fins ara.
+     * @return L'informe.
+     */
+    public static String informeInici() {
+        LlistaFuncions l = llista.get();
+        return String.format("Funcions del sistema: %.2f ms per definir-les; %d definicions analitzades en %.2f ms; %d funcions a la llista",
+                tempsInici / 1e6, LlistaFuncions.definicionsAnalitzades(),
+                LlistaFuncions.tempsAnalisi() / 1e6, l.mida());
+    }
+
+    /**
+     * Constructor estàtic. Defineix les funcions del sistema. Les que estan
+     * definides amb un text no s'analitzen fins que es necessiten.
      */
     static {
+        long inici = System.nanoTime();
+
         // Bàsiques
         afegir(new FuncioSumar());
         afegir(new FuncioNegar());
@@ -63,33 +202,43 @@ public abstract class Funcio {
         afegir(new FuncioInvers());
 
         afegir(new FuncioElevar());
-        afegir("arrel(x,n)=x^invers(n)");
-        afegir("arrelq(x)=x^0.5");
+        afegirDiferida("arrel(x,n)=x^invers(n)");
+        afegirDiferida("arrelq(x)=x^0.5");
 
         afegir(new FuncioLn());
-        afegir("log(x,n)=ln(x)/ln(n)");
-        afegir("log10(x)=ln(x)/ln(10)");
+        afegirDiferida("log(x,n)=ln(x)/ln(n)");
+        afegirDiferida("log10(x)=ln(x)/ln(10)");
 
         afegir(new FuncioDerivada());
+        afegir(new FuncioTaylor());
 
-        afegir("abs(x)=arrelq(x^2)");
-        afegir("sgn(x)=x/abs(x)");
+        afegirDiferida("abs(x)=arrelq(x^2)");
+        afegirDiferida("sgn(x)=x/abs(x)");
 
         // Trigonometria
         afegir(new FuncioSin());
         afegir(new FuncioCos());
-        afegir("tan(x)=sin(x)/cos(x)");
-        afegir("tg(x)=tan(x)"); // Alias
+        afegirDiferida("tan(x)=sin(x)/cos(x)");
+        afegirDiferida("tg(x)=tan(x)"); // Alias
 
         afegir(new FuncioArcSin());
         afegir(new FuncioArcCos());
         afegir(new FuncioArcTan());
-        afegir("arctg(x)=arctan(x)"); // Alias
+        afegirDiferida("arctg(x)=arctan(x)"); // Alias
 
         // Constants comunes
-        afegir("i=-1^0.5");
-        afegir("pi=" + Double.toString(Math.PI));
-        afegir("e=" + Double.toString(Math.E));
+        afegirDiferida("i=-1^0.5");
+        afegirDiferida("pi=" + Math.PI);
+        afegirDiferida("e=" + Math.E);
+
+        tempsInici = System.nanoTime() - inici;
+        if (Boolean.getBoolean("calcbatx.informeInici")) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override public void run() {
+                    System.err.println(informeInici());
+                }
+            });
+        }
     }
 
     /**
@@ -122,6 +271,15 @@ public abstract class Funcio {
         return n == numParams;
     }
 
+    /**
+     * Indica si la funció opera sobre les expressions dels paràmetres en lloc
+     * de sobre els seus valors (per exemple, la derivada).
+     * @return true si la funció és simbòlica.
+     */
+    public boolean esSimbolica() {
+        return false;
+    }
+
     public Expressio evaluar(Expressio[] parametres, Complex[] params) throws ExpressioException {
         Complex[] p = new Complex[parametres.length];
         for (int i = 0; i < parametres.length; i++)
@@ -130,6 +288,71 @@ public abstract class Funcio {
         return new ExpressioNombre(calcular(p));
     }
 
+    /**
+     * Evalua la funció utilitzant registres.
+     * Els paràmetres es calculen als registres out, out+1... i després es calcula la funció.
+     * @param parametres Les expressions dels paràmetres.
+     * @param r Els registres.
+     * @param params El primer registre on hi ha els paràmetres de l'expressió que es calcula.
+     * @param out El registre on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public void evaluar(Expressio[] parametres, RegistresComplexos r, int params, int out) throws ExpressioException {
+        for (int i = 0; i < parametres.length; i++)
+            parametres[i].evaluar(r, params, out + i);
+
+        calcular(r, out);
+    }
+
+    /**
+     * Evalua la funció sobre un lot de punts, utilitzant columnes.
+     * Els paràmetres es calculen a les columnes out, out+1... i després es calcula la funció.
+     * @param parametres Les expressions dels paràmetres.
+     * @param c Les columnes.
+     * @param params La primera columna on hi ha els paràmetres de l'expressió que es calcula.
+     * @param out La columna on es guarda el resultat.
+     * @param n El nombre de punts del lot.
+     * @throws ExpressioException
+     */
+    public void evaluarLot(Expressio[] parametres, ColumnesComplexes c, int params, int out, int n) throws ExpressioException {
+        for (int i = 0; i < parametres.length; i++)
+            parametres[i].evaluarLot(c, params, out + i, n);
+
+        calcularLot(c, out, n);
+    }
+
+    /**
+     * Evalua la funció i la seva derivada, amb nombres duals.
+     * Els paràmetres es calculen als registres out, out+1... i després es calcula la funció.
+     * @param parametres Les expressions dels paràmetres.
+     * @param r Els registres.
+     * @param params El primer registre on hi ha els paràmetres de l'expressió que es calcula.
+     * @param out El registre on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public void evaluarDual(Expressio[] parametres, RegistresDuals r, int params, int out) throws ExpressioException {
+        for (int i = 0; i < parametres.length; i++)
+            parametres[i].evaluarDual(r, params, out + i);
+
+        calcularDual(r, out);
+    }
+
+    /**
+     * Calcula la sèrie de Taylor de la funció aplicada a unes expressions.
+     * @param parametres Les expressions dels paràmetres.
+     * @param params Les sèries dels paràmetres de l'expressió que es calcula.
+     * @param grau El grau de les sèries.
+     * @return La sèrie resultant.
+     * @throws ExpressioException
+     */
+    public SerieTaylor evaluarTaylor(Expressio[] parametres, SerieTaylor[] params, int grau) throws ExpressioException {
+        SerieTaylor[] p = new SerieTaylor[parametres.length];
+        for (int i = 0; i < parametres.length; i++)
+            p[i] = parametres[i].evaluarTaylor(params, grau);
+
+        return calcularTaylor(p, grau);
+    }
+
     /**
      * Evalua la funció i calcula el valor numèric resultant.
      * @param params Els paràmetres sobre els quals s'executa la funció.
@@ -138,6 +361,169 @@ public abstract class Funcio {
      */
     public abstract Complex calcular(Complex[] params) throws ExpressioException;
 
+    /**
+     * Calcula la funció utilitzant registres, sense crear cap objecte.
+     * Els paràmetres són als registres s, s+1... i el resultat es guarda al registre s.
+     * Per defecte es fa a través de calcular(Complex[]); les funcions bàsiques ho redefineixen.
+     * @param r Els registres.
+     * @param s El primer registre dels paràmetres, i on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public void calcular(RegistresComplexos r, int s) throws ExpressioException {
+        Complex[] p = new Complex[numParams];
+        for (int i = 0; i < p.length; i++)
+            p[i] = r.get(s + i);
+
+        r.set(s, calcular(p));
+    }
+
+    /**
+     * Calcula la funció i la seva derivada amb nombres duals: els paràmetres i les
+     * seves derivades són als registres s, s+1... i el resultat es guarda al registre s.
+     * El valor és el mateix que el de calcular(RegistresComplexos, int), i la derivada
+     * s'obté aplicant la regla de la cadena amb les derivades dels paràmetres.
+     * Per defecte no es pot calcular; les funcions bàsiques ho redefineixen.
+     * @param r Els registres.
+     * @param s El primer registre dels paràmetres, i on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public void calcularDual(RegistresDuals r, int s) throws ExpressioException {
+        throw new ExpressioException("No es pot derivar la funció " + nom + ".");
+    }
+
+    /**
+     * Calcula la funció i les derivades parcials respecte cada paràmetre.
+     * Els paràmetres són als registres s, s+1... i el resultat es guarda al registre s.
+     * La derivada parcial respecte el paràmetre i es guarda a pre[inici + i] i pim[inici + i].
+     * Per defecte es fa amb calcularDual, un cop per cada paràmetre.
+     * @param r Els registres.
+     * @param s El primer registre dels paràmetres, i on es guarda el resultat.
+     * @param pre Parts reals de les derivades parcials.
+     * @param pim Parts imaginàries de les derivades parcials.
+     * @param inici Posició on es guarda la primera derivada parcial.
+     * @throws ExpressioException
+     */
+    public void calcularParcials(RegistresDuals r, int s, double[] pre, double[] pim, int inici) throws ExpressioException {
+        int n = numParams;
+        double[] are = new double[n], aim = new double[n];
+        for (int i = 0; i < n; i++) {
+            are[i] = r.re[s + i];
+            aim[i] = r.im[s + i];
+        }
+
+        for (int i = 0; i < Math.max(n, 1); i++) {
+            for (int j = 0; j < n; j++) {
+                r.re[s + j] = are[j];
+                r.im[s + j] = aim[j];
+                r.dre[s + j] = i == j ? 1.0 : 0.0;
+                r.dim[s + j] = 0.0;
+            }
+            calcularDual(r, s);
+            if (i < n) {
+                pre[inici + i] = r.dre[s];
+                pim[inici + i] = r.dim[s];
+            }
+        }
+    }
+
+    /**
+     * Calcula la sèrie de Taylor de la funció a partir de les sèries dels paràmetres.
+     * El primer coeficient és el mateix que el de calcular(Complex[]).
+     * Per defecte no es pot calcular; les funcions bàsiques ho redefineixen.
+     * @param params Les sèries dels paràmetres.
+     * @param grau El grau de les sèries.
+     * @return La sèrie resultant.
+     * @throws ExpressioException
+     */
+    public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        throw new ExpressioException("No es pot derivar la funció " + nom + ".");
+    }
+
+    /**
+     * Calcula el valor de la funció al punt on s'han desenvolupat les sèries
+     * dels paràmetres, és a dir, a partir dels seus primers coeficients.
+     * @param params Les sèries dels paràmetres.
+     * @return El valor de la funció.
+     * @throws ExpressioException
+     */
+    protected Complex calcularValor(SerieTaylor[] params) throws ExpressioException {
+        Complex[] p = new Complex[params.length];
+        for (int i = 0; i < p.length; i++)
+            p[i] = params[i].get(0);
+
+        return calcular(p);
+    }
+
+    /**
+     * Calcula la funció sobre un lot de punts, utilitzant columnes.
+     * Els paràmetres són a les columnes s, s+1... i el resultat es guarda a la columna s.
+     * Els punts on no es pot calcular la funció queden com a NaN.
+     * Per defecte es calcula punt per punt; les funcions bàsiques ho redefineixen.
+     * @param c Les columnes.
+     * @param s La primera columna dels paràmetres, i on es guarda el resultat.
+     * @param n El nombre de punts del lot.
+     * @throws ExpressioException
+     */
+    public void calcularLot(ColumnesComplexes c, int s, int n) throws ExpressioException {
+        RegistresComplexos r = c.registres;
+        r.assegurar(Math.max(numParams, 1));
+
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < numParams; i++) {
+                r.re[i] = c.re[s + i][j];
+                r.im[i] = c.im[s + i][j];
+            }
+
+            try {
+                calcular(r, 0);
+                c.re[s][j] = r.re[0];
+                c.im[s][j] = r.im[0];
+            } catch (ExpressioException exception) {
+                c.re[s][j] = Double.NaN;
+                c.im[s][j] = 0.0;
+            }
+        }
+    }
+
+    /**
+     * Calcula una funció d'un paràmetre sobre molts valors reals d'x.
+     * @param xs Els valors d'x.
+     * @param outRe On es guarda la part real de cada resultat.
+     * @param outIm On es guarda la part imaginària de cada resultat.
+     * @throws ExpressioException
+     */
+    public void calcularLot(double[] xs, double[] outRe, double[] outIm) throws ExpressioException {
+        calcularLot(xs, 0, xs.length, outRe, outIm, new ColumnesComplexes(1));
+    }
+
+    /**
+     * Calcula una funció d'un paràmetre sobre molts valors reals d'x, reutilitzant
+     * unes columnes. Els resultats es guarden a les mateixes posicions que els valors d'x.
+     * @param xs Els valors d'x.
+     * @param inici La primera posició a calcular.
+     * @param n El nombre de valors a calcular.
+     * @param outRe On es guarda la part real de cada resultat.
+     * @param outIm On es guarda la part imaginària de cada resultat.
+     * @param c Les columnes a utilitzar com a espai temporal.
+     * @throws ExpressioException
+     */
+    public void calcularLot(double[] xs, int inici, int n, double[] outRe, double[] outIm, ColumnesComplexes c) throws ExpressioException {
+        if (!numParamsCorrecte(1))
+            throw new ExpressioException("Nombre invàlid de paràmetres per a la funció " + nom + ".");
+
+        for (int desde = inici; desde < inici + n; desde += c.mida) {
+            int m = Math.min(c.mida, inici + n - desde);
+            c.assegurar(1);
+            System.arraycopy(xs, desde, c.re[0], 0, m);
+            Arrays.fill(c.im[0], 0, m, 0.0);
+
+            calcularLot(c, 0, m);
+
+            System.arraycopy(c.re[0], 0, outRe, desde, m);
+            System.arraycopy(c.im[0], 0, outIm, desde, m);
+        }
+    }
+
     /**
      * Troba la funció derivada d'aquesta funció.
      * @return La funció derivada d'aquesta funció.
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+/**
+ * Funció d'usuari compilada a codi de la màquina virtual de Java.
+ * Les subclasses les genera CompiladorFuncio.
+ */
+public abstract class FuncioCompilada {
+    /**
+     * Funcions cridades pel codi generat que no s'han pogut incrustar.
+     */
+    protected final Funcio[] funcions;
+
+    public FuncioCompilada(Funcio[] funcions) {
+        this.funcions = funcions;
+    }
+
+    /**
+     * Calcula el valor de la funció.
+     * @param params Els paràmetres sobre els quals s'executa la funció.
+     * @return El resultat, idèntic al que s'obtindria evaluant el cos de la funció.
+     * @throws ExpressioException
+     */
+    public abstract Complex calcular(Complex[] params) throws ExpressioException;
+
+    /**
+     * Calcula el valor de la funció utilitzant registres.
+     * @param r Els registres.
+     * @param s El primer registre dels paràmetres, i on es guarda el resultat.
+     * @throws ExpressioException
+     */
+    public abstract void calcular(RegistresComplexos r, int s) throws ExpressioException;
+
+    /**
+     * Calcula la funció sobre un lot de punts, utilitzant columnes, igual que
+     * Funcio.calcularLot: els punts on no es pot calcular la funció queden com a NaN.
+     * @param c Les columnes.
+     * @param s La primera columna dels paràmetres, i on es guarda el resultat.
+     * @param n El nombre de punts del lot.
+     * @return false si la funció crida funcions d'usuari que no s'han incrustat, i
+     * llavors no es modifica res i s'ha de calcular amb l'intèrpret.
+     */
+    public abstract boolean calcularLot(ColumnesComplexes c, int s, int n);
+}
@@ -18,17 +18,137 @@
 
 package calcbatx;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class FuncioUsuari extends Funcio {
+    /**
+     * Nombre de punts calculats a partir del qual es compila la funció.
+     */
+    public static final int LLINDAR_COMPILACIO = 100000;
+
     public Expressio cos;
 
     public String text;
 
+    /**
+     * Nombre de punts on s'ha calculat la funció amb l'intèrpret.
+     */
+    private final AtomicInteger crides = new AtomicInteger();
+
+    /**
+     * La funció compilada, o null si encara no s'ha compilat.
+     */
+    private volatile Compilacio compilacio = null;
+
+    /**
+     * El cos optimitzat i el seu programa, o null si no s'ha optimitzat.
+     */
+    private volatile Optimitzacio optimitzacio = null;
+
+    /**
+     * El programa que s'utilitza per calcular el gradient, o null si no s'ha creat.
+     */
+    private volatile Programa programaGradient = null;
+
+    /**
+     * Noms de les funcions que crida el cos, o null si no s'han buscat.
+     */
+    private volatile Set<String> dependencies = null;
+
+    /**
+     * Última comprovació de quan han canviat les funcions que crida el cos.
+     */
+    private volatile Comprovacio comprovacio = null;
+
+    /**
+     * Versió de la llista de funcions en la que s'ha fet una comprovació, i última
+     * versió en la que havia canviat alguna de les funcions que crida el cos.
+     */
+    private static final class Comprovacio {
+        final int versio;
+        final int canvi;
+
+        Comprovacio(int versio, int canvi) {
+            this.versio = versio;
+            this.canvi = canvi;
+        }
+    }
+
+    /**
+     * El cos amb les parts constants ja calculades, el programa que el calcula
+     * (o null si no se n'ha pogut crear), i la versió i la branca de la llista
+     * de funcions en la que és vàlid. Es canvien tots alhora, perquè un altre fil
+     * no vegi mai una versió amb un cos o un programa d'una altra.
+     */
+    private static final class Optimitzacio {
+        final Expressio cos;
+        final Programa programa;
+        final int versio;
+        final int branca;
+
+        Optimitzacio(Expressio cos, Programa programa, int versio, int branca) {
+            this.cos = cos;
+            this.programa = programa;
+            this.versio = versio;
+            this.branca = branca;
+        }
+    }
+
+    /**
+     * El codi compilat d'una funció, i la versió i la branca de la llista de
+     * funcions en la que és vàlid. El codi es pot compartir entre funcions amb el
+     * mateix cos, així que quan avança la versió es crea una altra compilació.
+     */
+    private static final class Compilacio {
+        final FuncioCompilada codi;
+        final int versio;
+        final int branca;
+
+        Compilacio(FuncioCompilada codi, int versio, int branca) {
+            this.codi = codi;
+            this.versio = versio;
+            this.branca = branca;
+        }
+    }
+
+    /**
+     * Funcions que el fil actual està optimitzant, per detectar les funcions
+     * recursives. És per fil perquè diversos fils poden optimitzar la mateixa
+     * funció alhora.
+     */
+    private static final ThreadLocal<Set<FuncioUsuari>> optimitzant = new ThreadLocal<Set<FuncioUsuari>>() {
+        @Override protected Set<FuncioUsuari> initialValue() {
+            return Collections.newSetFromMap(new IdentityHashMap<FuncioUsuari, Boolean>());
+        }
+    };
+
     public FuncioUsuari(String nom, int numParams, Expressio cos, String text) {
         super(nom, numParams);
         this.cos = cos;
         this.text = text;
     }
 
+    /**
+     * Crear una funció igual que una altra però amb un altre text, que aprofita el
+     * cos optimitzat, el programa i el codi compilat de l'altra funció.
+     * @param anterior La funció amb el mateix nom, paràmetres i cos.
+     * @param text El text de la funció.
+     */
+    FuncioUsuari(FuncioUsuari anterior, String text) {
+        this(anterior.nom, anterior.numParams, anterior.cos, text);
+        dependencies = anterior.dependencies;
+        optimitzacio = anterior.optimitzacio;
+        programaGradient = anterior.programaGradient;
+        compilacio = anterior.compilacio;
+        crides.set(anterior.crides.get());
+    }
+
     public Complex calcular(Complex[] params) throws ExpressioException {
         /* És possible que l'usuari defineixi una funció que causi un bucle infinit.
          * Per exemple: x=x
@@ -36,13 +156,289 @@ public class FuncioUsuari extends Funcio {
          * Aquest no és el comportament desitjat, la capturem i retornem un valor indefinit.
          */
         try {
-            return cos.evaluar(params);
+            FuncioCompilada c = codiCompilat(1);
+            if (c != null)
+                return c.calcular(params);
+
+            Programa p = programa();
+            if (p != null)
+                return p.evaluar(params);
+
+            return cosOptimitzat().evaluar(params);
         } catch (StackOverflowError error) {
             return Complex.NaN;
         }
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) throws ExpressioException {
+        try {
+            FuncioCompilada c = codiCompilat(1);
+            if (c != null) {
+                c.calcular(r, s);
+                return;
+            }
+
+            Programa p = programa();
+            if (p != null) {
+                p.evaluar(r, s);
+                return;
+            }
+
+            // El cos es calcula als registres de després dels paràmetres
+            Expressio cos = cosOptimitzat();
+            int out = s + numParams;
+            r.assegurar(out + cos.registresNecessaris());
+            cos.evaluar(r, s, out);
+            r.re[s] = r.re[out];
+            r.im[s] = r.im[out];
+        } catch (StackOverflowError error) {
+            r.set(s, Complex.NaN);
+        }
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) throws ExpressioException {
+        try {
+            FuncioCompilada compilada = codiCompilat(n);
+            if (compilada != null && compilada.calcularLot(c, s, n))
+                return;
+
+            Programa p = programa();
+            if (p != null) {
+                p.evaluarLot(c, s, n);
+                return;
+            }
+
+            // El cos es calcula a les columnes de després dels paràmetres
+            Expressio cos = cosOptimitzat();
+            int out = s + numParams;
+            c.assegurar(out + cos.registresNecessaris());
+            cos.evaluarLot(c, s, out, n);
+            if (out != s)
+                c.intercanviar(s, out);
+        } catch (StackOverflowError error) {
+            c.omplir(s, n, Complex.NaN);
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) throws ExpressioException {
+        try {
+            // El cos es calcula als registres de després dels paràmetres
+            Expressio cos = cosOptimitzat();
+            int out = s + numParams;
+            r.assegurar(out + cos.registresNecessaris());
+            cos.evaluarDual(r, s, out);
+            r.re[s] = r.re[out];
+            r.im[s] = r.im[out];
+            r.dre[s] = r.dre[out];
+            r.dim[s] = r.dim[out];
+        } catch (StackOverflowError error) {
+            r.set(s, Complex.NaN, Complex.NaN);
+        }
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        try {
+            return cosOptimitzat().evaluarTaylor(params, grau);
+        } catch (StackOverflowError error) {
+            SerieTaylor s = new SerieTaylor(grau);
+            Arrays.fill(s.re, Double.NaN);
+            return s;
+        }
+    }
+
+    /**
+     * Calcula el valor de la funció i el seu gradient, és a dir, la derivada parcial
+     * respecte cada paràmetre, amb una passada endavant i una enrere pel graf del cos.
+     * @param params Els paràmetres.
+     * @param gradient On es guarden les derivades parcials (tantes com paràmetres).
+     * @return El valor de la funció.
+     * @throws ExpressioException
+     */
+    public Complex gradient(Complex[] params, Complex[] gradient) throws ExpressioException {
+        Expressio e = cosOptimitzat();
+        Programa p = programaGradient;
+        if (p == null || p.cos != e) {
+            p = Programa.linealitzar(e, numParams);
+            programaGradient = p;
+        }
+
+        try {
+            return p.gradient(params, gradient);
+        } catch (StackOverflowError error) {
+            Arrays.fill(gradient, 0, numParams, Complex.NaN);
+            return Complex.NaN;
+        }
+    }
+
+    /**
+     * Obtè els noms de les funcions que crida el cos directament.
+     * @return Els noms de les funcions.
+     */
+    public Set<String> dependencies() {
+        Set<String> d = dependencies;
+        if (d == null) {
+            Set<String> noms = new LinkedHashSet<String>();
+            buscarDependencies(cos, noms, new IdentityHashMap<Expressio, Boolean>());
+            d = Collections.unmodifiableSet(noms);
+            dependencies = d;
+        }
+
+        return d;
+    }
+
+    private static void buscarDependencies(Expressio e, Set<String> noms, Map<Expressio, Boolean> visitades) {
+        if (!(e instanceof ExpressioFuncio) || visitades.put(e, Boolean.TRUE) != null)
+            return;
+
+        ExpressioFuncio ef = (ExpressioFuncio)e;
+        noms.add(ef.nom);
+        for (Expressio p : ef.parametres)
+            buscarDependencies(p, noms, visitades);
+    }
+
+    /**
+     * Comprova que existeixin totes les funcions que crida el cos, directament o a
+     * través d'altres funcions d'usuari, i que acceptin el nombre de paràmetres.
+     * @throws ExpressioException Si alguna no existeix o no accepta els paràmetres.
+     */
+    public void comprovarFuncions() throws ExpressioException {
+        comprovarFuncions(cos, new IdentityHashMap<Object, Boolean>());
+    }
+
+    private static void comprovarFuncions(Expressio e, Map<Object, Boolean> visitats) throws ExpressioException {
+        if (!(e instanceof ExpressioFuncio) || visitats.put(e, Boolean.TRUE) != null)
+            return;
+
+        ExpressioFuncio ef = (ExpressioFuncio)e;
+        Funcio f = ef.getFuncio();
+        for (Expressio p : ef.parametres)
+            comprovarFuncions(p, visitats);
+
+        if (f instanceof FuncioUsuari && visitats.put(f, Boolean.TRUE) == null)
+            comprovarFuncions(((FuncioUsuari)f).cos, visitats);
+    }
+
+    /**
+     * Obtè l'última versió de la llista de funcions en la que ha canviat alguna de
+     * les funcions que crida el cos, directament o indirectament. Només es torna a
+     * consultar la llista quan n'ha canviat la versió.
+     * @return La versió.
+     */
+    int ultimCanviDependencies() {
+        LlistaFuncions llista = Funcio.llista();
+        Comprovacio c = comprovacio;
+        if (c == null || c.versio != llista.versio()) {
+            c = new Comprovacio(llista.versio(), llista.ultimCanvi(dependencies()));
+            comprovacio = c;
+        }
+
+        return c.canvi;
+    }
+
+    /**
+     * Obtè el cos de la funció amb les parts constants ja calculades, internat
+     * perquè les subexpressions iguals es comparteixin. Es torna a optimitzar
+     * quan canvia alguna de les funcions que crida, ja que les constants poden
+     * dependre d'altres funcions d'usuari.
+     * @return El cos optimitzat.
+     */
+    public Expressio cosOptimitzat() {
+        return optimitzacio().cos;
+    }
+
+    /**
+     * Obtè el programa que calcula el cos optimitzat, on els nodes compartits es
+     * calculen un sol cop.
+     * @return El programa, o null si s'ha d'evaluar directament el cos.
+     */
+    private Programa programa() {
+        return optimitzacio().programa;
+    }
+
+    /**
+     * Obtè el cos optimitzat i el seu programa, vàlids a la versió actual de la
+     * llista de funcions.
+     * @return L'optimització.
+     */
+    private Optimitzacio optimitzacio() {
+        LlistaFuncions llista = Funcio.llista();
+        Optimitzacio o = optimitzacio;
+        if (o != null && o.versio == llista.versio())
+            return o;
+
+        // Si ha canviat la llista però no cap funció que es cridi, continua sent vàlid.
+        // Només s'avança la versió dins la mateixa branca, perquè les altres la
+        // puguin continuar fent servir.
+        if (o != null && llista.deriva(o.versio, o.branca) && ultimCanviDependencies() <= o.versio) {
+            if (o.branca == llista.branca()) {
+                o = new Optimitzacio(o.cos, o.programa, llista.versio(), llista.branca());
+                optimitzacio = o;
+            }
+            return o;
+        }
+
+        // Una funció que es crida a si mateixa s'evalua sense optimitzar mentre s'optimitza
+        Set<FuncioUsuari> enCurs = optimitzant.get();
+        if (!enCurs.add(this))
+            return new Optimitzacio(cos, null, -1, 0);
+
+        try {
+            Expressio e = FabricaExpressions.internar(Optimitzador.optimitzar(cos));
+            o = new Optimitzacio(e, Programa.crear(e, numParams), llista.versio(), llista.branca());
+            optimitzacio = o;
+            return o;
+        } finally {
+            enCurs.remove(this);
+        }
+    }
+
+    /**
+     * Obtè el codi compilat de la funció, si és vàlid, i compta els punts que es
+     * calculen per saber quan s'ha de compilar.
+     * @param punts El nombre de punts que es calcularan.
+     * @return La funció compilada, o null si s'ha d'utilitzar l'intèrpret.
+     */
+    private FuncioCompilada codiCompilat(int punts) {
+        Compilacio c = compilacio;
+        if (c != null) {
+            LlistaFuncions llista = Funcio.llista();
+            if (c.versio == llista.versio())
+                return c.codi;
+
+            if (llista.deriva(c.versio, c.branca) && ultimCanviDependencies() <= c.versio) {
+                if (c.branca == llista.branca())
+                    compilacio = new Compilacio(c.codi, llista.versio(), llista.branca());
+                return c.codi;
+            }
+
+            // Han canviat les funcions que s'havien incrustat al compilar
+            compilacio = null;
+            crides.set(0);
+        }
+
+        if (crides.get() < LLINDAR_COMPILACIO) {
+            int anteriors = crides.getAndAdd(punts);
+            if (anteriors < LLINDAR_COMPILACIO && anteriors + punts >= LLINDAR_COMPILACIO)
+                CompiladorFuncio.compilarEnSegonPla(this);
+        }
+
+        return null;
+    }
+
+    /**
+     * Compila la funció immediatament, sense esperar a que s'hagi calculat
+     * prou vegades.
+     * @return true si s'ha pogut compilar.
+     */
+    public boolean compilar() {
+        LlistaFuncions llista = Funcio.llista();
+        FuncioCompilada c = CompiladorFuncio.compilar(this);
+        if (c != null)
+            compilacio = new Compilacio(c, llista.versio(), llista.branca());
+        return c != null;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
-        return cos.substituirParametres(params).derivada();
+        return FabricaExpressions.substituir(cos, params).derivada();
     }
 }
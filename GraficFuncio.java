@@ -20,6 +20,7 @@ package calcbatx;
 
 import javax.swing.JPanel;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.JCheckBoxMenuItem;
@@ -30,9 +31,25 @@ import javax.swing.JPopupMenu;
  */
 public class GraficFuncio extends JPanel implements MouseListener, MouseMotionListener, MouseWheelListener, KeyListener {
     private double iniciX, zonaX, iniciY, zonaY;
-    private Funcio funcio, funcioDerivada;
+    private Funcio funcio;
     private boolean mostrarRe, mostrarIm, mostrarTg;
 
+    /**
+     * Valors de la funció a cada píxel, reutilitzats entre dibuixos.
+     */
+    private double[] puntsRe = new double[0], puntsIm = new double[0];
+
+    /**
+     * Valors d'x de cada píxel, i columnes per evaluar-los per lots.
+     */
+    private double[] puntsX = new double[0];
+    private ColumnesComplexes columnes = new ColumnesComplexes(1);
+
+    /**
+     * Registres per calcular el pendent de la tangent amb nombres duals.
+     */
+    private RegistresDuals duals = new RegistresDuals(1);
+
     public GraficFuncio() {
         addMouseListener(this);
         addMouseMotionListener(this);
@@ -61,10 +78,6 @@ public class GraficFuncio extends JPanel implements MouseListener, MouseMotionLi
     public void setFuncio(Funcio funcio) {
         // TODO Arreglar
         this.funcio = funcio;
-        this.funcioDerivada = null;
-        try {
-            this.funcioDerivada = new FuncioUsuari("f'(x)", 1, funcio.derivada(new Expressio[] { new ExpressioParametre(0) }), "");
-        } catch (Exception ex) { }
         repaint();
     }
 
@@ -100,39 +113,35 @@ public class GraficFuncio extends JPanel implements MouseListener, MouseMotionLi
         
         if (funcio != null) {
             // Calcular tots els punts a representar
-            Complex[] punts = new Complex[getWidth()+1]; // Punt extra per l'enllaç final
-            for (int i = 0; i < punts.length; i++)
-                punts[i] = YenPos(i);
+            int numPunts = getWidth()+1; // Punt extra per l'enllaç final
+            calcularPunts(numPunts);
 
             // Dibuixar punts reals
             if (mostrarRe) {
                 g.setColor(Color.BLUE);
-                for (int i = 0; i < punts.length - 1; i++) {
-                    unirPunts(g, i, punts[i].re(), i+1, punts[i+1].re());
+                for (int i = 0; i < numPunts - 1; i++) {
+                    unirPunts(g, i, puntsRe[i], i+1, puntsRe[i+1]);
                 }
             }
 
             // Dibuixar punts imaginaris
             if (mostrarIm) {
                 g.setColor(Color.RED);
-                for (int i = 0; i < punts.length - 1; i++)
-                    unirPunts(g, i, punts[i].im(), i+1, punts[i+1].im());
+                for (int i = 0; i < numPunts - 1; i++)
+                    unirPunts(g, i, puntsIm[i], i+1, puntsIm[i+1]);
             }
             
             g.setColor(Color.MAGENTA.darker());
-            if (posRatoliMou != null && yEnGrafic(punts[posRatoliMou.x].re())) {
+            if (posRatoliMou != null && posRatoliMou.x < numPunts && yEnGrafic(puntsRe[posRatoliMou.x])) {
                 // Dibuixar punt sobre el ratoli
-                marcarPunt(g, posRatoliMou.x, punts[posRatoliMou.x].re());
+                marcarPunt(g, posRatoliMou.x, puntsRe[posRatoliMou.x]);
 
                 // Dibuixar recta tangent
                 if (mostrarTg) {
-                    Complex m = Complex.NaN;
-                    try {
-                        m = funcioDerivada.calcular(new Complex[] { new Complex(XenPos(posRatoliMou.x)) });
-                    } catch (Exception ex) { }
+                    Complex m = pendent(XenPos(posRatoliMou.x));
                     if (Nombre.esFinit(m.re())) {
                         double x = XenPos(posRatoliMou.x);
-                        double y = punts[posRatoliMou.x].re();
+                        double y = puntsRe[posRatoliMou.x];
                         double x1 = XenPos(0);
                         double x2 = XenPos(getWidth());
                         double y1 = m.re() * (x1 - x) + y;
@@ -144,6 +153,44 @@ public class GraficFuncio extends JPanel implements MouseListener, MouseMotionLi
         }
     }
 
+    /**
+     * Calcula el pendent de la funció en un punt, amb nombres duals, sense haver
+     * de construir ni evaluar l'expressió de la derivada.
+     * @param x El valor d'x.
+     * @return La derivada de la funció a x, o NaN si no es pot calcular.
+     */
+    private Complex pendent(double x) {
+        try {
+            duals.set(0, new Complex(x), Complex.U);
+            funcio.calcularDual(duals, 0);
+            return duals.getDerivada(0);
+        } catch (Exception ex) {
+            return Complex.NaN;
+        }
+    }
+
+    /**
+     * Calcula el valor de la funció a cada píxel del gràfic, per lots.
+     * @param numPunts El nombre de píxels a calcular.
+     */
+    private void calcularPunts(int numPunts) {
+        if (puntsRe.length < numPunts) {
+            puntsX = new double[numPunts];
+            puntsRe = new double[numPunts];
+            puntsIm = new double[numPunts];
+        }
+
+        for (int i = 0; i < numPunts; i++)
+            puntsX[i] = XenPos(i);
+
+        try {
+            funcio.calcularLot(puntsX, 0, numPunts, puntsRe, puntsIm, columnes);
+        } catch (ExpressioException exception) {
+            Arrays.fill(puntsRe, 0, numPunts, Double.NaN);
+            Arrays.fill(puntsIm, 0, numPunts, 0.0);
+        }
+    }
+
     /**
      * Marca un punt en el gràfic amb un cercle.
      * @param g El context gràfic.
@@ -18,39 +18,241 @@
 
 package calcbatx;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Integral amb la regla dels trapezis.
+ *
+ * L'interval es divideix en trams de punts consecutius que es calculen en
+ * paral·lel al ForkJoinPool comú. Cada tram calcula els seus punts per lots i
+ * els va sumant a mesura que surten, sense guardar-los, i les sumes dels trams
+ * es combinen amb suma compensada perquè l'error d'arrodoniment no creixi amb
+ * el nombre de trapezis.
+ */
 public class Integral {
+    /**
+     * Nombre màxim de punts que calcula cada tasca.
+     */
+    private static final int PUNTS_TRAM = 1 << 16;
+
+    /**
+     * Cada quants mil·lisegons s'informa de l'avanç.
+     */
+    private static final long PERIODE_PROGRES = 50;
+
+    /**
+     * Columnes i vectors de cada fil del ForkJoinPool, per no crear-ne a cada tram.
+     */
+    private static final ThreadLocal<Lot> lots = new ThreadLocal<Lot>() {
+        @Override protected Lot initialValue() {
+            return new Lot();
+        }
+    };
+
     public static Complex calcular(Funcio f, double extrem1, double extrem2, int parts) {
         try {
-            double h = (extrem2 - extrem1) / parts;
-
-            // Calcular els valors d'y per cada punt on s'ha de fer un trapezi
-            Complex[] valors = new Complex[parts + 1];
-            for (int i = 0; i < valors.length; i++)
-                valors[i] = f.calcular(new Complex[] { new Complex(extrem1 + h * i) });
-
-            // Sumar les arees dels trapezis
-            Complex r = Complex.ZERO;
-            for (int i = 0; i < parts; i++)
-                r = new Complex(
-                    r.re() + areaTrapezi(h, valors[i].re(), valors[i + 1].re()),
-                    r.im() + areaTrapezi(h, valors[i].im(), valors[i + 1].im())
-                );
-            
-            return r;
-        } catch (ExpressioException exception) {
+            return calcular(f, extrem1, extrem2, parts, null);
+        } catch (InterruptedException exception) {
+            // No es pot aturar sense progrés
+            return Complex.NaN;
+        }
+    }
+
+    /**
+     * Calcula la integral amb la regla dels trapezis, informant de l'avanç.
+     * @param f La funció a integrar.
+     * @param extrem1 Extrem inferior.
+     * @param extrem2 Extrem superior.
+     * @param parts Nombre de trapezis.
+     * @param progres On s'informa de l'avanç periòdicament, des del fil que
+     * crida, o null.
+     * @return La integral, o NaN si no s'ha pogut calcular en algun dels punts.
+     * @throws InterruptedException Si s'ha aturat el càlcul.
+     */
+    public static Complex calcular(Funcio f, double extrem1, double extrem2, int parts, Progres progres)
+            throws InterruptedException {
+        if (parts <= 0)
+            return new Complex(0.0, 0.0);
+
+        Calcul calcul = new Calcul(f, extrem1, (extrem2 - extrem1) / parts, parts);
+        Tram tram = new Tram(calcul, 0, (long)parts + 1);
+        Suma suma;
+
+        if (progres == null) {
+            suma = ForkJoinPool.commonPool().invoke(tram);
+        } else {
+            ForkJoinPool.commonPool().execute(tram);
+            try {
+                while (true) {
+                    try {
+                        suma = tram.get(PERIODE_PROGRES, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException exception) {
+                        progres.actualitzar((double)calcul.fets.get() / (parts + 1));
+                    }
+                }
+            } catch (InterruptedException exception) {
+                calcul.aturat = true;
+                throw exception;
+            } catch (ExecutionException exception) {
+                Throwable causa = exception.getCause();
+                if (causa instanceof RuntimeException)
+                    throw (RuntimeException)causa;
+                throw (Error)causa;
+            }
+            progres.actualitzar(1.0);
+        }
+
+        if (calcul.fallat)
             // Ha fallat el càlcul en algun dels punts
             return Complex.NaN;
+        return new Complex(calcul.h * suma.re.total(), calcul.h * suma.im.total());
+    }
+
+    /**
+     * Estat compartit per tots els trams d'una integral.
+     */
+    private static final class Calcul {
+        final Funcio f;
+        final double extrem1, h;
+        final long darrer;
+
+        /**
+         * Punts calculats fins ara, per informar de l'avanç.
+         */
+        final AtomicLong fets = new AtomicLong();
+
+        /**
+         * Els trams ho comproven entre lots, per deixar de calcular si s'ha
+         * aturat la integral o ha fallat algun punt.
+         */
+        volatile boolean aturat, fallat;
+
+        Calcul(Funcio f, double extrem1, double h, long darrer) {
+            this.f = f;
+            this.extrem1 = extrem1;
+            this.h = h;
+            this.darrer = darrer;
         }
     }
 
     /**
-     * Calcula l'àrea d'un trapezi rectangle de base h, i altures y1 i y2.
-     * @param h Base
-     * @param y1 Primera altura
-     * @param y2 Segona altura
-     * @return L'àrea del trapezi.
+     * Tram de punts consecutius, entre dos índexs. Es divideix per la meitat
+     * fins que és prou petit per calcular-lo.
      */
-    private static double areaTrapezi(double h, double y1, double y2) {
-        return (h / 2) * (y1 + y2);
+    private static final class Tram extends RecursiveTask<Suma> {
+        private static final long serialVersionUID = 1L;
+
+        private final Calcul calcul;
+        private final long inici, fi;
+
+        Tram(Calcul calcul, long inici, long fi) {
+            this.calcul = calcul;
+            this.inici = inici;
+            this.fi = fi;
+        }
+
+        @Override protected Suma compute() {
+            if (fi - inici > PUNTS_TRAM) {
+                long mig = inici + (fi - inici) / 2;
+                Tram a = new Tram(calcul, inici, mig);
+                Tram b = new Tram(calcul, mig, fi);
+                invokeAll(a, b);
+                Suma suma = a.join();
+                suma.afegir(b.join());
+                return suma;
+            }
+
+            try {
+                return calcular();
+            } catch (ExpressioException exception) {
+                calcul.fallat = true;
+                calcul.aturat = true;
+                return new Suma();
+            }
+        }
+
+        /**
+         * Suma els valors de la funció als punts del tram, amb pes 1/2 als dos
+         * extrems de la integral. El total multiplicat per h és la suma de les
+         * àrees dels trapezis.
+         */
+        private Suma calcular() throws ExpressioException {
+            Lot lot = lots.get();
+            Suma suma = new Suma();
+
+            for (long i = inici; i < fi && !calcul.aturat; i += lot.xs.length) {
+                int n = (int)Math.min(lot.xs.length, fi - i);
+                for (int j = 0; j < n; j++)
+                    lot.xs[j] = calcul.extrem1 + calcul.h * (i + j);
+
+                calcul.f.calcularLot(lot.xs, 0, n, lot.ys, lot.yis, lot.c);
+
+                for (int j = 0; j < n; j++) {
+                    if (i + j == 0 || i + j == calcul.darrer) {
+                        suma.re.afegir(lot.ys[j] / 2);
+                        suma.im.afegir(lot.yis[j] / 2);
+                    } else {
+                        suma.re.afegir(lot.ys[j]);
+                        suma.im.afegir(lot.yis[j]);
+                    }
+                }
+
+                calcul.fets.addAndGet(n);
+            }
+
+            return suma;
+        }
+    }
+
+    /**
+     * Columnes i vectors per calcular un lot de punts.
+     */
+    private static final class Lot {
+        final ColumnesComplexes c = new ColumnesComplexes(1);
+        final double[] xs = new double[c.mida], ys = new double[c.mida], yis = new double[c.mida];
+    }
+
+    /**
+     * Suma compensada de les parts reals i imaginàries.
+     */
+    private static final class Suma {
+        final SumaCompensada re = new SumaCompensada(), im = new SumaCompensada();
+
+        void afegir(Suma altra) {
+            re.afegir(altra.re);
+            im.afegir(altra.im);
+        }
+    }
+
+    /**
+     * Suma de Neumaier: guarda a part l'error d'arrodoniment de cada suma.
+     */
+    private static final class SumaCompensada {
+        private double suma, error;
+
+        void afegir(double x) {
+            double t = suma + x;
+            if (Math.abs(suma) >= Math.abs(x))
+                error += (suma - t) + x;
+            else
+                error += (x - t) + suma;
+            suma = t;
+        }
+
+        void afegir(SumaCompensada altra) {
+            afegir(altra.suma);
+            error += altra.error;
+        }
+
+        double total() {
+            // Amb infinits l'error és NaN, però la suma ja és el resultat
+            return Double.isInfinite(suma) ? suma : suma + error;
+        }
     }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.PriorityQueue;
+
+/**
+ * Integral adaptativa amb la regla de Gauss-Kronrod de 7 i 15 punts.
+ *
+ * Cada tram es calcula amb els 15 punts de Kronrod, i la diferència amb els 7
+ * punts de Gauss que en formen part dona una estimació de l'error. Només es
+ * divideixen per la meitat els trams amb més error, fins que l'error total és
+ * menor que la tolerància, de manera que les zones on la funció és suau es
+ * calculen amb molt pocs punts. Funciona igual amb funcions de valors complexos.
+ */
+public class IntegralAdaptativa {
+    /**
+     * Nombre màxim de divisions abans de donar el resultat per bo.
+     */
+    private static final int MAX_DIVISIONS = 2000;
+
+    /**
+     * Cada quantes divisions s'informa de l'avanç.
+     */
+    private static final int PERIODE_PROGRES = 16;
+
+    /**
+     * Nombre de punts de la regla de Kronrod.
+     */
+    private static final int PUNTS = 15;
+
+    /**
+     * Abscisses de Kronrod, de l'extrem cap al centre. Les d'índex senar
+     * i el centre són també les de Gauss.
+     */
+    private static final double[] XGK = {
+        0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+        0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+        0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+        0.207784955007898467600689403773245, 0.000000000000000000000000000000000
+    };
+
+    /**
+     * Pesos de Kronrod de cada abscissa.
+     */
+    private static final double[] WGK = {
+        0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+        0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+        0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+        0.204432940075298892414161999234649, 0.209482141084727828012999174891714
+    };
+
+    /**
+     * Pesos de Gauss de les abscisses d'índex senar i del centre.
+     */
+    private static final double[] WG = {
+        0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+        0.381830050505118944950369775488975, 0.417959183673469387755102040816327
+    };
+
+    private static final double EPSILON = Math.ulp(1.0);
+
+    /**
+     * El valor de la integral, o NaN si no s'ha pogut calcular en algun dels punts.
+     */
+    public final Complex valor;
+
+    /**
+     * L'estimació de l'error absolut del valor.
+     */
+    public final double error;
+
+    /**
+     * Nombre de punts on s'ha calculat la funció.
+     */
+    public final int avaluacions;
+
+    /**
+     * Si l'error és menor que la tolerància. Si no, s'han esgotat les divisions
+     * o la precisió dels doubles abans d'arribar-hi.
+     */
+    public final boolean convergit;
+
+    private IntegralAdaptativa(Complex valor, double error, int avaluacions, boolean convergit) {
+        this.valor = valor;
+        this.error = error;
+        this.avaluacions = avaluacions;
+        this.convergit = convergit;
+    }
+
+    public static IntegralAdaptativa calcular(Funcio f, double extrem1, double extrem2, double tolerancia) {
+        try {
+            return calcular(f, extrem1, extrem2, tolerancia, null);
+        } catch (InterruptedException exception) {
+            // No es pot aturar sense progrés
+            return new IntegralAdaptativa(Complex.NaN, Double.NaN, 0, false);
+        }
+    }
+
+    /**
+     * Calcula la integral adaptativa, informant de l'avanç.
+     * @param f La funció a integrar.
+     * @param extrem1 Extrem inferior.
+     * @param extrem2 Extrem superior.
+     * @param tolerancia Error màxim, absolut si el valor és menor que 1 i
+     * relatiu si és més gran.
+     * @param progres On s'informa de l'avanç, segons les divisions fetes, o null.
+     * @return La integral, amb l'error i el nombre d'avaluacions.
+     * @throws InterruptedException Si s'ha aturat el càlcul.
+     */
+    public static IntegralAdaptativa calcular(Funcio f, double extrem1, double extrem2, double tolerancia,
+            Progres progres) throws InterruptedException {
+        if (extrem1 == extrem2)
+            return new IntegralAdaptativa(Complex.ZERO, 0.0, 0, true);
+
+        Calcul calcul = new Calcul(f);
+        try {
+            Tram tram = calcul.tram(extrem1, extrem2);
+            if (tram == null)
+                return calcul.resultat(Complex.NaN, Double.NaN, false);
+
+            // Els trams pendents, ordenats de més a menys error
+            PriorityQueue<Tram> trams = new PriorityQueue<Tram>();
+            trams.add(tram);
+            double re = tram.re, im = tram.im, error = tram.error;
+
+            for (int divisions = 0; ; divisions++) {
+                if (error <= tolerancia * Math.max(1.0, Math.hypot(re, im))) {
+                    // Recalcular els totals, que s'han anat actualitzant amb restes
+                    re = im = error = 0.0;
+                    for (Tram t : trams) {
+                        re += t.re;
+                        im += t.im;
+                        error += t.error;
+                    }
+                    if (error <= tolerancia * Math.max(1.0, Math.hypot(re, im)))
+                        return calcul.resultat(new Complex(re, im), error, true);
+                }
+
+                tram = trams.peek();
+                double mig = tram.a + (tram.b - tram.a) / 2;
+                if (divisions == MAX_DIVISIONS || mig == tram.a || mig == tram.b)
+                    break;
+
+                Tram t1 = calcul.tram(tram.a, mig), t2 = calcul.tram(mig, tram.b);
+                if (t1 == null || t2 == null)
+                    return calcul.resultat(Complex.NaN, Double.NaN, false);
+
+                trams.poll();
+                trams.add(t1);
+                trams.add(t2);
+                re += t1.re + t2.re - tram.re;
+                im += t1.im + t2.im - tram.im;
+                error += t1.error + t2.error - tram.error;
+
+                if (progres != null && divisions % PERIODE_PROGRES == 0)
+                    progres.actualitzar((double)divisions / MAX_DIVISIONS);
+            }
+
+            re = im = error = 0.0;
+            for (Tram t : trams) {
+                re += t.re;
+                im += t.im;
+                error += t.error;
+            }
+            return calcul.resultat(new Complex(re, im), error, false);
+        } catch (ExpressioException exception) {
+            // Ha fallat el càlcul de la funció
+            return calcul.resultat(Complex.NaN, Double.NaN, false);
+        }
+    }
+
+    /**
+     * Columnes i vectors per calcular la funció sobre els punts d'un tram.
+     */
+    private static final class Calcul {
+        final Funcio f;
+        final ColumnesComplexes c = new ColumnesComplexes(1);
+        final double[] xs = new double[PUNTS], ys = new double[PUNTS], yis = new double[PUNTS];
+        int avaluacions;
+
+        Calcul(Funcio f) {
+            this.f = f;
+        }
+
+        IntegralAdaptativa resultat(Complex valor, double error, boolean convergit) {
+            return new IntegralAdaptativa(valor, error, avaluacions, convergit);
+        }
+
+        /**
+         * Calcula un tram amb la regla de Gauss-Kronrod, i n'estima l'error
+         * com a QUADPACK.
+         * @return El tram, o null si la funció no és finita en algun dels punts.
+         */
+        Tram tram(double a, double b) throws ExpressioException {
+            double centre = a + (b - a) / 2, semi = (b - a) / 2;
+
+            // El centre al punt 0, i cada parella d'abscisses simètriques als punts 2j+1 i 2j+2
+            xs[0] = centre;
+            for (int j = 0; j < 7; j++) {
+                xs[2 * j + 1] = centre - semi * XGK[j];
+                xs[2 * j + 2] = centre + semi * XGK[j];
+            }
+            f.calcularLot(xs, 0, PUNTS, ys, yis, c);
+            avaluacions += PUNTS;
+
+            for (int j = 0; j < PUNTS; j++)
+                if (Double.isNaN(ys[j] - ys[j]) || Double.isNaN(yis[j] - yis[j]))
+                    return null;
+
+            double kRe = WGK[7] * ys[0], kIm = WGK[7] * yis[0];
+            double gRe = WG[3] * ys[0], gIm = WG[3] * yis[0];
+            double abs = WGK[7] * Math.hypot(ys[0], yis[0]);
+            for (int j = 0; j < 7; j++) {
+                double sRe = ys[2 * j + 1] + ys[2 * j + 2], sIm = yis[2 * j + 1] + yis[2 * j + 2];
+                kRe += WGK[j] * sRe;
+                kIm += WGK[j] * sIm;
+                if (j % 2 == 1) {
+                    gRe += WG[j / 2] * sRe;
+                    gIm += WG[j / 2] * sIm;
+                }
+                abs += WGK[j] * (Math.hypot(ys[2 * j + 1], yis[2 * j + 1]) + Math.hypot(ys[2 * j + 2], yis[2 * j + 2]));
+            }
+
+            // Variació de la funció respecte la seva mitjana al tram
+            double mitjanaRe = kRe / 2, mitjanaIm = kIm / 2;
+            double variacio = WGK[7] * Math.hypot(ys[0] - mitjanaRe, yis[0] - mitjanaIm);
+            for (int j = 0; j < 7; j++)
+                variacio += WGK[j] * (Math.hypot(ys[2 * j + 1] - mitjanaRe, yis[2 * j + 1] - mitjanaIm)
+                        + Math.hypot(ys[2 * j + 2] - mitjanaRe, yis[2 * j + 2] - mitjanaIm));
+
+            semi = Math.abs(semi);
+            abs *= semi;
+            variacio *= semi;
+            double error = Math.hypot(kRe - gRe, kIm - gIm) * semi;
+            if (variacio != 0.0 && error != 0.0)
+                error = variacio * Math.min(1.0, Math.pow(200 * error / variacio, 1.5));
+            error = Math.max(50 * EPSILON * abs, error);
+
+            return new Tram(a, b, kRe * (b - a) / 2, kIm * (b - a) / 2, error);
+        }
+    }
+
+    /**
+     * Un tram calculat, amb el seu valor i l'estimació de l'error.
+     * S'ordenen de més a menys error.
+     */
+    private static final class Tram implements Comparable<Tram> {
+        final double a, b, re, im, error;
+
+        Tram(double a, double b, double re, double im, double error) {
+            this.a = a;
+            this.b = b;
+            this.re = re;
+            this.im = im;
+            this.error = error;
+        }
+
+        public int compareTo(Tram altre) {
+            return Double.compare(altre.error, error);
+        }
+    }
+}
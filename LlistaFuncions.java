@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estat de la llista de funcions en una versió concreta. És immutable: afegir o
+ * esborrar una funció crea una llista nova, de manera que es pot consultar des de
+ * qualsevol fil sense bloquejos i sempre s'hi veu un conjunt de funcions coherent.
+ *
+ * Guarda també l'índex invers de dependències, per saber quines funcions s'han
+ * de tornar a calcular quan en canvia una altra.
+ *
+ * A més de la llista general (veure Funcio), es poden crear llistes locals que
+ * afegeixen funcions a una versió de la general sense publicar-les. Cada sèrie de
+ * llistes locals és una branca, i les versions són úniques entre totes les
+ * llistes perquè les dades guardades per versió no es confonguin.
+ */
+public final class LlistaFuncions {
+    /**
+     * Llista sense cap funció.
+     */
+    static final LlistaFuncions BUIDA = new LlistaFuncions(0, 0, 0,
+            new LinkedHashMap<String, Definicio>(), new HashMap<String, Set<String>>(),
+            new HashMap<String, Integer>(), new HashMap<String, Integer>());
+
+    /**
+     * Versió de la llista. S'incrementa cada cop que s'hi afegeix o s'hi esborra
+     * una funció.
+     */
+    private final int versio;
+
+    /**
+     * Branca de la llista: 0 per la llista general, o un número diferent per cada
+     * sèrie de llistes locals.
+     */
+    private final int branca;
+
+    /**
+     * Versió de la llista general de la que deriva. A la llista general és la
+     * mateixa versió.
+     */
+    private final int versioBase;
+
+    /**
+     * Definicions de les funcions, en l'ordre en que s'han afegit.
+     */
+    private final Map<String, Definicio> definicions;
+
+    /**
+     * Per cada nom de funció, els noms de les funcions d'usuari de la llista que la
+     * criden directament. Els conjunts no es modifiquen mai un cop creats.
+     */
+    private final Map<String, Set<String>> dependents;
+
+    /**
+     * Versió en la que s'ha afegit o esborrat per últim cop cada nom.
+     */
+    private final Map<String, Integer> versionsNoms;
+
+    /**
+     * Per cada funció de la llista, última versió en la que ha canviat alguna de
+     * les funcions que crida, directament o indirectament.
+     */
+    private final Map<String, Integer> versionsDependencies;
+
+    /**
+     * Nombre de definicions diferides que s'han analitzat, i temps total que s'hi
+     * ha dedicat en nanosegons.
+     */
+    /**
+     * Última versió i última branca creades, de qualsevol llista.
+     */
+    private static final AtomicInteger versions = new AtomicInteger();
+    private static final AtomicInteger branques = new AtomicInteger();
+
+    private static final AtomicInteger analitzades = new AtomicInteger();
+    private static final AtomicLong tempsAnalisi = new AtomicLong();
+
+    /**
+     * Funcions que crea el processador d'expressions pels operadors. Les
+     * definicions diferides en poden dependre encara que no les anomenin.
+     */
+    private static final String[] FUNCIONS_OPERADORS = { "sumar", "negar", "multiplicar", "invers", "elevar" };
+
+    /**
+     * Funció de la llista. Pot ser una funció ja creada o el text d'una funció
+     * d'usuari que només s'analitza el primer cop que es busca.
+     */
+    private static final class Definicio {
+        /**
+         * El text de la funció, o null si ja s'ha creat en afegir-la.
+         */
+        final String text;
+
+        /**
+         * Els noms de les funcions que crida, tal com consten a l'índex invers.
+         */
+        final Set<String> dependencies;
+
+        private volatile Funcio funcio;
+        private boolean analitzada;
+
+        Definicio(Funcio f) {
+            text = null;
+            funcio = f;
+            analitzada = true;
+            if (f instanceof FuncioUsuari)
+                dependencies = ((FuncioUsuari)f).dependencies();
+            else
+                dependencies = Collections.<String>emptySet();
+        }
+
+        /**
+         * Crear una definició diferida. Com que encara no s'ha analitzat, es
+         * considera que crida tots els noms que apareixen després del signe
+         * d'igual, excepte els paràmetres, i totes les funcions dels operadors.
+         */
+        Definicio(String text, AnalitzadorLexic lex) {
+            this.text = text;
+            Set<String> params = new HashSet<String>();
+            Set<String> noms = new LinkedHashSet<String>();
+            for (int i = 0; i < lex.mida; i++) {
+                if (lex.tipus[i] != AnalitzadorLexic.NOM)
+                    continue;
+                if (i < lex.primerIgual)
+                    params.add(lex.text(i));
+                else if (!params.contains(lex.text(i)))
+                    noms.add(lex.text(i));
+            }
+            noms.addAll(Arrays.asList(FUNCIONS_OPERADORS));
+            dependencies = Collections.unmodifiableSet(noms);
+        }
+
+        Funcio funcio() {
+            Funcio f = funcio;
+            if (f != null || text == null)
+                return f;
+
+            synchronized (this) {
+                if (!analitzada) {
+                    long inici = System.nanoTime();
+                    try {
+                        funcio = new ProcessadorExpressio(text).processar();
+                    } catch (ProcessadorExpressioException exception) {
+                        System.out.println("Error carregant " + text);
+                    }
+                    tempsAnalisi.addAndGet(System.nanoTime() - inici);
+                    analitzades.incrementAndGet();
+                    analitzada = true;
+                }
+
+                return funcio;
+            }
+        }
+    }
+
+    private LlistaFuncions(int versio, int branca, int versioBase, Map<String, Definicio> definicions,
+            Map<String, Set<String>> dependents, Map<String, Integer> versionsNoms,
+            Map<String, Integer> versionsDependencies) {
+        this.versio = versio;
+        this.branca = branca;
+        this.versioBase = versioBase;
+        this.definicions = definicions;
+        this.dependents = dependents;
+        this.versionsNoms = versionsNoms;
+        this.versionsDependencies = versionsDependencies;
+    }
+
+    /**
+     * Obtè la versió de la llista.
+     * @return La versió.
+     */
+    public int versio() {
+        return versio;
+    }
+
+    /**
+     * Obtè la branca de la llista.
+     * @return 0 per la llista general, o la branca de les llistes locals.
+     */
+    int branca() {
+        return branca;
+    }
+
+    /**
+     * Indica si aquesta llista és una versió, o una de posterior que en deriva.
+     * Les llistes locals deriven de les llistes locals anteriors de la seva branca
+     * i de la versió de la llista general de la que s'ha creat la branca.
+     * @param versio La versió.
+     * @param branca La branca de la versió.
+     * @return true si en deriva.
+     */
+    boolean deriva(int versio, int branca) {
+        if (branca == this.branca)
+            return versio <= this.versio;
+
+        return branca == 0 && versio <= versioBase;
+    }
+
+    /**
+     * Obtè una funció pel seu nom.
+     * @param nom El nom de la funció.
+     * @return La funció, o null si no existeix.
+     */
+    public Funcio obtenir(String nom) {
+        Definicio d = definicions.get(nom);
+        return d != null ? d.funcio() : null;
+    }
+
+    /**
+     * Indica si hi ha una funció amb un nom, sense analitzar-la si és diferida.
+     * @param nom El nom de la funció.
+     * @return true si existeix.
+     */
+    public boolean conte(String nom) {
+        return definicions.containsKey(nom);
+    }
+
+    /**
+     * Obtè el nombre de funcions de la llista.
+     * @return El nombre de funcions.
+     */
+    public int mida() {
+        return definicions.size();
+    }
+
+    /**
+     * Obtè totes les funcions, en l'ordre en que s'han afegit. S'analitzen les
+     * que encara no ho estaven.
+     * @return Les funcions, indexades pel nom. No es poden modificar.
+     */
+    public Map<String, Funcio> funcions() {
+        Map<String, Funcio> resultat = new LinkedHashMap<String, Funcio>();
+        for (Map.Entry<String, Definicio> e : definicions.entrySet()) {
+            Funcio f = e.getValue().funcio();
+            if (f != null)
+                resultat.put(e.getKey(), f);
+        }
+
+        return Collections.unmodifiableMap(resultat);
+    }
+
+    /**
+     * Obtè els noms de les funcions de la llista que criden una funció,
+     * directament o a través d'altres funcions.
+     * @param nom El nom de la funció.
+     * @return Els noms de les funcions.
+     */
+    public Set<String> dependents(String nom) {
+        return buscarDependents(dependents, nom);
+    }
+
+    private static Set<String> buscarDependents(Map<String, Set<String>> dependents, String nom) {
+        Set<String> resultat = new LinkedHashSet<String>();
+        List<String> pendents = new ArrayList<String>();
+        pendents.add(nom);
+        while (!pendents.isEmpty()) {
+            Set<String> directes = dependents.get(pendents.remove(pendents.size() - 1));
+            if (directes != null) {
+                for (String d : directes)
+                    if (resultat.add(d))
+                        pendents.add(d);
+            }
+        }
+
+        return Collections.unmodifiableSet(resultat);
+    }
+
+    /**
+     * Obtè l'última versió en la que ha canviat alguna de les funcions indicades,
+     * o alguna de les que aquestes criden.
+     * @param noms Els noms de les funcions.
+     * @return La versió, o 0 si no han canviat mai.
+     */
+    int ultimCanvi(Set<String> noms) {
+        int v = 0;
+        for (String n : noms) {
+            Integer vn = versionsNoms.get(n);
+            if (vn != null && vn > v)
+                v = vn;
+
+            Integer vd = versionsDependencies.get(n);
+            if (vd != null && vd > v)
+                v = vd;
+        }
+
+        return v;
+    }
+
+    /**
+     * Crear una llista igual que aquesta amb una funció afegida, o substituïda si
+     * ja n'hi havia una amb el mateix nom.
+     * @param f La funció.
+     * @return La llista nova.
+     */
+    LlistaFuncions afegir(Funcio f) {
+        return afegir(f.nom, new Definicio(f), branca);
+    }
+
+    /**
+     * Crear una llista local igual que aquesta amb una funció afegida, o
+     * substituïda si ja n'hi havia una amb el mateix nom. No es publica a la
+     * llista general: només la fan servir els fils que la indiquen amb
+     * Funcio.usarLlista. Si aquesta és la llista general, comença una branca nova;
+     * si no, continua la seva branca, així que cada llista local només se n'ha de
+     * crear una altra a partir de l'última de la branca.
+     * @param f La funció.
+     * @return La llista nova.
+     */
+    public LlistaFuncions afegirLocal(Funcio f) {
+        return afegir(f.nom, new Definicio(f), branca != 0 ? branca : branques.incrementAndGet());
+    }
+
+    /**
+     * Crear una llista igual que aquesta amb una funció d'usuari que no s'analitzarà
+     * fins que es busqui per primer cop.
+     * @param text El text de la funció.
+     * @return La llista nova.
+     */
+    LlistaFuncions afegirDiferida(String text) {
+        AnalitzadorLexic lex = new AnalitzadorLexic(text);
+        if (lex.tipus[0] != AnalitzadorLexic.NOM || lex.primerIgual == Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Definició invàlida: " + text);
+
+        return afegir(lex.text(0), new Definicio(text, lex), branca);
+    }
+
+    private LlistaFuncions afegir(String nom, Definicio d, int novaBranca) {
+        Map<String, Definicio> nousDefinicions = new LinkedHashMap<String, Definicio>(definicions);
+        Map<String, Set<String>> nousDependents = new HashMap<String, Set<String>>(dependents);
+
+        Definicio anterior = nousDefinicions.put(nom, d);
+        if (anterior != null)
+            treureDependencies(nousDependents, nom, anterior);
+        afegirDependencies(nousDependents, nom, d);
+
+        return canviar(nom, novaBranca, nousDefinicions, nousDependents);
+    }
+
+    /**
+     * Crear una llista igual que aquesta sense una funció.
+     * @param nom El nom de la funció.
+     * @return La llista nova, o aquesta mateixa si la funció no hi era.
+     */
+    LlistaFuncions esborrar(String nom) {
+        if (!definicions.containsKey(nom))
+            return this;
+
+        Map<String, Definicio> nousDefinicions = new LinkedHashMap<String, Definicio>(definicions);
+        Map<String, Set<String>> nousDependents = new HashMap<String, Set<String>>(dependents);
+
+        treureDependencies(nousDependents, nom, nousDefinicions.remove(nom));
+
+        return canviar(nom, branca, nousDefinicions, nousDependents);
+    }
+
+    /**
+     * Crear la versió següent de la llista, on ha canviat una funció, i marcar les
+     * funcions que en depenen.
+     */
+    private LlistaFuncions canviar(String nom, int novaBranca, Map<String, Definicio> nousDefinicions,
+            Map<String, Set<String>> nousDependents) {
+        int v = versions.incrementAndGet();
+        Map<String, Integer> nousVersionsNoms = new HashMap<String, Integer>(versionsNoms);
+        nousVersionsNoms.put(nom, v);
+
+        Map<String, Integer> nousVersionsDependencies = new HashMap<String, Integer>(versionsDependencies);
+        if (!nousDefinicions.containsKey(nom))
+            nousVersionsDependencies.remove(nom);
+
+        for (String d : buscarDependents(nousDependents, nom))
+            if (nousDefinicions.containsKey(d))
+                nousVersionsDependencies.put(d, v);
+
+        return new LlistaFuncions(v, novaBranca, novaBranca == 0 ? v : versioBase, nousDefinicions,
+                nousDependents, nousVersionsNoms, nousVersionsDependencies);
+    }
+
+    private static void afegirDependencies(Map<String, Set<String>> dependents, String nom, Definicio def) {
+        for (String d : def.dependencies) {
+            Set<String> anterior = dependents.get(d);
+            Set<String> s = anterior == null ? new LinkedHashSet<String>() : new LinkedHashSet<String>(anterior);
+            s.add(nom);
+            dependents.put(d, Collections.unmodifiableSet(s));
+        }
+    }
+
+    private static void treureDependencies(Map<String, Set<String>> dependents, String nom, Definicio def) {
+        for (String d : def.dependencies) {
+            Set<String> anterior = dependents.get(d);
+            if (anterior == null || !anterior.contains(nom))
+                continue;
+
+            Set<String> s = new LinkedHashSet<String>(anterior);
+            s.remove(nom);
+            if (s.isEmpty())
+                dependents.remove(d);
+            else
+                dependents.put(d, Collections.unmodifiableSet(s));
+        }
+    }
+
+    /**
+     * Obtè el nombre de definicions diferides que s'han analitzat fins ara.
+     */
+    static int definicionsAnalitzades() {
+        return analitzades.get();
+    }
+
+    /**
+     * Obtè el temps total dedicat a analitzar definicions diferides, en nanosegons.
+     */
+    static long tempsAnalisi() {
+        return tempsAnalisi.get();
+    }
+}
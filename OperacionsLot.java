@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+/**
+ * Operacions per lots implementades amb instruccions vectorials (SIMD).
+ * Només estan disponibles si la màquina virtual té el mòdul jdk.incubator.vector
+ * (s'ha d'executar amb --add-modules jdk.incubator.vector); si no, les funcions
+ * bàsiques fan servir els seus bucles normals.
+ */
+public abstract class OperacionsLot {
+    /**
+     * Les operacions vectorials, o null si no estan disponibles.
+     */
+    private static final OperacionsLot vectorials = carregarVectorials();
+
+    /**
+     * Obtè les operacions vectorials.
+     * @return Les operacions vectorials, o null si no estan disponibles.
+     */
+    public static OperacionsLot vectorials() {
+        return vectorials;
+    }
+
+    /**
+     * Carrega les operacions vectorials, si el mòdul que les implementa és present.
+     * Es pot desactivar amb -Dcalcbatx.vectorial=false.
+     * @return Les operacions vectorials, o null si no estan disponibles.
+     */
+    private static OperacionsLot carregarVectorials() {
+        if ("false".equals(System.getProperty("calcbatx.vectorial")))
+            return null;
+
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return null;
+
+        try {
+            return (OperacionsLot)Class.forName("calcbatx.vectorial.OperacionsVectorials")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception exception) {
+            return null;
+        } catch (LinkageError error) {
+            return null;
+        }
+    }
+
+    /**
+     * Suma dues columnes: a = a + b.
+     * @param ar Part real de la primera columna, on es guarda el resultat.
+     * @param ai Part imaginària de la primera columna, on es guarda el resultat.
+     * @param br Part real de la segona columna.
+     * @param bi Part imaginària de la segona columna.
+     * @param n El nombre de punts.
+     */
+    public abstract void sumar(double[] ar, double[] ai, double[] br, double[] bi, int n);
+
+    /**
+     * Canvia el signe d'una columna.
+     * @param re Part real de la columna.
+     * @param im Part imaginària de la columna.
+     * @param n El nombre de punts.
+     */
+    public abstract void negar(double[] re, double[] im, int n);
+
+    /**
+     * Multiplica dues columnes: a = a * b, igual que FuncioMultiplicar.
+     * @param ar Part real de la primera columna, on es guarda el resultat.
+     * @param ai Part imaginària de la primera columna, on es guarda el resultat.
+     * @param br Part real de la segona columna.
+     * @param bi Part imaginària de la segona columna.
+     * @param n El nombre de punts.
+     */
+    public abstract void multiplicar(double[] ar, double[] ai, double[] br, double[] bi, int n);
+
+    /**
+     * Calcula l'invers d'una columna, igual que FuncioInvers.
+     * @param re Part real de la columna.
+     * @param im Part imaginària de la columna.
+     * @param n El nombre de punts.
+     */
+    public abstract void invers(double[] re, double[] im, int n);
+}
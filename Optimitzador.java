@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+/**
+ * Optimitza les expressions abans d'evaluar-les, substituint les parts constants
+ * pel seu valor per no haver-les de calcular cada cop.
+ */
+public class Optimitzador {
+    /**
+     * Obtè una còpia optimitzada d'una expressió. Els subarbres constants es
+     * calculen i es substitueixen per un ExpressioNombre. No es calculen les
+     * funcions simbòliques (com la derivada), ni els subarbres que donen error,
+     * que es deixen tal qual perquè l'error es produeixi quan s'evaluï.
+     * @param e L'expressió a optimitzar.
+     * @return L'expressió optimitzada.
+     */
+    public static Expressio optimitzar(Expressio e) {
+        if (!(e instanceof ExpressioFuncio))
+            return e;
+
+        ExpressioFuncio ef = (ExpressioFuncio)e;
+        Expressio[] parametres = new Expressio[ef.parametres.length];
+        boolean canviat = false;
+        for (int i = 0; i < parametres.length; i++) {
+            parametres[i] = optimitzar(ef.parametres[i]);
+            if (parametres[i] != ef.parametres[i])
+                canviat = true;
+        }
+
+        return plegar(canviat ? new ExpressioFuncio(ef.nom, parametres) : ef);
+    }
+
+    /**
+     * Calcula el valor d'una crida a una funció si tots els seus paràmetres són nombres.
+     * @param ef La crida a la funció.
+     * @return Un ExpressioNombre amb el valor, o la mateixa crida si no es pot calcular
+     * ara (paràmetres no constants, funció simbòlica o inexistent, o error al calcular-la).
+     */
+    static Expressio plegar(ExpressioFuncio ef) {
+        for (Expressio p : ef.parametres)
+            if (!(p instanceof ExpressioNombre))
+                return ef;
+
+        // Si la funció no existeix o és simbòlica, no es pot calcular ara
+        if (!ef.enllacar())
+            return ef;
+
+        try {
+            if (ef.getFuncio().esSimbolica() || !ef.esConstant())
+                return ef;
+
+            return new ExpressioNombre(ef.evaluar(new Complex[0]));
+        } catch (Exception exception) {
+            return ef;
+        }
+    }
+}
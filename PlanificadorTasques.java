@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/**
+ * Executa tasques en fils de fons, perquè els càlculs llargs no bloquegin la
+ * interfície. Cada tasca té una clau: quan es programa una tasca, es cancel·la la
+ * que hi hagués amb la mateixa clau. Les tasques amb la mateixa clau s'executen
+ * d'una en una en el mateix fil, de manera que poden compartir objectes que no
+ * admeten accessos simultanis, com un ProcessadorExpressio.
+ * Tots els mètodes s'han de cridar des del fil d'events de Swing.
+ */
+public class PlanificadorTasques {
+    /**
+     * Els carrils de cada clau.
+     */
+    private final Map<String, Carril> carrils = new HashMap<String, Carril>();
+
+    /**
+     * Fil, temporitzador i tasca actual d'una clau.
+     */
+    private static class Carril {
+        /**
+         * Fil on s'executen les tasques.
+         */
+        ExecutorService fil;
+
+        /**
+         * Temporitzador de la tasca que espera per començar, o null.
+         */
+        Timer temporitzador = null;
+
+        /**
+         * El treballador de l'última tasca començada, o null.
+         */
+        Treballador<?, ?> actual = null;
+    }
+
+    /**
+     * SwingWorker que executa una tasca i només en retorna els resultats si
+     * continua sent l'última del seu carril.
+     */
+    static class Treballador<T, V> extends SwingWorker<T, V> {
+        private final Tasca<T, V> tasca;
+        private final Carril carril;
+
+        Treballador(Tasca<T, V> tasca, Carril carril) {
+            this.tasca = tasca;
+            this.carril = carril;
+            addPropertyChangeListener(new PropertyChangeListener() {
+                public void propertyChange(PropertyChangeEvent e) {
+                    if ("progress".equals(e.getPropertyName()) && esActual())
+                        Treballador.this.tasca.progres((Integer)e.getNewValue());
+                }
+            });
+        }
+
+        private boolean esActual() {
+            return carril.actual == this && !isCancelled();
+        }
+
+        void publicarParcial(V valor) {
+            publish(valor);
+        }
+
+        void canviarProgres(int percentatge) {
+            setProgress(percentatge);
+        }
+
+        @Override protected T doInBackground() throws Exception {
+            return tasca.calcular();
+        }
+
+        @Override protected void process(List<V> valors) {
+            if (esActual())
+                tasca.parcials(valors);
+        }
+
+        @Override protected void done() {
+            if (!esActual())
+                return;
+            carril.actual = null;
+
+            try {
+                tasca.acabar(get());
+            } catch (CancellationException e) {
+                // S'ha cancel·lat mentre acabava
+            } catch (InterruptedException e) {
+                // No pot passar, la tasca ja ha acabat
+            } catch (ExecutionException e) {
+                Throwable causa = e.getCause();
+                tasca.fallar(causa instanceof Exception ? (Exception)causa : e);
+            }
+        }
+    }
+
+    /**
+     * Programar una tasca, cancel·lant la que hi hagués amb la mateixa clau.
+     * @param clau La clau de la tasca.
+     * @param retard Mil·lisegons a esperar abans de començar. Si mentrestant es
+     * programa una altra tasca amb la mateixa clau, aquesta no arriba a començar.
+     * @param tasca La tasca.
+     */
+    public void programar(String clau, int retard, final Tasca<?, ?> tasca) {
+        final Carril carril = carril(clau);
+        cancelar(carril);
+
+        if (retard <= 0) {
+            iniciar(carril, tasca);
+            return;
+        }
+
+        carril.temporitzador = new Timer(retard, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                carril.temporitzador = null;
+                iniciar(carril, tasca);
+            }
+        });
+        carril.temporitzador.setRepeats(false);
+        carril.temporitzador.start();
+    }
+
+    /**
+     * Cancel·lar la tasca amb una clau, si n'hi ha, tant si espera per començar
+     * com si ja s'està executant.
+     * @param clau La clau de la tasca.
+     */
+    public void cancelar(String clau) {
+        Carril carril = carrils.get(clau);
+        if (carril != null)
+            cancelar(carril);
+    }
+
+    private void cancelar(Carril carril) {
+        if (carril.temporitzador != null) {
+            carril.temporitzador.stop();
+            carril.temporitzador = null;
+        }
+
+        if (carril.actual != null) {
+            carril.actual.cancel(true);
+            carril.actual = null;
+        }
+    }
+
+    private <T, V> void iniciar(Carril carril, Tasca<T, V> tasca) {
+        Treballador<T, V> t = new Treballador<T, V>(tasca, carril);
+        tasca.treballador = t;
+        carril.actual = t;
+        carril.fil.execute(t);
+    }
+
+    private Carril carril(final String clau) {
+        Carril carril = carrils.get(clau);
+        if (carril == null) {
+            carril = new Carril();
+            carril.fil = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CalcBatx-" + clau);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            carrils.put(clau, carril);
+        }
+
+        return carril;
+    }
+}
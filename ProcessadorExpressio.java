@@ -18,28 +18,85 @@
 
 package calcbatx;
 
-import java.util.Arrays;
 import java.util.ArrayList;
-
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ProcessadorExpressio {
+    /**
+     * Nombre màxim d'elements d'una cadena de sumes o productes que s'agrupen per
+     * la dreta. Les cadenes més llargues es divideixen en un arbre equilibrat.
+     */
+    private static final int LLARGADA_CADENA = 16;
+
+    /**
+     * Funcions ja processades, per no tornar a processar els mateixos textos.
+     */
+    public static final CacheFuncions cache = new CacheFuncions(256);
+
     private String txt;
+
+    /**
+     * Components lèxics del text.
+     */
+    private AnalitzadorLexic lex;
+
+    /**
+     * Índex del component lèxic actual.
+     */
     private int pos;
 
     private String nomFuncio;
     private ArrayList<String> paramsFuncio;
 
     /**
-     * Expressió regular que permet identificar un nombre.
+     * Fòrmules ja processades, per l'índex del component lèxic on comencen.
      */
-    private Pattern regexpNombre = Pattern.compile("\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+    private Fragment[] formules;
 
     /**
-     * Expressió regular que permet identificar un nom (de funció, paràmetre, etc.)
+     * Termes ja processats, per l'índex del component lèxic on comencen.
      */
-    private Pattern regexpNom = Pattern.compile("\\w+");
+    private Fragment[] termes;
+
+    /**
+     * Paràmetres amb els que s'han processat les fòrmules i termes guardats.
+     */
+    private ArrayList<String> paramsFragments;
+
+    /**
+     * La funció obtinguda l'últim cop que s'ha processat un text.
+     */
+    private FuncioUsuari anterior;
+
+    /**
+     * Fòrmula o terme ja processat, amb els components lèxics que ha utilitzat.
+     */
+    private static class Fragment {
+        /**
+         * L'expressió resultant.
+         */
+        Expressio expr;
+
+        /**
+         * Els tipus de components que marcaven el fi de la fòrmula.
+         */
+        final int mascara;
+
+        /**
+         * Índex del component següent al fragment. També s'ha consultat per saber
+         * on acabava el fragment.
+         */
+        final int fi;
+
+        Fragment(Expressio expr, int mascara, int fi) {
+            this.expr = expr;
+            this.mascara = mascara;
+            this.fi = fi;
+        }
+    }
 
     /**
      * Create un processador de funcions matemàtiques.
@@ -58,9 +115,106 @@ public class ProcessadorExpressio {
      * @throws ProcessadorExpressioException
      */
     public FuncioUsuari processar() throws ProcessadorExpressioException {
+        String clau = CacheFuncions.normalitzar(txt);
+        FuncioUsuari guardada = cache.obtenir(clau);
+        if (guardada != null) {
+            anterior = guardada.text.equals(txt) ? guardada : new FuncioUsuari(guardada, txt);
+            return anterior;
+        }
+
+        AnalitzadorLexic lexAnterior = lex;
+        lex = lexAnterior == null ? new AnalitzadorLexic(txt) : new AnalitzadorLexic(lexAnterior, txt);
+        traslladarFragments(lexAnterior);
+
+        pos = 0;
+        nomFuncio = "";
+        paramsFuncio = new ArrayList<String>();
         processarDefinicio();
-        Expressio funcio = processarFormula(new char[] {});
-        return new FuncioUsuari(nomFuncio, paramsFuncio.size(), funcio, txt);
+
+        // Les expressions guardades només són vàlides amb els mateixos paràmetres
+        if (!paramsFuncio.equals(paramsFragments)) {
+            Arrays.fill(formules, null);
+            Arrays.fill(termes, null);
+            paramsFragments = paramsFuncio;
+        }
+
+        Expressio funcio = processarFormula(0);
+
+        // Guardar les expressions internades, que són les que tenen les derivades, etc.
+        Map<Expressio, Expressio> internades = new IdentityHashMap<Expressio, Expressio>();
+        Expressio cos = FabricaExpressions.internar(funcio, internades);
+        canonitzarFragments(formules, internades);
+        canonitzarFragments(termes, internades);
+
+        // Si el cos no ha canviat, es conserva el que ja s'havia calculat de la funció
+        FuncioUsuari f;
+        if (anterior != null && anterior.cos == cos && anterior.nom.equals(nomFuncio)
+                && anterior.numParams == paramsFuncio.size())
+            f = new FuncioUsuari(anterior, txt);
+        else
+            f = new FuncioUsuari(nomFuncio, paramsFuncio.size(), cos, txt);
+        anterior = f;
+        cache.guardar(clau, f);
+        return f;
+    }
+
+    /**
+     * Processar un altre text amb aquest processador. Es tornen a analitzar només
+     * els components lèxics de la part del text que ha canviat respecte l'últim
+     * text processat, i s'aprofiten les fòrmules i termes que no la inclouen.
+     * @param txt La representació textual de la funció a processar.
+     * @return La funció.
+     * @throws ProcessadorExpressioException
+     */
+    public FuncioUsuari processar(String txt) throws ProcessadorExpressioException {
+        this.txt = txt;
+        return processar();
+    }
+
+    /**
+     * Adaptar les fòrmules i termes guardats als components lèxics nous. Es
+     * conserven els que no inclouen cap component modificat, canviant-ne l'índex
+     * si són posteriors a la modificació.
+     * @param lexAnterior Els components lèxics anteriors, o null.
+     */
+    private void traslladarFragments(AnalitzadorLexic lexAnterior) {
+        Fragment[] f = new Fragment[lex.mida], t = new Fragment[lex.mida];
+        if (lexAnterior != null) {
+            traslladarFragments(formules, f);
+            traslladarFragments(termes, t);
+        }
+
+        formules = f;
+        termes = t;
+    }
+
+    private void traslladarFragments(Fragment[] vells, Fragment[] nous) {
+        int d = lex.desplacament;
+        for (int i = 0; i < vells.length; i++) {
+            Fragment fr = vells[i];
+            if (fr == null)
+                continue;
+
+            if (fr.fi < lex.primerCanvi)
+                nous[i] = fr;
+            else if (i >= lex.fiCanviAnterior)
+                nous[i + d] = d == 0 ? fr : new Fragment(fr.expr, fr.mascara, fr.fi + d);
+        }
+    }
+
+    /**
+     * Substituir les expressions guardades per la seva versió internada.
+     * @param fragments Les fòrmules o termes guardats.
+     * @param internades Les expressions internades.
+     */
+    private static void canonitzarFragments(Fragment[] fragments, Map<Expressio, Expressio> internades) {
+        for (Fragment fr : fragments) {
+            if (fr != null) {
+                Expressio e = internades.get(fr.expr);
+                if (e != null)
+                    fr.expr = e;
+            }
+        }
     }
 
     /**
@@ -69,194 +223,249 @@ public class ProcessadorExpressio {
      * @throws ProcessadorExpressioException
      */
     private void processarDefinicio() throws ProcessadorExpressioException {
-        saltarEspais();
-
         // Llegir el nom de la funció
-        Matcher esNomFunc = regexpNom.matcher(txt).region(pos, txt.length());
-        if (!esNomFunc.lookingAt())
+        if (lex.tipus[pos] != AnalitzadorLexic.NOM)
             throw new ProcessadorExpressioException("El nom de la funcio és invàlid.");
 
-        nomFuncio = esNomFunc.group();
-        pos = esNomFunc.end();
+        nomFuncio = lex.text(pos++);
 
         // Llegir la llista de paràmetres a la funció, si en té
-        saltarEspais();
-
-        if (txt.startsWith("(", pos)) {
+        if (lex.tipus[pos] == AnalitzadorLexic.OBRIR && lex.caracter(pos) == '(') {
             pos++;
-            
+
             do {
                 // Llegir el nom del paràmetre
-                saltarEspais();
-
-                Matcher esParam = regexpNom.matcher(txt).region(pos, txt.length());
-                if (!esParam.lookingAt())
+                if (lex.tipus[pos] != AnalitzadorLexic.NOM)
                     throw new ProcessadorExpressioException("Cada parametre de la funció ha de ser un nom.");
-                paramsFuncio.add(esParam.group());
-                pos = esParam.end();
+                paramsFuncio.add(lex.text(pos++));
 
-                saltarEspais();
-
-                if (pos >= txt.length() || txt.charAt(pos) != ',' && txt.charAt(pos) != ')')
+                if (lex.tipus[pos] != AnalitzadorLexic.COMA &&
+                        (lex.tipus[pos] != AnalitzadorLexic.TANCAR || lex.caracter(pos) != ')'))
                     throw new ProcessadorExpressioException("Separador invàlid pels paràmetres de la funció.");
-            } while (txt.charAt(pos++) == ',');
+            } while (lex.tipus[pos++] == AnalitzadorLexic.COMA);
         }
 
         // Assegurar que acabi amb un signe d'igual
-        saltarEspais();
-
-        if (!txt.startsWith("=", pos))
+        if (lex.tipus[pos] != AnalitzadorLexic.IGUAL)
             throw new ProcessadorExpressioException("S'esperava un igual després de la definició.");
         pos++;
     }
 
     /**
      * Processar una fòrmula.
-     * Una fòrmula és un conjunt de components, units entre si amb operadors.
-     * @param fi Caràcters que marquen el fi de la formula.
+     * Una fòrmula és una suma de termes, separats pels operadors + i -.
+     * @param fi Tipus de components lèxics que marquen el fi de la formula, com a
+     * màscara de bits (1 << tipus).
      * @return La fòrmula, en una expressió matemàtica.
      * @throws ProcessadorExpressioException
      */
-    private Expressio processarFormula(char[] fi) throws ProcessadorExpressioException {
-        Arrays.sort(fi); // Es necessita per poder utilitzar binarySearch
-
-        // Llegir cada un dels components i operadors de la fòrmula
-        ArrayList<Expressio> comps = new ArrayList<Expressio>();
-        ArrayList<Character> ops = new ArrayList<Character>();
-
-        comps.add(processarComp());
-        saltarEspais();
-
-        while (pos < txt.length() && Arrays.binarySearch(fi, txt.charAt(pos)) < 0) {
-
-            ops.add(processarOp());
-            comps.add(processarComp());
-            saltarEspais();
+    private Expressio processarFormula(int fi) throws ProcessadorExpressioException {
+        Fragment fr = formules[pos];
+        if (fr != null && fr.mascara == fi) {
+            pos = fr.fi;
+            return fr.expr;
         }
 
-        processarOpBinari('^', "elevar", comps, ops);
-        substituirOpBinari('/', '*', "invers", comps, ops);
-        processarOpBinari('*', "multiplicar", comps, ops);
-        substituirOpBinari('-', '+', "negar", comps, ops);
-        processarOpBinari('+', "sumar", comps, ops);
-
-        return comps.get(0);
+        int inici = pos;
+        Expressio formula = processarSuma(fi);
+        formules[inici] = new Fragment(formula, fi, pos);
+        return formula;
     }
 
-    private void processarOpBinari(char op, String funcio, ArrayList<Expressio> comps, ArrayList<Character> ops) {
-        for (int i = ops.size() - 1; i >= 0; i--) {
-            if (ops.get(i) == op) {
-                comps.set(i, new ExpressioFuncio(
-                        funcio,
-                        new Expressio[] { comps.get(i), comps.get(i + 1) }
-                ));
-                ops.remove(i);
-                comps.remove(i + 1);
-            }
+    /**
+     * Processar una fòrmula, sense aprofitar-ne cap de les ja processades.
+     * @param fi Tipus de components lèxics que marquen el fi de la formula.
+     * @return La fòrmula, en una expressió matemàtica.
+     * @throws ProcessadorExpressioException
+     */
+    private Expressio processarSuma(int fi) throws ProcessadorExpressioException {
+        Expressio terme = processarTerme(fi);
+        if (!esOperador(pos, '+') && !esOperador(pos, '-'))
+            return terme;
+
+        ArrayList<Expressio> termes = new ArrayList<Expressio>();
+        termes.add(terme);
+        while (esOperador(pos, '+') || esOperador(pos, '-')) {
+            boolean negar = lex.caracter(pos++) == '-';
+            terme = processarTerme(fi);
+            if (negar)
+                terme = new ExpressioFuncio("negar", new Expressio[] { terme });
+            termes.add(terme);
         }
-    }
 
-    private void substituirOpBinari(char op, char substitut, String funcio, ArrayList<Expressio> comps, ArrayList<Character> ops) {
-        for (int i = 0; i < ops.size(); i++) {
-            if (ops.get(i) == op) {
-                ops.set(i, substitut);
-                comps.set(i + 1, new ExpressioFuncio(
-                        funcio,
-                        new Expressio[] { comps.get(i + 1) }
-                ));
-            }
-        }
+        return encadenar("sumar", termes, 0, termes.size());
     }
 
     /**
-     * Processar un component d'una fòrmula.
-     * Un component és cada una de les parts entre els operadors d'una fòrmula.
-     * @return El component, en una expressió matemàtica.
+     * Processar un terme d'una fòrmula.
+     * Un terme és un producte de factors, separats pels operadors * i /, o per res
+     * (multiplicació implícita).
+     * @param fi Tipus de components lèxics que marquen el fi de la formula.
+     * @return El terme, en una expressió matemàtica.
      * @throws ProcessadorExpressioException
      */
-    private Expressio processarComp() throws ProcessadorExpressioException {
-        saltarEspais();
-
-        // Buida (error)
-        if (pos == txt.length())
-            throw new ProcessadorExpressioException("És necessari introduir una expressió.");
-
-        // Signes + o -
-        if (txt.charAt(pos) == '+' || txt.charAt(pos) == '-')
-        {
-            boolean negar = txt.charAt(pos++) == '-';
-            Expressio expr = processarComp();
-            if (negar)
-                expr = new ExpressioFuncio("negar", new Expressio[] { expr });
-            return expr;
-        }
-        // Fòrmula entre parentesi
-        if (txt.startsWith("(", pos) || txt.startsWith("[", pos))
-        {
-            pos++;
-            Expressio formula = processarFormula(new char[] {')', ']'});
-            pos++;
-            return formula;
+    private Expressio processarTerme(int fi) throws ProcessadorExpressioException {
+        Fragment fr = termes[pos];
+        if (fr != null && fr.mascara == fi) {
+            pos = fr.fi;
+            return fr.expr;
         }
 
-        // Nombre
-        Matcher esNombre = regexpNombre.matcher(txt).region(pos, txt.length());
-        if (esNombre.lookingAt()) {
-            String num = esNombre.group();
-            pos = esNombre.end();
-            return new ExpressioNombre(new Complex(Double.parseDouble(num)));
-        }
+        int inici = pos;
+        Expressio terme = processarProducte(fi);
+        termes[inici] = new Fragment(terme, fi, pos);
+        return terme;
+    }
 
-        // Funció, constant o paràmetre
-        Matcher esNomFunc = regexpNom.matcher(txt).region(pos, txt.length());
-        if (esNomFunc.lookingAt()) {
-            String nom = esNomFunc.group();
-            pos = esNomFunc.end();
+    /**
+     * Processar un terme, sense aprofitar-ne cap dels ja processats.
+     * @param fi Tipus de components lèxics que marquen el fi de la formula.
+     * @return El terme, en una expressió matemàtica.
+     * @throws ProcessadorExpressioException
+     */
+    private Expressio processarProducte(int fi) throws ProcessadorExpressioException {
+        Expressio factor = processarPotencia();
+        if (!continuaTerme(fi))
+            return factor;
+
+        ArrayList<Expressio> factors = new ArrayList<Expressio>();
+        factors.add(factor);
+        while (continuaTerme(fi)) {
+            boolean invertir = esOperador(pos, '/');
+            if (invertir || esOperador(pos, '*'))
+                pos++;
 
-            // Si és el nom d'un paràmetre d'aquesta funció, agafar-lo
-            if (paramsFuncio.contains(nom))
-                return new ExpressioParametre(paramsFuncio.indexOf(nom));
+            factor = processarPotencia();
+            if (invertir)
+                factor = new ExpressioFuncio("invers", new Expressio[] { factor });
+            factors.add(factor);
+        }
 
-            // Llegir els paràmetres de la funció, si en té
-            saltarEspais();
+        return encadenar("multiplicar", factors, 0, factors.size());
+    }
 
-            ArrayList<Expressio> param = new ArrayList<Expressio>();
-            if (txt.startsWith("(", pos) || txt.startsWith("[", pos)) {
-                pos++;
+    /**
+     * Indica si el terme continua després de la posició actual, és a dir, si no s'ha
+     * arribat al final de la fòrmula ni hi ha un operador + o -.
+     * @param fi Tipus de components lèxics que marquen el fi de la formula.
+     */
+    private boolean continuaTerme(int fi) {
+        int t = lex.tipus[pos];
+        return t != AnalitzadorLexic.FI && (fi & (1 << t)) == 0 && !esOperador(pos, '+') && !esOperador(pos, '-');
+    }
 
-                do {
-                    param.add(processarFormula(new char[] { ',', ')', ']'}));
-                } while (pos < txt.length() && txt.charAt(pos++) == ',');
-            }
+    /**
+     * Processar una potència, o un component sol si no està elevat a res.
+     * L'operador ^ s'agrupa per la dreta: a^b^c és a^(b^c).
+     * @return La potència, en una expressió matemàtica.
+     * @throws ProcessadorExpressioException
+     */
+    private Expressio processarPotencia() throws ProcessadorExpressioException {
+        Expressio base = processarComp();
+        if (!esOperador(pos, '^'))
+            return base;
 
-            Expressio[] paramArray = new Expressio[param.size()];
-            return new ExpressioFuncio(nom, param.toArray(paramArray));
-        }
-        
-        throw new ProcessadorExpressioException("Tipus d'expressió invàlid.");
+        pos++;
+        return new ExpressioFuncio("elevar", new Expressio[] { base, processarPotencia() });
     }
 
     /**
-     * Processar un operador binari.
-     * @return El caràcter de l'operador.
-     * @throws ProcessadorExpressioException
+     * Uneix una cadena d'elements amb una funció associativa de dos paràmetres.
+     * Les cadenes curtes s'agrupen per la dreta, a op (b op c). Les més llargues
+     * de LLARGADA_CADENA es divideixen per la meitat, de manera que la profunditat
+     * de l'arbre (i de la recursió a l'evaluar-lo) sigui logarítmica.
+     * @param funcio El nom de la funció.
+     * @param elements Els elements de la cadena.
+     * @param inici El primer element a unir.
+     * @param fi La posició següent a l'últim element a unir.
+     * @return L'expressió resultant.
      */
-    private char processarOp() throws ProcessadorExpressioException {
-        char op = txt.charAt(pos);
-        if (op == '+' || op == '-' || op == '*' || op == '/' || op == '^') {
-            pos++;
-            return op;
+    private static Expressio encadenar(String funcio, List<Expressio> elements, int inici, int fi) {
+        if (fi - inici > LLARGADA_CADENA) {
+            int mig = (inici + fi) >>> 1;
+            return new ExpressioFuncio(funcio, new Expressio[] {
+                    encadenar(funcio, elements, inici, mig),
+                    encadenar(funcio, elements, mig, fi)
+            });
         }
 
-        return '*';
-        //throw new ProcessadorExpressioException("Operador desconegut.");
+        Expressio resultat = elements.get(fi - 1);
+        for (int i = fi - 2; i >= inici; i--)
+            resultat = new ExpressioFuncio(funcio, new Expressio[] { elements.get(i), resultat });
+        return resultat;
     }
 
     /**
-     * Avançar la posició fins a trobar un caràcter que no sigui un espai.
+     * Indica si un component lèxic és un operador concret.
+     * @param i L'índex del component.
+     * @param op El caràcter de l'operador.
      */
-    private void saltarEspais() {
-        while (pos < txt.length() && Character.isWhitespace(txt.charAt(pos)))
-            pos++;
+    private boolean esOperador(int i, char op) {
+        return lex.tipus[i] == AnalitzadorLexic.OPERADOR && lex.caracter(i) == op;
+    }
+
+    /**
+     * Processar un component d'una fòrmula.
+     * Un component és cada una de les parts entre els operadors d'una fòrmula.
+     * @return El component, en una expressió matemàtica.
+     * @throws ProcessadorExpressioException
+     */
+    private Expressio processarComp() throws ProcessadorExpressioException {
+        switch (lex.tipus[pos]) {
+            // Buida (error)
+            case AnalitzadorLexic.FI:
+                throw new ProcessadorExpressioException("És necessari introduir una expressió.");
+
+            // Signes + o -
+            case AnalitzadorLexic.OPERADOR:
+                char signe = lex.caracter(pos);
+                if (signe != '+' && signe != '-')
+                    break;
+
+                pos++;
+                Expressio expr = processarComp();
+                if (signe == '-')
+                    expr = new ExpressioFuncio("negar", new Expressio[] { expr });
+                return expr;
+
+            // Fòrmula entre parentesi
+            case AnalitzadorLexic.OBRIR:
+                pos++;
+                Expressio formula = processarFormula(1 << AnalitzadorLexic.TANCAR);
+                if (lex.tipus[pos] != AnalitzadorLexic.FI)
+                    pos++;
+                return formula;
+
+            // Nombre
+            case AnalitzadorLexic.NOMBRE:
+                return new ExpressioNombre(new Complex(lex.valor(pos++)));
+
+            // Funció, constant o paràmetre
+            case AnalitzadorLexic.NOM:
+                String nom = lex.text(pos++);
+
+                // Si és el nom d'un paràmetre d'aquesta funció, agafar-lo
+                int param = paramsFuncio.indexOf(nom);
+                if (param >= 0)
+                    return new ExpressioParametre(param);
+
+                // Llegir els paràmetres de la funció, si en té
+                ArrayList<Expressio> params = new ArrayList<Expressio>();
+                if (lex.tipus[pos] == AnalitzadorLexic.OBRIR) {
+                    pos++;
+
+                    do {
+                        params.add(processarFormula((1 << AnalitzadorLexic.COMA) | (1 << AnalitzadorLexic.TANCAR)));
+                    } while (lex.tipus[pos] != AnalitzadorLexic.FI && lex.tipus[pos++] == AnalitzadorLexic.COMA);
+                }
+
+                // Enllaçar ja la funció, si existeix, per no haver-la de buscar al evaluar
+                Expressio[] paramArray = new Expressio[params.size()];
+                ExpressioFuncio crida = new ExpressioFuncio(nom, params.toArray(paramArray));
+                crida.enllacar();
+                return crida;
+        }
+
+        throw new ProcessadorExpressioException("Tipus d'expressió invàlid.");
     }
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import calcbatx.funcions.FuncioDerivada;
+
+/**
+ * Expressió convertida a una llista d'instruccions, on cada node diferent del
+ * graf de l'expressió es calcula un sol cop. Els nodes compartits (per exemple,
+ * els paràmetres que les derivades copien a diverses branques) no es tornen a
+ * calcular, com passaria evaluant l'arbre recursivament.
+ *
+ * Els valors es guarden a posicions relatives al primer paràmetre: primer els
+ * paràmetres, després el resultat de cada instrucció i, al final, espai temporal
+ * per cridar les funcions.
+ */
+public class Programa {
+    /**
+     * Tipus d'instrucció: carregar un nombre.
+     */
+    private static final int NOMBRE = 0;
+
+    /**
+     * Tipus d'instrucció: calcular una funció amb els valors d'altres posicions.
+     */
+    private static final int FUNCIO = 1;
+
+    /**
+     * Tipus d'instrucció: evaluar una funció simbòlica directament sobre l'expressió.
+     */
+    private static final int SIMBOLICA = 2;
+
+    /**
+     * L'expressió a partir de la que s'ha creat el programa.
+     */
+    public final Expressio cos;
+
+    /**
+     * Nombre de paràmetres.
+     */
+    private final int numParams;
+
+    /**
+     * Tipus de cada instrucció.
+     */
+    private final int[] tipus;
+
+    /**
+     * Node de l'expressió de cada instrucció.
+     */
+    private final Expressio[] nodes;
+
+    /**
+     * Funció de cada instrucció FUNCIO.
+     */
+    private final Funcio[] funcions;
+
+    /**
+     * Posicions dels paràmetres de cada instrucció FUNCIO.
+     */
+    private final int[][] arguments;
+
+    /**
+     * Posició on queda el resultat.
+     */
+    private final int resultat;
+
+    /**
+     * Nombre de posicions (registres o columnes) necessàries.
+     */
+    private final int registres;
+
+    /**
+     * Posició de la primera derivada parcial de cada instrucció, pel càlcul del gradient.
+     */
+    private final int[] inicisParcials;
+
+    /**
+     * Nombre total de derivades parcials.
+     */
+    private final int numParcials;
+
+    private Programa(Expressio cos, int numParams, List<Expressio> nodes, List<Funcio> funcions,
+            List<int[]> arguments, int resultat) {
+        this.cos = cos;
+        this.numParams = numParams;
+        this.nodes = nodes.toArray(new Expressio[nodes.size()]);
+        this.funcions = funcions.toArray(new Funcio[funcions.size()]);
+        this.arguments = arguments.toArray(new int[arguments.size()][]);
+        this.resultat = resultat;
+
+        int temporals = 1, parcials = 0;
+        inicisParcials = new int[this.nodes.length];
+        tipus = new int[this.nodes.length];
+        for (int k = 0; k < tipus.length; k++) {
+            inicisParcials[k] = parcials;
+            if (this.nodes[k] instanceof ExpressioNombre) {
+                tipus[k] = NOMBRE;
+            } else if (this.funcions[k] != null) {
+                tipus[k] = FUNCIO;
+                temporals = Math.max(temporals, this.arguments[k].length);
+                parcials += this.arguments[k].length;
+            } else {
+                tipus[k] = SIMBOLICA;
+                temporals = Math.max(temporals, this.nodes[k].registresNecessaris());
+                parcials += numParams;
+            }
+        }
+        numParcials = parcials;
+
+        registres = numParams + tipus.length + temporals;
+    }
+
+    /**
+     * Crea el programa que calcula una expressió.
+     * Les derivades es calculen ara, i el seu resultat s'afegeix al programa.
+     * @param cos L'expressió, preferiblement internada (FabricaExpressions).
+     * @param numParams El nombre de paràmetres de l'expressió.
+     * @return El programa, o null si l'expressió no en pot tenir (per exemple, si crida
+     * una funció que no existeix) o no té cap funció compartida, i llavors s'ha
+     * d'evaluar directament.
+     */
+    public static Programa crear(Expressio cos, int numParams) {
+        try {
+            return linealitzar(cos, numParams, true);
+        } catch (Exception exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Crea el programa que calcula una expressió, encara que no tingui nodes compartits.
+     * @param cos L'expressió, preferiblement internada (FabricaExpressions).
+     * @param numParams El nombre de paràmetres de l'expressió.
+     * @return El programa.
+     * @throws ExpressioException Si l'expressió no pot tenir programa (per exemple, si
+     * crida una funció que no existeix).
+     */
+    public static Programa linealitzar(Expressio cos, int numParams) throws ExpressioException {
+        return linealitzar(cos, numParams, false);
+    }
+
+    /**
+     * Crea el programa que calcula una expressió.
+     * @param cos L'expressió.
+     * @param numParams El nombre de paràmetres de l'expressió.
+     * @param nomesCompartides Si només s'ha de crear quan té funcions compartides.
+     * @return El programa, o null si no té funcions compartides i nomesCompartides és true.
+     * @throws ExpressioException
+     */
+    private static Programa linealitzar(Expressio cos, int numParams, boolean nomesCompartides) throws ExpressioException {
+        List<Expressio> nodes = new ArrayList<Expressio>();
+        List<Funcio> funcions = new ArrayList<Funcio>();
+        List<int[]> arguments = new ArrayList<int[]>();
+        int[] compartides = new int[1];
+        int resultat = afegir(cos, numParams, new IdentityHashMap<Expressio, Integer>(), nodes, funcions,
+                arguments, compartides);
+
+        // Si no es comparteix cap funció, evaluar l'arbre és igual de ràpid
+        if (nomesCompartides && compartides[0] == 0)
+            return null;
+
+        return new Programa(cos, numParams, nodes, funcions, arguments, resultat);
+    }
+
+    /**
+     * Afegeix al programa les instruccions que calculen una expressió, si no hi són ja.
+     * @param compartides Compta les funcions que es troben més d'un cop.
+     * @return La posició on queda el valor de l'expressió.
+     * @throws ExpressioException
+     */
+    private static int afegir(Expressio e, int numParams, Map<Expressio, Integer> posicions, List<Expressio> nodes,
+            List<Funcio> funcions, List<int[]> arguments, int[] compartides) throws ExpressioException {
+        Integer posicio = posicions.get(e);
+        if (posicio != null) {
+            if (e instanceof ExpressioFuncio)
+                compartides[0]++;
+            return posicio;
+        }
+
+        int p;
+        if (e instanceof ExpressioParametre) {
+            p = ((ExpressioParametre)e).getIndex();
+            if (p >= numParams)
+                throw new ExpressioException("Paràmetre invàlid.");
+        } else if (e instanceof ExpressioFuncio) {
+            ExpressioFuncio ef = (ExpressioFuncio)e;
+            Funcio f = ef.getFuncio();
+            if (f instanceof FuncioDerivada) {
+                // La derivada no depèn dels valors dels paràmetres
+                p = afegir(ef.parametres[0].derivada(), numParams, posicions, nodes, funcions, arguments, compartides);
+            } else if (f.esSimbolica()) {
+                p = numParams + nodes.size();
+                nodes.add(e);
+                funcions.add(null);
+                arguments.add(null);
+            } else {
+                int[] a = new int[ef.parametres.length];
+                for (int i = 0; i < a.length; i++)
+                    a[i] = afegir(ef.parametres[i], numParams, posicions, nodes, funcions, arguments, compartides);
+
+                p = numParams + nodes.size();
+                nodes.add(e);
+                funcions.add(f);
+                arguments.add(a);
+            }
+        } else {
+            p = numParams + nodes.size();
+            nodes.add(e);
+            funcions.add(null);
+            arguments.add(null);
+        }
+
+        posicions.put(e, p);
+        return p;
+    }
+
+    /**
+     * Obtè el nombre d'instruccions del programa.
+     * @return El nombre d'instruccions.
+     */
+    public int getNumInstruccions() {
+        return tipus.length;
+    }
+
+    /**
+     * Calcula el programa.
+     * @param params Els paràmetres.
+     * @return El resultat.
+     * @throws ExpressioException
+     */
+    public Complex evaluar(Complex[] params) throws ExpressioException {
+        Complex[] valors = new Complex[numParams + tipus.length];
+        System.arraycopy(params, 0, valors, 0, numParams);
+
+        for (int k = 0; k < tipus.length; k++) {
+            Complex v;
+            switch (tipus[k]) {
+                case NOMBRE:
+                    v = ((ExpressioNombre)nodes[k]).getValor();
+                    break;
+                case FUNCIO:
+                    int[] a = arguments[k];
+                    Complex[] p = new Complex[a.length];
+                    for (int i = 0; i < a.length; i++)
+                        p[i] = valors[a[i]];
+                    v = funcions[k].calcular(p);
+                    break;
+                default:
+                    v = nodes[k].evaluar(params);
+            }
+            valors[numParams + k] = v;
+        }
+
+        return valors[resultat];
+    }
+
+    /**
+     * Calcula el programa utilitzant registres.
+     * Els paràmetres són als registres s, s+1... i el resultat es guarda al registre s.
+     * @param r Els registres.
+     * @param s El primer registre dels paràmetres.
+     * @throws ExpressioException
+     */
+    public void evaluar(RegistresComplexos r, int s) throws ExpressioException {
+        r.assegurar(s + registres);
+        int t = s + numParams + tipus.length;
+
+        for (int k = 0; k < tipus.length; k++) {
+            int out = s + numParams + k;
+            switch (tipus[k]) {
+                case NOMBRE:
+                    Complex valor = ((ExpressioNombre)nodes[k]).getValor();
+                    r.re[out] = valor.re();
+                    r.im[out] = valor.im();
+                    break;
+                case FUNCIO:
+                    // Els paràmetres han de ser consecutius, es copien a l'espai temporal
+                    int[] a = arguments[k];
+                    for (int i = 0; i < a.length; i++) {
+                        r.re[t + i] = r.re[s + a[i]];
+                        r.im[t + i] = r.im[s + a[i]];
+                    }
+                    funcions[k].calcular(r, t);
+                    r.re[out] = r.re[t];
+                    r.im[out] = r.im[t];
+                    break;
+                default:
+                    nodes[k].evaluar(r, s, t);
+                    r.re[out] = r.re[t];
+                    r.im[out] = r.im[t];
+            }
+        }
+
+        r.re[s] = r.re[s + resultat];
+        r.im[s] = r.im[s + resultat];
+    }
+
+    /**
+     * Calcula el programa sobre un lot de punts, utilitzant columnes.
+     * Els paràmetres són a les columnes s, s+1... i el resultat es guarda a la columna s.
+     * @param c Les columnes.
+     * @param s La primera columna dels paràmetres.
+     * @param n El nombre de punts del lot.
+     * @throws ExpressioException
+     */
+    public void evaluarLot(ColumnesComplexes c, int s, int n) throws ExpressioException {
+        c.assegurar(s + registres);
+        int t = s + numParams + tipus.length;
+
+        for (int k = 0; k < tipus.length; k++) {
+            int out = s + numParams + k;
+            switch (tipus[k]) {
+                case NOMBRE:
+                    c.omplir(out, n, ((ExpressioNombre)nodes[k]).getValor());
+                    break;
+                case FUNCIO:
+                    int[] a = arguments[k];
+                    for (int i = 0; i < a.length; i++) {
+                        System.arraycopy(c.re[s + a[i]], 0, c.re[t + i], 0, n);
+                        System.arraycopy(c.im[s + a[i]], 0, c.im[t + i], 0, n);
+                    }
+                    funcions[k].calcularLot(c, t, n);
+                    c.intercanviar(out, t);
+                    break;
+                default:
+                    nodes[k].evaluarLot(c, s, t, n);
+                    c.intercanviar(out, t);
+            }
+        }
+
+        if (resultat >= numParams) {
+            c.intercanviar(s, s + resultat);
+        } else if (resultat != 0) {
+            System.arraycopy(c.re[s + resultat], 0, c.re[s], 0, n);
+            System.arraycopy(c.im[s + resultat], 0, c.im[s], 0, n);
+        }
+    }
+
+    /**
+     * Calcula el valor del programa i el gradient respecte tots els paràmetres, en
+     * mode invers: primer es calcula cada instrucció i les derivades parcials respecte
+     * els seus paràmetres (amb nombres duals), i després es propaguen les derivades
+     * del resultat des del final fins als paràmetres. El cost no depèn del nombre de
+     * paràmetres, excepte per les funcions simbòliques, que es deriven directament
+     * respecte cada paràmetre.
+     * @param params Els paràmetres.
+     * @param gradient On es guarden les derivades parcials del resultat respecte cada paràmetre.
+     * @return El valor del programa.
+     * @throws ExpressioException
+     */
+    public Complex gradient(Complex[] params, Complex[] gradient) throws ExpressioException {
+        int n = numParams + tipus.length;
+        double[] vre = new double[n], vim = new double[n];
+        for (int i = 0; i < numParams; i++) {
+            vre[i] = params[i].re();
+            vim[i] = params[i].im();
+        }
+
+        // Derivades parcials de cada instrucció respecte els seus paràmetres
+        double[] pre = new double[numParcials], pim = new double[numParcials];
+        RegistresDuals d = new RegistresDuals(Math.max(numParams, 1));
+
+        for (int k = 0; k < tipus.length; k++) {
+            int out = numParams + k;
+            switch (tipus[k]) {
+                case NOMBRE:
+                    Complex valor = ((ExpressioNombre)nodes[k]).getValor();
+                    vre[out] = valor.re();
+                    vim[out] = valor.im();
+                    break;
+                case FUNCIO:
+                    int[] a = arguments[k];
+                    d.assegurar(Math.max(a.length, 1));
+                    for (int j = 0; j < a.length; j++) {
+                        d.re[j] = vre[a[j]];
+                        d.im[j] = vim[a[j]];
+                    }
+                    funcions[k].calcularParcials(d, 0, pre, pim, inicisParcials[k]);
+                    vre[out] = d.re[0];
+                    vim[out] = d.im[0];
+                    break;
+                default:
+                    // Les funcions simbòliques es deriven directament respecte els paràmetres
+                    Complex v = nodes[k].evaluar(params);
+                    d.assegurar(numParams + nodes[k].registresNecessaris());
+                    for (int i = 0; i < numParams; i++) {
+                        for (int j = 0; j < numParams; j++) {
+                            d.re[j] = vre[j];
+                            d.im[j] = vim[j];
+                            d.dre[j] = i == j ? 1.0 : 0.0;
+                            d.dim[j] = 0.0;
+                        }
+                        nodes[k].evaluarDual(d, 0, numParams);
+                        pre[inicisParcials[k] + i] = d.dre[numParams];
+                        pim[inicisParcials[k] + i] = d.dim[numParams];
+                    }
+                    vre[out] = v.re();
+                    vim[out] = v.im();
+            }
+        }
+
+        // Propagar les derivades des del resultat cap als paràmetres
+        double[] are = new double[n], aim = new double[n];
+        are[resultat] = 1.0;
+        for (int k = tipus.length - 1; k >= 0; k--) {
+            int out = numParams + k;
+            double r = are[out], i = aim[out];
+            if (tipus[k] == NOMBRE || (r == 0 && i == 0))
+                continue;
+
+            int inici = inicisParcials[k], m = tipus[k] == FUNCIO ? arguments[k].length : numParams;
+            for (int j = 0; j < m; j++) {
+                int a = tipus[k] == FUNCIO ? arguments[k][j] : j;
+                are[a] += r * pre[inici + j] - i * pim[inici + j];
+                aim[a] += r * pim[inici + j] + i * pre[inici + j];
+            }
+        }
+
+        for (int i = 0; i < numParams; i++)
+            gradient[i] = new Complex(are[i], aim[i]);
+
+        return new Complex(vre[resultat], vim[resultat]);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+/**
+ * Rep l'avanç d'un càlcul llarg, i permet aturar-lo.
+ */
+public interface Progres {
+    /**
+     * Indica quina part del càlcul s'ha fet.
+     * @param fraccio La part feta, entre 0 i 1.
+     * @throws InterruptedException Si s'ha d'aturar el càlcul.
+     */
+    void actualitzar(double fraccio) throws InterruptedException;
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.util.Arrays;
+
+/**
+ * Conjunt de registres on es guarden nombres complexos com a parells de doubles,
+ * per poder evaluar expressions sense crear cap objecte.
+ * El registre i està format per re[i] (part real) i im[i] (part imaginària).
+ */
+public class RegistresComplexos {
+    /**
+     * Parts reals dels registres.
+     */
+    public double[] re;
+
+    /**
+     * Parts imaginàries dels registres.
+     */
+    public double[] im;
+
+    /**
+     * Crear un conjunt de registres.
+     * @param mida El nombre inicial de registres.
+     */
+    public RegistresComplexos(int mida) {
+        re = new double[mida];
+        im = new double[mida];
+    }
+
+    /**
+     * Assegura que hi hagi com a mínim el nombre de registres indicat, conservant-ne
+     * el contingut. Com que pot canviar els vectors re i im, no se'n poden guardar
+     * referències mentre s'evalua una expressió.
+     * @param mida El nombre de registres necessaris.
+     */
+    public void assegurar(int mida) {
+        if (mida > re.length) {
+            int novaMida = Math.max(mida, re.length * 2);
+            re = Arrays.copyOf(re, novaMida);
+            im = Arrays.copyOf(im, novaMida);
+        }
+    }
+
+    /**
+     * Obtè el valor d'un registre.
+     * @param i L'index del registre.
+     * @return El valor del registre.
+     */
+    public Complex get(int i) {
+        return new Complex(re[i], im[i]);
+    }
+
+    /**
+     * Canvia el valor d'un registre.
+     * @param i L'index del registre.
+     * @param c El nou valor.
+     */
+    public void set(int i, Complex c) {
+        re[i] = c.re();
+        im[i] = c.im();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.util.Arrays;
+
+/**
+ * Registres on es guarden nombres duals: el valor d'una expressió i el de la seva
+ * derivada, tots dos complexos. El valor del registre i és a re[i] i im[i] (com a
+ * RegistresComplexos) i el de la derivada a dre[i] i dim[i].
+ */
+public class RegistresDuals extends RegistresComplexos {
+    /**
+     * Parts reals de les derivades.
+     */
+    public double[] dre;
+
+    /**
+     * Parts imaginàries de les derivades.
+     */
+    public double[] dim;
+
+    /**
+     * Crear un conjunt de registres.
+     * @param mida El nombre inicial de registres.
+     */
+    public RegistresDuals(int mida) {
+        super(mida);
+        dre = new double[mida];
+        dim = new double[mida];
+    }
+
+    @Override public void assegurar(int mida) {
+        super.assegurar(mida);
+        if (dre.length < re.length) {
+            dre = Arrays.copyOf(dre, re.length);
+            dim = Arrays.copyOf(dim, re.length);
+        }
+    }
+
+    /**
+     * Obtè la derivada d'un registre.
+     * @param i L'index del registre.
+     * @return La derivada.
+     */
+    public Complex getDerivada(int i) {
+        return new Complex(dre[i], dim[i]);
+    }
+
+    /**
+     * Canvia el valor d'un registre i de la seva derivada.
+     * @param i L'index del registre.
+     * @param valor El nou valor.
+     * @param derivada La nova derivada.
+     */
+    public void set(int i, Complex valor, Complex derivada) {
+        set(i, valor);
+        dre[i] = derivada.re();
+        dim[i] = derivada.im();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.util.Arrays;
+
+/**
+ * Sèrie de Taylor truncada d'una funció al voltant d'un punt: els coeficients
+ * c0, c1... cn del polinomi c0 + c1*h + ... + cn*h^n, on c_i = f^(i)(x0) / i!.
+ * Els coeficients són complexos, amb la part real a re[i] i la imaginària a im[i].
+ * Les operacions entre sèries es fan amb les recurrències habituals, de cost O(n²).
+ */
+public class SerieTaylor {
+    /**
+     * Parts reals dels coeficients.
+     */
+    public final double[] re;
+
+    /**
+     * Parts imaginàries dels coeficients.
+     */
+    public final double[] im;
+
+    /**
+     * Crear una sèrie amb tots els coeficients a zero.
+     * @param grau El grau de la sèrie.
+     */
+    public SerieTaylor(int grau) {
+        re = new double[grau + 1];
+        im = new double[grau + 1];
+    }
+
+    /**
+     * Crear la sèrie d'una constant.
+     * @param c La constant.
+     * @param grau El grau de la sèrie.
+     * @return La sèrie.
+     */
+    public static SerieTaylor constant(Complex c, int grau) {
+        SerieTaylor s = new SerieTaylor(grau);
+        s.set(0, c);
+        return s;
+    }
+
+    /**
+     * Crear la sèrie de la variable respecte la que es desenvolupa (x0 + h).
+     * @param x0 El punt on es desenvolupa.
+     * @param grau El grau de la sèrie.
+     * @return La sèrie.
+     */
+    public static SerieTaylor variable(Complex x0, int grau) {
+        SerieTaylor s = constant(x0, grau);
+        if (grau > 0)
+            s.re[1] = 1.0;
+        return s;
+    }
+
+    /**
+     * Obtè el grau de la sèrie.
+     * @return El grau.
+     */
+    public int grau() {
+        return re.length - 1;
+    }
+
+    /**
+     * Obtè un coeficient.
+     * @param i L'index del coeficient.
+     * @return El coeficient.
+     */
+    public Complex get(int i) {
+        return new Complex(re[i], im[i]);
+    }
+
+    /**
+     * Canvia un coeficient.
+     * @param i L'index del coeficient.
+     * @param c El nou valor.
+     */
+    public void set(int i, Complex c) {
+        re[i] = c.re();
+        im[i] = c.im();
+    }
+
+    /**
+     * Calcula el polinomi en un punt, amb la regla de Horner.
+     * @param h La distància al punt on s'ha desenvolupat la sèrie.
+     * @return El valor del polinomi.
+     */
+    public Complex evaluar(Complex h) {
+        double hr = h.re(), hi = h.im(), r = 0, i = 0;
+        for (int n = grau(); n >= 0; n--) {
+            double t = r * hr - i * hi + re[n];
+            i = r * hi + i * hr + im[n];
+            r = t;
+        }
+        return new Complex(r, i);
+    }
+
+    /**
+     * Calcula la derivada del polinomi en un punt.
+     * @param h La distància al punt on s'ha desenvolupat la sèrie.
+     * @return El valor de la derivada del polinomi.
+     */
+    public Complex evaluarDerivada(Complex h) {
+        double hr = h.re(), hi = h.im(), r = 0, i = 0;
+        for (int n = grau(); n >= 1; n--) {
+            double t = r * hr - i * hi + n * re[n];
+            i = r * hi + i * hr + n * im[n];
+            r = t;
+        }
+        return new Complex(r, i);
+    }
+
+    public static SerieTaylor sumar(SerieTaylor a, SerieTaylor b) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        for (int n = 0; n < s.re.length; n++) {
+            s.re[n] = a.re[n] + b.re[n];
+            s.im[n] = a.im[n] + b.im[n];
+        }
+        return s;
+    }
+
+    public static SerieTaylor negar(SerieTaylor a) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        for (int n = 0; n < s.re.length; n++) {
+            s.re[n] = -a.re[n];
+            s.im[n] = -a.im[n];
+        }
+        return s;
+    }
+
+    public static SerieTaylor multiplicar(SerieTaylor a, SerieTaylor b) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        for (int n = 0; n < s.re.length; n++) {
+            double r = 0, i = 0;
+            for (int j = 0; j <= n; j++) {
+                r += a.re[j] * b.re[n - j] - a.im[j] * b.im[n - j];
+                i += a.re[j] * b.im[n - j] + a.im[j] * b.re[n - j];
+            }
+            s.re[n] = r;
+            s.im[n] = i;
+        }
+        return s;
+    }
+
+    /**
+     * Calcula 1/a: q0 = 1/a0, qn = -(a1*q(n-1) + ... + an*q0) / a0.
+     */
+    public static SerieTaylor invers(SerieTaylor a) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        double d = a.re[0] * a.re[0] + a.im[0] * a.im[0];
+        double ir = a.re[0] / d, ii = -a.im[0] / d;
+        s.re[0] = ir;
+        s.im[0] = ii;
+        for (int n = 1; n < s.re.length; n++) {
+            double r = 0, i = 0;
+            for (int j = 1; j <= n; j++) {
+                r += a.re[j] * s.re[n - j] - a.im[j] * s.im[n - j];
+                i += a.re[j] * s.im[n - j] + a.im[j] * s.re[n - j];
+            }
+            s.re[n] = -(r * ir - i * ii);
+            s.im[n] = -(r * ii + i * ir);
+        }
+        return s;
+    }
+
+    /**
+     * Calcula e^a: e0 = exp(a0), en = (1*a1*e(n-1) + ... + n*an*e0) / n.
+     */
+    public static SerieTaylor exp(SerieTaylor a) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        double m = Math.exp(a.re[0]);
+        s.re[0] = m * Math.cos(a.im[0]);
+        s.im[0] = m * Math.sin(a.im[0]);
+        for (int n = 1; n < s.re.length; n++) {
+            double r = 0, i = 0;
+            for (int j = 1; j <= n; j++) {
+                r += j * (a.re[j] * s.re[n - j] - a.im[j] * s.im[n - j]);
+                i += j * (a.re[j] * s.im[n - j] + a.im[j] * s.re[n - j]);
+            }
+            s.re[n] = r / n;
+            s.im[n] = i / n;
+        }
+        return s;
+    }
+
+    /**
+     * Calcula ln(a): l0 = ln(a0), ln = (an - (1*l1*a(n-1) + ... + (n-1)*l(n-1)*a1) / n) / a0.
+     */
+    public static SerieTaylor ln(SerieTaylor a) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        s.re[0] = Math.log(Math.hypot(a.re[0], a.im[0]));
+        s.im[0] = Math.atan2(a.im[0], a.re[0]);
+        double d = a.re[0] * a.re[0] + a.im[0] * a.im[0];
+        double ir = a.re[0] / d, ii = -a.im[0] / d;
+        for (int n = 1; n < s.re.length; n++) {
+            double r = 0, i = 0;
+            for (int j = 1; j < n; j++) {
+                r += j * (s.re[j] * a.re[n - j] - s.im[j] * a.im[n - j]);
+                i += j * (s.re[j] * a.im[n - j] + s.im[j] * a.re[n - j]);
+            }
+            r = a.re[n] - r / n;
+            i = a.im[n] - i / n;
+            s.re[n] = r * ir - i * ii;
+            s.im[n] = r * ii + i * ir;
+        }
+        return s;
+    }
+
+    /**
+     * Calcula sin(a) i cos(a) alhora, ja que les seves recurrències depenen l'una de l'altra:
+     * sn = (1*a1*c(n-1) + ... + n*an*c0) / n, cn = -(1*a1*s(n-1) + ... + n*an*s0) / n.
+     * @param a La sèrie, amb a0 real.
+     * @return Les sèries del sinus i del cosinus.
+     */
+    public static SerieTaylor[] sinCos(SerieTaylor a) {
+        SerieTaylor s = new SerieTaylor(a.grau()), c = new SerieTaylor(a.grau());
+        s.re[0] = Math.sin(a.re[0]);
+        c.re[0] = Math.cos(a.re[0]);
+        for (int n = 1; n < s.re.length; n++) {
+            double sr = 0, si = 0, cr = 0, ci = 0;
+            for (int j = 1; j <= n; j++) {
+                sr += j * (a.re[j] * c.re[n - j] - a.im[j] * c.im[n - j]);
+                si += j * (a.re[j] * c.im[n - j] + a.im[j] * c.re[n - j]);
+                cr += j * (a.re[j] * s.re[n - j] - a.im[j] * s.im[n - j]);
+                ci += j * (a.re[j] * s.im[n - j] + a.im[j] * s.re[n - j]);
+            }
+            s.re[n] = sr / n;
+            s.im[n] = si / n;
+            c.re[n] = -cr / n;
+            c.im[n] = -ci / n;
+        }
+        return new SerieTaylor[] { s, c };
+    }
+
+    /**
+     * Calcula a^e, amb un exponent constant real. Si a0 no és zero, s'utilitza la
+     * recurrència pn = ((e*1 - (n-1))*a1*p(n-1) + ... + (e*n - 0)*an*p0) / (n*a0).
+     * Si a0 és zero, només es pot calcular amb exponents naturals, multiplicant.
+     * @param a La base.
+     * @param e L'exponent.
+     * @param p0 El valor de a0^e.
+     * @return La sèrie.
+     */
+    public static SerieTaylor potencia(SerieTaylor a, double e, Complex p0) {
+        SerieTaylor s = new SerieTaylor(a.grau());
+        if (a.re[0] == 0 && a.im[0] == 0) {
+            if (e != Math.rint(e) || e < 0 || e > Integer.MAX_VALUE) {
+                Arrays.fill(s.re, Double.NaN);
+                s.set(0, p0);
+                return s;
+            }
+
+            // Potència per quadrats successius
+            SerieTaylor resultat = constant(Complex.U, a.grau()), base = a;
+            for (long k = (long)e; k > 0; k >>= 1) {
+                if ((k & 1) != 0)
+                    resultat = multiplicar(resultat, base);
+                base = multiplicar(base, base);
+            }
+            resultat.set(0, p0);
+            return resultat;
+        }
+
+        s.set(0, p0);
+        double d = a.re[0] * a.re[0] + a.im[0] * a.im[0];
+        double ir = a.re[0] / d, ii = -a.im[0] / d;
+        for (int n = 1; n < s.re.length; n++) {
+            double r = 0, i = 0;
+            for (int j = 1; j <= n; j++) {
+                double k = e * j - (n - j);
+                r += k * (a.re[j] * s.re[n - j] - a.im[j] * s.im[n - j]);
+                i += k * (a.re[j] * s.im[n - j] + a.im[j] * s.re[n - j]);
+            }
+            r /= n;
+            i /= n;
+            s.re[n] = r * ir - i * ii;
+            s.im[n] = r * ii + i * ir;
+        }
+        return s;
+    }
+
+    /**
+     * Calcula la derivada de la sèrie respecte h, amb un grau menys.
+     * @param a La sèrie.
+     * @return La sèrie derivada.
+     */
+    public static SerieTaylor derivar(SerieTaylor a) {
+        SerieTaylor s = new SerieTaylor(Math.max(a.grau() - 1, 0));
+        for (int n = 0; n + 1 < a.re.length; n++) {
+            s.re[n] = (n + 1) * a.re[n + 1];
+            s.im[n] = (n + 1) * a.im[n + 1];
+        }
+        return s;
+    }
+
+    /**
+     * Calcula la primitiva de la sèrie respecte h, amb un grau més.
+     * @param a La sèrie.
+     * @param c0 La constant d'integració.
+     * @return La sèrie integrada.
+     */
+    public static SerieTaylor integrar(SerieTaylor a, Complex c0) {
+        SerieTaylor s = new SerieTaylor(a.grau() + 1);
+        s.set(0, c0);
+        for (int n = 0; n < a.re.length; n++) {
+            s.re[n + 1] = a.re[n] / (n + 1);
+            s.im[n + 1] = a.im[n] / (n + 1);
+        }
+        return s;
+    }
+
+    /**
+     * Obtè la sèrie truncada a un grau menor.
+     * @param a La sèrie.
+     * @param grau El nou grau.
+     * @return La sèrie truncada.
+     */
+    public static SerieTaylor truncar(SerieTaylor a, int grau) {
+        SerieTaylor s = new SerieTaylor(grau);
+        System.arraycopy(a.re, 0, s.re, 0, Math.min(a.re.length, s.re.length));
+        System.arraycopy(a.im, 0, s.im, 0, Math.min(a.im.length, s.im.length));
+        return s;
+    }
+
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < re.length; n++) {
+            if (n != 0)
+                sb.append(" + ");
+            sb.append('(').append(get(n)).append(")*h^").append(n);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import calcbatx.funcions.*;
+
+/**
+ * Simplifica expressions aplicant regles algebraiques: elements neutres
+ * (x+0, x*1, x^1), elements absorbents (x*0), dobles negacions i inversos,
+ * càlcul de les parts constants i agrupació de termes semblants (2*x+3*x = 5*x).
+ * Està pensat per les derivades, que sense simplificar s'omplen d'aquestes
+ * expressions i creixen molt ràpidament.
+ *
+ * Les regles es poden aplicar sense canviar el resultat en tots els punts on
+ * l'expressió original està definida, excepte quan el terme que s'elimina
+ * (multiplicat per zero o anul·lat per un altre) és infinit o indefinit.
+ */
+public class Simplificador {
+    /**
+     * Nombre màxim de passades sobre l'expressió, per si les regles no arribessin
+     * mai a una expressió que ja no canvia.
+     */
+    private static final int MAX_PASSADES = 16;
+
+    /**
+     * Nodes ja simplificats en aquesta passada.
+     */
+    private final Map<Expressio, Expressio> fets = new IdentityHashMap<Expressio, Expressio>();
+
+    /**
+     * Indica si algun node ha canviat en aquesta passada.
+     */
+    private boolean canviat = false;
+
+    /**
+     * Versió de la llista de funcions amb la que es simplifica.
+     */
+    private final int versio;
+
+    private Simplificador(int versio) {
+        this.versio = versio;
+    }
+
+    /**
+     * Simplifica una expressió, aplicant les regles fins que ja no canvia
+     * (com a molt MAX_PASSADES vegades).
+     * @param e L'expressió a simplificar.
+     * @return L'expressió simplificada, internada.
+     */
+    public static Expressio simplificar(Expressio e) {
+        e = FabricaExpressions.internar(e);
+        int versio = Funcio.versio();
+        for (int i = 0; i < MAX_PASSADES; i++) {
+            Simplificador s = new Simplificador(versio);
+            Expressio resultat = s.passada(e);
+            if (!s.canviat) {
+                // Tots els nodes que no han canviat ja no es poden simplificar més
+                for (Expressio node : s.fets.keySet())
+                    node.versioSimplificada = versio;
+                return resultat;
+            }
+            e = resultat;
+        }
+
+        return e;
+    }
+
+    /**
+     * Aplica les regles un cop a tots els nodes d'una expressió, començant per les fulles.
+     * @param e L'expressió.
+     * @return L'expressió resultant, internada.
+     */
+    private Expressio passada(Expressio e) {
+        if (e.versioSimplificada == versio || !(e instanceof ExpressioFuncio))
+            return e;
+
+        Expressio resultat = fets.get(e);
+        if (resultat != null)
+            return resultat;
+
+        ExpressioFuncio ef = (ExpressioFuncio)e;
+        Expressio[] parametres = new Expressio[ef.parametres.length];
+        boolean parametresCanviats = false;
+        for (int i = 0; i < parametres.length; i++) {
+            parametres[i] = passada(ef.parametres[i]);
+            if (parametres[i] != ef.parametres[i])
+                parametresCanviats = true;
+        }
+
+        resultat = FabricaExpressions.internar(reescriure(parametresCanviats ? new ExpressioFuncio(ef.nom, parametres) : ef));
+        if (resultat != e)
+            canviat = true;
+
+        fets.put(e, resultat);
+        return resultat;
+    }
+
+    /**
+     * Aplica les regles a un node, amb els paràmetres ja simplificats.
+     * @param ef El node.
+     * @return El node simplificat.
+     */
+    private static Expressio reescriure(ExpressioFuncio ef) {
+        Expressio plegat = Optimitzador.plegar(ef);
+        if (plegat != ef)
+            return plegat;
+
+        Funcio f = funcio(ef);
+        Expressio[] p = ef.parametres;
+        if (f instanceof FuncioSumar)
+            return agruparTermes(ef);
+
+        if (f instanceof FuncioMultiplicar)
+            return agruparFactors(ef);
+
+        if (f instanceof FuncioNegar) {
+            // -(-x) = x
+            if (funcio(p[0]) instanceof FuncioNegar)
+                return ((ExpressioFuncio)p[0]).parametres[0];
+
+            // -(c*x) = (-c)*x
+            if (funcio(p[0]) instanceof FuncioMultiplicar)
+                return agruparFactors(ef);
+        }
+
+        if (f instanceof FuncioInvers) {
+            // 1/(1/x) = x
+            if (funcio(p[0]) instanceof FuncioInvers)
+                return ((ExpressioFuncio)p[0]).parametres[0];
+        }
+
+        if (f instanceof FuncioElevar) {
+            // x^1 = x, x^0 = 1
+            if (esNombre(p[1], Complex.U))
+                return p[0];
+            if (esNombre(p[1], Complex.ZERO))
+                return new ExpressioNombre(Complex.U);
+        }
+
+        return ef;
+    }
+
+    /**
+     * Agrupa els termes d'una suma (incloent les sumes i negacions que conté):
+     * suma les constants i els coeficients dels termes iguals, i elimina els que
+     * queden multiplicats per zero.
+     * @param e La suma.
+     * @return La suma simplificada.
+     */
+    private static Expressio agruparTermes(Expressio e) {
+        Map<Expressio, Expressio> termes = new LinkedHashMap<Expressio, Expressio>();
+        Expressio[] constant = new Expressio[] { new ExpressioNombre(Complex.ZERO) };
+        recollirTermes(e, false, termes, constant);
+
+        List<Expressio> resultat = new ArrayList<Expressio>();
+        for (Map.Entry<Expressio, Expressio> terme : termes.entrySet()) {
+            Expressio coeficient = terme.getValue();
+            if (!esNombre(coeficient, Complex.ZERO))
+                resultat.add(multiplicar(coeficient, terme.getKey()));
+        }
+
+        if (!esNombre(constant[0], Complex.ZERO) || resultat.isEmpty())
+            resultat.add(constant[0]);
+
+        // Tornar a construir la suma, niuada per la dreta com al processador
+        Expressio suma = resultat.get(resultat.size() - 1);
+        for (int i = resultat.size() - 2; i >= 0; i--)
+            suma = new ExpressioFuncio("sumar", new Expressio[] { resultat.get(i), suma });
+
+        return suma;
+    }
+
+    /**
+     * Afegeix els termes d'una expressió a la llista de termes d'una suma.
+     * @param e L'expressió.
+     * @param negat Si l'expressió està negada.
+     * @param termes Els termes, amb el seu coeficient.
+     * @param constant La suma de les constants.
+     */
+    private static void recollirTermes(Expressio e, boolean negat, Map<Expressio, Expressio> termes, Expressio[] constant) {
+        Funcio f = funcio(e);
+        if (f instanceof FuncioSumar) {
+            for (Expressio p : ((ExpressioFuncio)e).parametres)
+                recollirTermes(p, negat, termes, constant);
+            return;
+        }
+
+        if (f instanceof FuncioNegar) {
+            recollirTermes(((ExpressioFuncio)e).parametres[0], !negat, termes, constant);
+            return;
+        }
+
+        if (e instanceof ExpressioNombre) {
+            constant[0] = calcular("sumar", constant[0], negat ? calcular("negar", e) : e);
+            return;
+        }
+
+        // Separar el coeficient constant del terme
+        Expressio coeficient = new ExpressioNombre(Complex.U);
+        if (f instanceof FuncioMultiplicar && ((ExpressioFuncio)e).parametres[0] instanceof ExpressioNombre) {
+            coeficient = ((ExpressioFuncio)e).parametres[0];
+            e = ((ExpressioFuncio)e).parametres[1];
+        }
+        if (negat)
+            coeficient = calcular("negar", coeficient);
+
+        Expressio anterior = termes.get(e);
+        termes.put(e, anterior == null ? coeficient : calcular("sumar", anterior, coeficient));
+    }
+
+    /**
+     * Agrupa els factors d'un producte (incloent els productes i negacions que conté):
+     * multiplica les constants i les posa al davant.
+     * @param e El producte.
+     * @return El producte simplificat.
+     */
+    private static Expressio agruparFactors(Expressio e) {
+        List<Expressio> factors = new ArrayList<Expressio>();
+        Expressio constant = recollirFactors(e, new ExpressioNombre(Complex.U), factors);
+
+        if (esNombre(constant, Complex.ZERO) || factors.isEmpty())
+            return constant;
+
+        Expressio producte = factors.get(factors.size() - 1);
+        for (int i = factors.size() - 2; i >= 0; i--)
+            producte = new ExpressioFuncio("multiplicar", new Expressio[] { factors.get(i), producte });
+
+        return multiplicar(constant, producte);
+    }
+
+    /**
+     * Afegeix els factors d'una expressió a la llista de factors d'un producte.
+     * @param e L'expressió.
+     * @param constant El producte de les constants fins ara.
+     * @param factors Els factors no constants.
+     * @return El producte de les constants, incloent les de l'expressió.
+     */
+    private static Expressio recollirFactors(Expressio e, Expressio constant, List<Expressio> factors) {
+        Funcio f = funcio(e);
+        if (f instanceof FuncioMultiplicar) {
+            for (Expressio p : ((ExpressioFuncio)e).parametres)
+                constant = recollirFactors(p, constant, factors);
+        } else if (f instanceof FuncioNegar) {
+            constant = recollirFactors(((ExpressioFuncio)e).parametres[0], calcular("negar", constant), factors);
+        } else if (e instanceof ExpressioNombre) {
+            constant = calcular("multiplicar", constant, e);
+        } else {
+            factors.add(e);
+        }
+
+        return constant;
+    }
+
+    /**
+     * Construeix el producte d'un coeficient constant per una expressió, sense
+     * multiplicar quan el coeficient és 1 o -1.
+     * @param coeficient El coeficient.
+     * @param e L'expressió.
+     * @return El producte.
+     */
+    private static Expressio multiplicar(Expressio coeficient, Expressio e) {
+        if (esNombre(coeficient, Complex.U))
+            return e;
+
+        if (esNombre(coeficient, new Complex(-1)))
+            return new ExpressioFuncio("negar", new Expressio[] { e });
+
+        return new ExpressioFuncio("multiplicar", new Expressio[] { coeficient, e });
+    }
+
+    /**
+     * Calcula una funció bàsica sobre paràmetres constants.
+     * @param nom El nom de la funció.
+     * @param params Els paràmetres.
+     * @return El resultat, o la crida a la funció si no es pot calcular.
+     */
+    private static Expressio calcular(String nom, Expressio... params) {
+        return Optimitzador.plegar(new ExpressioFuncio(nom, params));
+    }
+
+    /**
+     * Comprova si una expressió és un nombre concret.
+     * @param e L'expressió.
+     * @param valor El nombre.
+     * @return true si l'expressió és el nombre.
+     */
+    private static boolean esNombre(Expressio e, Complex valor) {
+        return e instanceof ExpressioNombre && ((ExpressioNombre)e).getValor().equals(valor);
+    }
+
+    /**
+     * Obtè la funció a la que crida una expressió.
+     * @param e L'expressió.
+     * @return La funció, o null si l'expressió no és una crida a una funció existent.
+     */
+    private static Funcio funcio(Expressio e) {
+        if (!(e instanceof ExpressioFuncio))
+            return null;
+
+        try {
+            return ((ExpressioFuncio)e).getFuncio();
+        } catch (ExpressioException exception) {
+            return null;
+        }
+    }
+}
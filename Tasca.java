@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx;
+
+import java.util.List;
+
+/**
+ * Càlcul que s'executa en un fil de fons amb un PlanificadorTasques.
+ * El mètode calcular s'executa al fil de fons, i la resta de mètodes que es
+ * poden sobreescriure s'executen al fil d'events de Swing, només si la tasca no
+ * s'ha cancel·lat ni se n'ha programat una altra amb la mateixa clau.
+ * @param <T> Tipus del resultat.
+ * @param <V> Tipus dels resultats parcials.
+ */
+public abstract class Tasca<T, V> implements Progres {
+    /**
+     * El treballador que executa la tasca, o null si encara no s'ha començat.
+     */
+    volatile PlanificadorTasques.Treballador<T, V> treballador = null;
+
+    /**
+     * Fer el càlcul, al fil de fons.
+     * @return El resultat.
+     * @throws Exception
+     */
+    protected abstract T calcular() throws Exception;
+
+    /**
+     * Rebre resultats parcials publicats amb publicar.
+     * @param valors Els resultats parcials, en l'ordre en què s'han publicat.
+     */
+    protected void parcials(List<V> valors) {
+    }
+
+    /**
+     * Rebre l'avanç del càlcul.
+     * @param percentatge El percentatge fet, de 0 a 100.
+     */
+    protected void progres(int percentatge) {
+    }
+
+    /**
+     * Rebre el resultat del càlcul.
+     * @param resultat El resultat.
+     */
+    protected abstract void acabar(T resultat);
+
+    /**
+     * Rebre l'error que ha aturat el càlcul.
+     * @param e L'excepció.
+     */
+    protected void fallar(Exception e) {
+    }
+
+    /**
+     * Publicar un resultat parcial, des del fil de fons.
+     * @param valor El resultat parcial.
+     */
+    protected final void publicar(V valor) {
+        treballador.publicarParcial(valor);
+    }
+
+    /**
+     * Indica si s'ha cancel·lat la tasca, perquè el càlcul s'aturi.
+     */
+    protected final boolean cancelada() {
+        return treballador.isCancelled() || Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Actualitzar l'avanç del càlcul, des del fil de fons.
+     * @param fraccio La part feta, entre 0 i 1.
+     * @throws InterruptedException Si s'ha cancel·lat la tasca.
+     */
+    public final void actualitzar(double fraccio) throws InterruptedException {
+        if (cancelada())
+            throw new InterruptedException();
+        treballador.canviarProgres((int)Math.max(0, Math.min(100, fraccio * 100)));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx.api;
+
+import calcbatx.Complex;
+import calcbatx.ExpressioException;
+import calcbatx.Funcio;
+import calcbatx.FuncioUsuari;
+import calcbatx.Integral;
+import calcbatx.IntegralAdaptativa;
+import calcbatx.Polinomi;
+import calcbatx.ProcessadorExpressio;
+import calcbatx.ProcessadorExpressioException;
+import calcbatx.ProcessadorPolinomi;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Interfície per fer els càlculs de la calculadora sense la finestra: evaluar,
+ * tabular, integrar i trobar les arrels de funcions d'x. Només depèn de les
+ * classes de càlcul, de manera que es pot utilitzar en servidors sense pantalla
+ * sense carregar mai les classes d'AWT ni de Swing.
+ *
+ * Les funcions s'escriuen com a l'entrada de la finestra, és a dir, només el cos
+ * d'una funció d'x (per exemple "x^2+sin(x)"). No és segura per utilitzar des
+ * de diversos fils alhora; cada fil n'ha de tenir una.
+ */
+public class Calculadora {
+    /**
+     * Processadors per les funcions i pels valors, que aprofiten l'anàlisi
+     * anterior quan s'hi passen textos semblants.
+     */
+    private final ProcessadorExpressio processadorFuncio = new ProcessadorExpressio("");
+    private final ProcessadorExpressio processadorValor = new ProcessadorExpressio("");
+
+    /**
+     * Afegir una funció a la llista de funcions, perquè es pugui utilitzar a les
+     * altres funcions.
+     * @param definicio La definició de la funció, per exemple "g(x,y)=x*y".
+     * @throws ProcessadorExpressioException Si la definició no és vàlida.
+     */
+    public void definir(String definicio) throws ProcessadorExpressioException {
+        Funcio.afegir(new ProcessadorExpressio(definicio).processar());
+    }
+
+    /**
+     * Obtè una funció d'x.
+     * @param cos El cos de la funció.
+     * @return La funció.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     */
+    public FuncioUsuari funcio(String cos) throws ProcessadorExpressioException {
+        return processadorFuncio.processar("f(x)=".concat(cos));
+    }
+
+    /**
+     * Obtè una funció d'x, comprovant que existeixin les funcions que crida. Les
+     * integrals donen NaN si no es pot calcular algun punt, i així es distingeix
+     * una funció mal escrita d'una que no és finita a l'interval.
+     * @param cos El cos de la funció.
+     * @return La funció.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si el cos crida funcions que no existeixen.
+     */
+    private FuncioUsuari funcioComprovada(String cos) throws ProcessadorExpressioException, ExpressioException {
+        FuncioUsuari f = funcio(cos);
+        f.comprovarFuncions();
+        return f;
+    }
+
+    /**
+     * Calcular el valor d'una expressió sense variables, per exemple "2+3i".
+     * @param expressio L'expressió.
+     * @return El valor.
+     * @throws ProcessadorExpressioException Si l'expressió no és vàlida.
+     * @throws ExpressioException Si no es pot calcular.
+     */
+    public Complex valor(String expressio) throws ProcessadorExpressioException, ExpressioException {
+        return processadorValor.processar("x=".concat(expressio)).calcular(null);
+    }
+
+    /**
+     * Evaluar una funció d'x en un punt.
+     * @param cos El cos de la funció.
+     * @param x El valor d'x.
+     * @return El resultat.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si no es pot calcular.
+     */
+    public Complex evaluar(String cos, Complex x) throws ProcessadorExpressioException, ExpressioException {
+        return funcio(cos).calcular(new Complex[] { x });
+    }
+
+    /**
+     * Tabular una funció d'x en punts equidistants d'un interval, extrems inclosos.
+     * @param cos El cos de la funció.
+     * @param inici L'extrem inferior.
+     * @param fi L'extrem superior.
+     * @param passos El nombre d'intervals; es calculen passos + 1 punts.
+     * @return Els valors d'x, les parts reals i les parts imaginàries dels
+     * resultats, en aquest ordre.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si no es pot calcular.
+     */
+    public double[][] tabular(String cos, double inici, double fi, int passos)
+            throws ProcessadorExpressioException, ExpressioException {
+        if (passos < 1)
+            throw new IllegalArgumentException("Hi ha d'haver com a mínim un pas.");
+
+        double[] xs = new double[passos + 1];
+        double h = (fi - inici) / passos;
+        for (int i = 0; i <= passos; i++)
+            xs[i] = inici + h * i;
+
+        double[] re = new double[xs.length], im = new double[xs.length];
+        funcio(cos).calcularLot(xs, re, im);
+        return new double[][] { xs, re, im };
+    }
+
+    /**
+     * Escriure la taula de valors d'una funció d'x en punts equidistants d'un
+     * interval, per blocs, sense guardar-la sencera a memòria.
+     * @param cos El cos de la funció.
+     * @param inici L'extrem inferior.
+     * @param fi L'extrem superior.
+     * @param passos El nombre d'intervals; s'escriuen passos + 1 files.
+     * @param canal On s'escriu la taula. No es tanca.
+     * @param format Tabulador.CSV o Tabulador.BINARI.
+     * @return El nombre de files escrites.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si no es pot calcular.
+     * @throws IOException Si no es pot escriure.
+     * @throws InterruptedException Si s'ha interromput el fil.
+     */
+    public long tabular(String cos, double inici, double fi, long passos, WritableByteChannel canal, int format)
+            throws ProcessadorExpressioException, ExpressioException, IOException, InterruptedException {
+        return new Tabulador(funcio(cos), inici, fi, passos, format).escriure(canal, null);
+    }
+
+    /**
+     * Evaluar una funció d'x sobre tots els valors d'un fitxer de doubles
+     * little-endian, i escriure'n la part real a un altre fitxer amb el mateix format.
+     * @param cos El cos de la funció.
+     * @param entrada El fitxer amb els valors d'x.
+     * @param sortida El fitxer on s'escriuen els resultats.
+     * @return El nombre de resultats que tenien part imaginària.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si no es pot calcular.
+     * @throws IOException Si no es poden llegir o escriure els fitxers.
+     */
+    public long evaluarFitxer(String cos, Path entrada, Path sortida)
+            throws ProcessadorExpressioException, ExpressioException, IOException {
+        return new EvaluadorFitxer(funcio(cos)).evaluar(entrada, sortida);
+    }
+
+    /**
+     * Calcular la integral definida d'una funció d'x.
+     * @param cos El cos de la funció.
+     * @param extrem1 Extrem inferior.
+     * @param extrem2 Extrem superior.
+     * @param parts Nombre de trapezis.
+     * @return La integral, o NaN si no s'ha pogut calcular.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si el cos crida funcions que no existeixen.
+     */
+    public Complex integrar(String cos, double extrem1, double extrem2, int parts)
+            throws ProcessadorExpressioException, ExpressioException {
+        return Integral.calcular(funcioComprovada(cos), extrem1, extrem2, parts);
+    }
+
+    /**
+     * Calcular la integral definida d'una funció d'x amb quadratura adaptativa.
+     * @param cos El cos de la funció.
+     * @param extrem1 Extrem inferior.
+     * @param extrem2 Extrem superior.
+     * @param tolerancia Error màxim, absolut si la integral és menor que 1 i
+     * relatiu si és més gran.
+     * @return La integral, amb l'error estimat i el nombre d'avaluacions.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si el cos crida funcions que no existeixen.
+     */
+    public IntegralAdaptativa integrarAdaptativa(String cos, double extrem1, double extrem2, double tolerancia)
+            throws ProcessadorExpressioException, ExpressioException {
+        return IntegralAdaptativa.calcular(funcioComprovada(cos), extrem1, extrem2, tolerancia);
+    }
+
+    /**
+     * Obtè el polinomi que és una funció d'x.
+     * @param cos El cos de la funció.
+     * @return El polinomi.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si la funció no és un polinomi.
+     */
+    public Polinomi polinomi(String cos) throws ProcessadorExpressioException, ExpressioException {
+        return new ProcessadorPolinomi(funcio(cos)).processar();
+    }
+
+    /**
+     * Trobar les arrels d'un polinomi.
+     * @param cos El cos de la funció, que ha de ser un polinomi.
+     * @return Les arrels.
+     * @throws ProcessadorExpressioException Si el cos no és vàlid.
+     * @throws ExpressioException Si la funció no és un polinomi.
+     */
+    public Complex[] arrels(String cos) throws ProcessadorExpressioException, ExpressioException {
+        return polinomi(cos).trobarArrels();
+    }
+}
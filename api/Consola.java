@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx.api;
+
+import calcbatx.Complex;
+import calcbatx.ExpressioException;
+import calcbatx.IntegralAdaptativa;
+import calcbatx.ProcessadorExpressioException;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Punt d'entrada de la calculadora sense finestra. Executa una ordre passada com
+ * a arguments o, si no n'hi ha cap, les ordres de l'entrada estàndard, una per
+ * línia. Els arguments es poden agrupar amb cometes dobles.
+ *
+ * Les ordres són:
+ * <pre>
+ *   definir &lt;definició&gt;                          Afegir una funció, p.ex. g(x)=x^2
+ *   evaluar &lt;funció&gt; &lt;x&gt;...                      Valor de la funció a cada x
+ *   tabular &lt;funció&gt; &lt;inici&gt; &lt;fi&gt; &lt;passos&gt; [fitxer [csv|binari]]
+ *                                                Taula de valors equidistants
+ *   fitxer &lt;funció&gt; &lt;entrada&gt; &lt;sortida&gt;           f(x) per tots els doubles d'un fitxer
+ *   integrar &lt;funció&gt; &lt;extrem1&gt; &lt;extrem2&gt; [parts]  Integral definida amb trapezis
+ *   quadratura &lt;funció&gt; &lt;extrem1&gt; &lt;extrem2&gt; [tolerància]
+ *                                                Integral adaptativa, i el seu error estimat
+ *   arrels &lt;polinomi&gt;                            Arrels d'un polinomi
+ *   servir &lt;port&gt;|unix:&lt;camí&gt; [fils]             Servidor d'avaluació per lots
+ * </pre>
+ * Abans de l'ordre es poden posar opcions "-d &lt;definició&gt;" per afegir funcions.
+ */
+public final class Consola {
+    /**
+     * Nombre de trapezis per defecte de les integrals.
+     */
+    private static final int PARTS_INTEGRAL = 100000;
+
+    /**
+     * Tolerància per defecte de les integrals adaptatives, la mateixa que a la finestra.
+     */
+    private static final double TOLERANCIA_INTEGRAL = 1e-12;
+
+    private static final String US =
+            "Ús: calcbatx.api.Consola [-d definició]... [ordre arguments...]\n" +
+            "  definir <definició>\n" +
+            "  evaluar <funció> <x>...\n" +
+            "  tabular <funció> <inici> <fi> <passos> [fitxer [csv|binari]]\n" +
+            "  fitxer <funció> <entrada> <sortida>\n" +
+            "  integrar <funció> <extrem1> <extrem2> [parts]\n" +
+            "  quadratura <funció> <extrem1> <extrem2> [tolerància]\n" +
+            "  arrels <polinomi>\n" +
+            "  servir <port>|unix:<camí> [fils]\n" +
+            "Sense ordre, es llegeixen les ordres de l'entrada estàndard, una per línia.";
+
+    private final Calculadora calculadora = new Calculadora();
+    private final PrintStream sortida;
+
+    private Consola(PrintStream sortida) {
+        this.sortida = sortida;
+    }
+
+    public static void main(String[] args) throws IOException {
+        PrintStream sortida = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        Consola consola = new Consola(sortida);
+        boolean correcte = true;
+
+        int i = 0;
+        while (i < args.length && args[i].equals("-d")) {
+            if (i + 1 == args.length) {
+                System.err.println(US);
+                System.exit(2);
+            }
+            correcte &= consola.executar(Arrays.asList("definir", args[i + 1]));
+            i += 2;
+        }
+
+        if (i < args.length) {
+            correcte &= consola.executar(Arrays.asList(args).subList(i, args.length));
+        } else {
+            BufferedReader entrada = new BufferedReader(new InputStreamReader(System.in));
+            for (String linia = entrada.readLine(); linia != null; linia = entrada.readLine()) {
+                List<String> ordre = separar(linia);
+                if (!ordre.isEmpty() && !ordre.get(0).startsWith("#"))
+                    correcte &= consola.executar(ordre);
+                sortida.flush();
+            }
+        }
+
+        sortida.flush();
+        System.exit(correcte ? 0 : 1);
+    }
+
+    /**
+     * Executar una ordre i escriure'n el resultat.
+     * @param ordre El nom de l'ordre seguit dels arguments.
+     * @return true si s'ha executat correctament.
+     */
+    private boolean executar(List<String> ordre) {
+        try {
+            String nom = ordre.get(0);
+            List<String> args = ordre.subList(1, ordre.size());
+
+            if (nom.equals("definir") && args.size() == 1) {
+                calculadora.definir(args.get(0));
+            } else if (nom.equals("evaluar") && args.size() >= 2) {
+                for (String x : args.subList(1, args.size()))
+                    sortida.println(calculadora.evaluar(args.get(0), calculadora.valor(x)));
+            } else if (nom.equals("tabular") && args.size() >= 4 && args.size() <= 6) {
+                int format = Tabulador.CSV;
+                if (args.size() == 6 && args.get(5).equals("binari"))
+                    format = Tabulador.BINARI;
+                else if (args.size() == 6 && !args.get(5).equals("csv"))
+                    return error("Format desconegut: " + args.get(5));
+                tabular(args.get(0), Double.parseDouble(args.get(1)), Double.parseDouble(args.get(2)),
+                        Long.parseLong(args.get(3)), args.size() >= 5 ? args.get(4) : null, format);
+            } else if (nom.equals("fitxer") && args.size() == 3) {
+                try {
+                    long imaginaris = calculadora.evaluarFitxer(args.get(0), Paths.get(args.get(1)), Paths.get(args.get(2)));
+                    if (imaginaris > 0)
+                        System.err.println("Avís: s'ha descartat la part imaginària de " + imaginaris + " resultats.");
+                } catch (IOException exception) {
+                    return error("No es poden llegir o escriure els fitxers (" + exception.getMessage() + ")");
+                }
+            } else if (nom.equals("integrar") && (args.size() == 3 || args.size() == 4)) {
+                int parts = args.size() == 4 ? Integer.parseInt(args.get(3)) : PARTS_INTEGRAL;
+                sortida.println(calculadora.integrar(args.get(0), Double.parseDouble(args.get(1)),
+                        Double.parseDouble(args.get(2)), parts));
+            } else if (nom.equals("quadratura") && (args.size() == 3 || args.size() == 4)) {
+                double tolerancia = args.size() == 4 ? Double.parseDouble(args.get(3)) : TOLERANCIA_INTEGRAL;
+                IntegralAdaptativa integral = calculadora.integrarAdaptativa(args.get(0),
+                        Double.parseDouble(args.get(1)), Double.parseDouble(args.get(2)), tolerancia);
+                sortida.println(integral.valor + " " + integral.error);
+                if (Double.isNaN(integral.valor.re()))
+                    System.err.println("Avís: la funció no és finita en algun punt de l'interval.");
+                else if (!integral.convergit)
+                    System.err.println("Avís: no s'ha arribat a la tolerància en " + integral.avaluacions + " avaluacions.");
+            } else if (nom.equals("arrels") && args.size() == 1) {
+                for (Complex arrel : calculadora.arrels(args.get(0)))
+                    sortida.println(arrel);
+            } else if (nom.equals("servir") && (args.size() == 1 || args.size() == 2)) {
+                servir(args.get(0), args.size() == 2 ? Integer.parseInt(args.get(1))
+                        : Runtime.getRuntime().availableProcessors());
+            } else {
+                sortida.flush();
+                System.err.println(US);
+                return false;
+            }
+
+            return true;
+        } catch (ProcessadorExpressioException exception) {
+            return error(exception.getMessage());
+        } catch (ExpressioException exception) {
+            return error(exception.getMessage());
+        } catch (NumberFormatException exception) {
+            return error("Nombre invàlid (" + exception.getMessage() + ")");
+        } catch (IllegalArgumentException exception) {
+            return error(exception.getMessage());
+        }
+    }
+
+    /**
+     * Escriure la taula de valors d'una funció, sense guardar-la a memòria.
+     * @param fitxer El fitxer on s'escriu, o null per escriure-la a la sortida.
+     */
+    private void tabular(String cos, double inici, double fi, long passos, String fitxer, int format)
+            throws ProcessadorExpressioException, ExpressioException {
+        try {
+            if (fitxer == null) {
+                sortida.flush();
+                calculadora.tabular(cos, inici, fi, passos, new FileOutputStream(FileDescriptor.out).getChannel(), format);
+            } else {
+                FileChannel canal = FileChannel.open(Paths.get(fitxer), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                try {
+                    calculadora.tabular(cos, inici, fi, passos, canal, format);
+                } finally {
+                    canal.close();
+                }
+            }
+        } catch (IOException exception) {
+            throw new IllegalArgumentException("No es pot escriure la taula: " + exception.getMessage());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Executar un servidor fins que s'aturi el procés.
+     * @param adreca El port TCP, que només escolta a l'adreça local, o "unix:"
+     * seguit del camí del sòcol de domini Unix.
+     * @param fils El nombre de fils per calcular.
+     */
+    private void servir(String adreca, int fils) {
+        SocketAddress a = adreca.startsWith("unix:")
+                ? UnixDomainSocketAddress.of(adreca.substring(5))
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(adreca));
+        final Servidor servidor = new Servidor(a, fils);
+        try {
+            servidor.iniciar();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override public void run() {
+                    try {
+                        servidor.aturar();
+                    } catch (IOException exception) {
+                        // S'està aturant el procés
+                    }
+                }
+            });
+            System.err.println("Escoltant a " + servidor.getAdreca());
+            servidor.esperar();
+        } catch (IOException exception) {
+            throw new IllegalArgumentException("No es pot iniciar el servidor: " + exception.getMessage());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean error(String missatge) {
+        sortida.flush();
+        System.err.println("Error: " + missatge);
+        return false;
+    }
+
+    /**
+     * Separar una línia en paraules, agrupant les que estan entre cometes dobles.
+     * @param linia La línia.
+     * @return Les paraules.
+     */
+    static List<String> separar(String linia) {
+        List<String> paraules = new ArrayList<String>();
+        StringBuilder actual = null;
+        boolean cometes = false;
+        for (int i = 0; i < linia.length(); i++) {
+            char c = linia.charAt(i);
+            if (c == '"') {
+                cometes = !cometes;
+                if (actual == null)
+                    actual = new StringBuilder();
+            } else if (Character.isWhitespace(c) && !cometes) {
+                if (actual != null)
+                    paraules.add(actual.toString());
+                actual = null;
+            } else {
+                if (actual == null)
+                    actual = new StringBuilder();
+                actual.append(c);
+            }
+        }
+
+        if (actual != null)
+            paraules.add(actual.toString());
+        return paraules;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx.api;
+
+import calcbatx.ColumnesComplexes;
+import calcbatx.ExpressioException;
+import calcbatx.Funcio;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evalua una funció d'x sobre tots els valors d'un fitxer de doubles en ordre
+ * little-endian, i escriu els resultats a un altre fitxer amb el mateix format:
+ * el double i del resultat és la part real de f(x) per l'i-èsim x.
+ *
+ * Els dos fitxers es projecten a memòria per trossos alineats amb les pàgines,
+ * que es reparteixen entre els fils d'un ForkJoinPool. Cada fil llegeix els x
+ * directament de la projecció de l'entrada cap a les seves columnes i hi escriu
+ * els resultats a la projecció de la sortida, sense passar el fitxer pel heap.
+ */
+public class EvaluadorFitxer {
+    /**
+     * Mida de pàgina que es fa servir per alinear els trossos.
+     */
+    private static final int PAGINA = 4096;
+
+    /**
+     * Mida màxima del tros de fitxer que calcula cada tasca, en bytes.
+     */
+    private static final long MIDA_TROS = 16L << 20;
+
+    /**
+     * Marge relatiu per considerar que la part imaginària d'un resultat és zero.
+     */
+    private static final double MARGE_IMAGINARI = 1e-9;
+
+    /**
+     * Columnes de cada fil del ForkJoinPool, per no crear-ne unes a cada tros.
+     */
+    private static final ThreadLocal<ColumnesComplexes> columnes = new ThreadLocal<ColumnesComplexes>() {
+        @Override protected ColumnesComplexes initialValue() {
+            return new ColumnesComplexes(1);
+        }
+    };
+
+    private final Funcio funcio;
+    private final ForkJoinPool fils;
+
+    /**
+     * Crear un evaluador que utilitza el ForkJoinPool comú.
+     * @param funcio La funció, d'un paràmetre.
+     */
+    public EvaluadorFitxer(Funcio funcio) {
+        this(funcio, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Crear un evaluador.
+     * @param funcio La funció, d'un paràmetre.
+     * @param fils El ForkJoinPool on es calcula.
+     */
+    public EvaluadorFitxer(Funcio funcio, ForkJoinPool fils) {
+        this.funcio = funcio;
+        this.fils = fils;
+    }
+
+    /**
+     * Evaluar la funció sobre tot un fitxer.
+     * @param entrada El fitxer amb els valors d'x.
+     * @param sortida El fitxer on s'escriuen els resultats. Es crea o se
+     * substitueix.
+     * @return El nombre de resultats que tenien part imaginària, que s'ha descartat.
+     * @throws ExpressioException Si no es pot calcular la funció.
+     * @throws IOException Si no es poden llegir o escriure els fitxers.
+     */
+    public long evaluar(Path entrada, Path sortida) throws ExpressioException, IOException {
+        if (!funcio.numParamsCorrecte(1))
+            throw new ExpressioException("Nombre invàlid de paràmetres per a la funció " + funcio.nom + ".");
+
+        FileChannel in = FileChannel.open(entrada, StandardOpenOption.READ);
+        try {
+            long mida = in.size();
+            if (mida % 8 != 0)
+                throw new IOException("La mida de " + entrada + " no és múltiple de 8 bytes.");
+
+            FileChannel out = FileChannel.open(sortida, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                if (mida == 0)
+                    return 0;
+
+                Calcul calcul = new Calcul(in, out);
+                long imaginaris = fils.invoke(new Tros(calcul, 0, mida));
+                if (calcul.error != null)
+                    throw calcul.error;
+                return imaginaris;
+            } catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Estat compartit per tots els trossos d'una evaluació.
+     */
+    private static final class Calcul {
+        final FileChannel in, out;
+
+        /**
+         * El primer error de càlcul d'algun tros, o null. Els altres trossos ho
+         * comproven abans de començar, per no calcular en va.
+         */
+        volatile ExpressioException error;
+
+        Calcul(FileChannel in, FileChannel out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Tros dels fitxers, entre dues posicions en bytes. Es divideix per la
+     * meitat, en una frontera de pàgina, fins que és prou petit per calcular-lo.
+     */
+    private final class Tros extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final Calcul calcul;
+        private final long inici, fi;
+
+        Tros(Calcul calcul, long inici, long fi) {
+            this.calcul = calcul;
+            this.inici = inici;
+            this.fi = fi;
+        }
+
+        @Override protected Long compute() {
+            if (fi - inici > MIDA_TROS) {
+                long mig = inici + (fi - inici) / 2 / PAGINA * PAGINA;
+                Tros a = new Tros(calcul, inici, mig);
+                Tros b = new Tros(calcul, mig, fi);
+                invokeAll(a, b);
+                return a.join() + b.join();
+            }
+
+            if (calcul.error != null)
+                return 0L;
+
+            try {
+                return calcular();
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            } catch (ExpressioException exception) {
+                calcul.error = exception;
+                return 0L;
+            }
+        }
+
+        private long calcular() throws IOException, ExpressioException {
+            DoubleBuffer xs = calcul.in.map(FileChannel.MapMode.READ_ONLY, inici, fi - inici)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            DoubleBuffer ys = calcul.out.map(FileChannel.MapMode.READ_WRITE, inici, fi - inici)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+
+            ColumnesComplexes c = columnes.get();
+            long imaginaris = 0;
+            while (xs.hasRemaining()) {
+                int m = Math.min(c.mida, xs.remaining());
+                c.assegurar(1);
+                xs.get(c.re[0], 0, m);
+                Arrays.fill(c.im[0], 0, m, 0.0);
+
+                funcio.calcularLot(c, 0, m);
+
+                double[] re = c.re[0], im = c.im[0];
+                for (int j = 0; j < m; j++)
+                    if (Math.abs(im[j]) > MARGE_IMAGINARI * Math.max(1.0, Math.abs(re[j])))
+                        imaginaris++;
+                ys.put(re, 0, m);
+            }
+
+            return imaginaris;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx.api;
+
+import calcbatx.CacheFuncions;
+import calcbatx.ColumnesComplexes;
+import calcbatx.ExpressioException;
+import calcbatx.Funcio;
+import calcbatx.FuncioUsuari;
+import calcbatx.LlistaFuncions;
+import calcbatx.ProcessadorExpressio;
+import calcbatx.ProcessadorExpressioException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servidor que evalua funcions per lots per un sòcol TCP local o de domini Unix.
+ * Un fil atén totes les connexions amb un selector, i les peticions es calculen
+ * en un grup de fils. Les peticions d'una mateixa connexió es responen en ordre,
+ * i les de connexions diferents es calculen alhora.
+ *
+ * Cada connexió és una sessió amb les seves funcions: una definició rep un
+ * identificador, i les peticions posteriors l'utilitzen per evaluar la funció
+ * ja analitzada i optimitzada. Les funcions d'una sessió es busquen per nom a
+ * una llista local (veure LlistaFuncions.afegirLocal) amb les que ha definit la
+ * sessió sobre la llista de funcions tal com era en iniciar el servidor. Així
+ * poden cridar les altres funcions de la sessió i les de la llista, però no les
+ * d'altres sessions, ni els afecten els canvis posteriors a la llista.
+ *
+ * Protocol: cada missatge és un enter de 4 bytes amb la mida de la resta del
+ * missatge, un byte amb el tipus i les dades. Tots els nombres són en l'ordre de
+ * bytes de la xarxa (big-endian).
+ * <pre>
+ *   DEFINIR  (1): text UTF-8 de la definició, p.ex. "f(x,y)=x*y"
+ *     resposta FUNCIO (1): int identificador, int nombre de paràmetres
+ *   EVALUAR  (2): int identificador, int n, n * paràmetres doubles (punt a punt)
+ *     resposta VALORS (2): int n, n parells de doubles (part real, part imaginària)
+ *   resposta ERROR (127): text UTF-8 del missatge
+ * </pre>
+ */
+public class Servidor {
+    public static final byte DEFINIR = 1;
+    public static final byte EVALUAR = 2;
+    public static final byte FUNCIO = 1;
+    public static final byte VALORS = 2;
+    public static final byte ERROR = 127;
+
+    /**
+     * Mida màxima d'un missatge. Les connexions que n'envien un de més gran es tanquen.
+     */
+    public static final int MIDA_MAXIMA = 64 << 20;
+
+    /**
+     * Nombre màxim de funcions que pot definir una sessió.
+     */
+    private static final int MAX_FUNCIONS = 4096;
+
+    /**
+     * Nombre de peticions d'una sessió que es poden acumular sense respondre
+     * abans de deixar de llegir-ne més.
+     */
+    private static final int MAX_PENDENTS = 32;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SocketAddress adreca;
+    private final int fils;
+
+    private ServerSocketChannel canal;
+    private Selector selector;
+
+    /**
+     * Llista de funcions en iniciar el servidor, que comparteixen totes les sessions.
+     */
+    private LlistaFuncions llista;
+    private ExecutorService calculadors;
+    private Thread fil;
+
+    /**
+     * Sessions amb respostes per escriure o que poden tornar a llegir, que el
+     * fil del selector ha de revisar.
+     */
+    private final Queue<Sessio> perRevisar = new ConcurrentLinkedQueue<Sessio>();
+
+    /**
+     * Crear un servidor.
+     * @param adreca L'adreça on escoltar: una InetSocketAddress o una
+     * UnixDomainSocketAddress.
+     * @param fils El nombre de fils per calcular.
+     */
+    public Servidor(SocketAddress adreca, int fils) {
+        this.adreca = adreca;
+        this.fils = fils;
+    }
+
+    /**
+     * Començar a acceptar connexions.
+     * @throws IOException Si no es pot obrir el sòcol.
+     */
+    public synchronized void iniciar() throws IOException {
+        if (adreca instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress)adreca).getPath());
+            canal = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            canal = ServerSocketChannel.open();
+        }
+        canal.bind(adreca);
+        canal.configureBlocking(false);
+        llista = Funcio.llista();
+
+        selector = Selector.open();
+        canal.register(selector, SelectionKey.OP_ACCEPT);
+
+        final AtomicInteger comptador = new AtomicInteger();
+        calculadors = Executors.newFixedThreadPool(fils, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Servidor-calcul-" + comptador.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        final Selector sel = selector;
+        final LlistaFuncions base = llista;
+        fil = new Thread(new Runnable() {
+            public void run() {
+                atendre(sel, base);
+            }
+        }, "Servidor");
+        fil.start();
+    }
+
+    /**
+     * Obtè l'adreça on escolta el servidor, útil si s'ha iniciat amb el port 0.
+     * @return L'adreça.
+     * @throws IOException
+     */
+    public SocketAddress getAdreca() throws IOException {
+        return canal.getLocalAddress();
+    }
+
+    /**
+     * Esperar que s'aturi el servidor.
+     * @throws InterruptedException
+     */
+    public void esperar() throws InterruptedException {
+        fil.join();
+    }
+
+    /**
+     * Tancar el servidor i totes les connexions.
+     */
+    public synchronized void aturar() throws IOException {
+        if (selector == null)
+            return;
+
+        for (SelectionKey clau : selector.keys()) {
+            if (clau.attachment() instanceof Sessio)
+                ((Sessio)clau.attachment()).tancada = true;
+            clau.channel().close();
+        }
+        selector.close();
+        calculadors.shutdownNow();
+        if (adreca instanceof UnixDomainSocketAddress)
+            Files.deleteIfExists(((UnixDomainSocketAddress)adreca).getPath());
+        selector = null;
+    }
+
+    /**
+     * Bucle del fil del selector. Rep el selector com a paràmetre perquè
+     * aturar() buida el camp mentre el bucle encara pot estar en marxa.
+     */
+    private void atendre(Selector selector, LlistaFuncions llista) {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+
+                Sessio revisar;
+                while ((revisar = perRevisar.poll()) != null)
+                    revisar.actualitzarInteres();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey clau = it.next();
+                    it.remove();
+
+                    if (!clau.isValid())
+                        continue;
+
+                    if (clau.isAcceptable()) {
+                        SocketChannel client = canal.accept();
+                        if (client != null) {
+                            client.configureBlocking(false);
+                            Sessio s = new Sessio(client, selector, llista);
+                            s.clau = client.register(selector, SelectionKey.OP_READ, s);
+                        }
+                        continue;
+                    }
+
+                    Sessio s = (Sessio)clau.attachment();
+                    try {
+                        if (clau.isReadable())
+                            s.llegir();
+                        if (clau.isValid() && clau.isWritable())
+                            s.escriure();
+                    } catch (IOException exception) {
+                        s.tancar();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException exception) {
+            // S'ha aturat el servidor
+        } catch (IOException exception) {
+            System.err.println("Error al servidor: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Connexió amb un client i les funcions que ha definit.
+     */
+    private final class Sessio {
+        final SocketChannel client;
+        SelectionKey clau;
+
+        /**
+         * Selector del servidor, per despertar-lo des dels fils de càlcul encara
+         * que aturar() ja hagi buidat el camp del servidor.
+         */
+        private final Selector selector;
+
+        /**
+         * Bytes rebuts que encara no formen un missatge sencer.
+         */
+        private ByteBuffer entrada = ByteBuffer.allocate(1 << 16);
+
+        /**
+         * Respostes per enviar, en ordre. Hi afegeixen els fils de càlcul i en
+         * treu el fil del selector.
+         */
+        private final Queue<ByteBuffer> sortida = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /**
+         * Peticions rebudes que encara no s'han començat a calcular, i si n'hi
+         * ha alguna calculant-se. Protegides per la sessió.
+         */
+        private final Queue<ByteBuffer> pendents = new ArrayDeque<ByteBuffer>();
+        private boolean calculant = false;
+
+        /**
+         * Funcions definides, per identificador, i identificador de cada text
+         * de definició normalitzat. Només les fa servir el fil que calcula.
+         */
+        private final List<FuncioUsuari> funcions = new ArrayList<FuncioUsuari>();
+        private final Map<String, Integer> identificadors = new HashMap<String, Integer>();
+        private final ColumnesComplexes columnes = new ColumnesComplexes(1);
+
+        /**
+         * Llista on es busquen les funcions: la del servidor amb les funcions de
+         * la sessió afegides. Només la fa servir el fil que calcula.
+         */
+        private LlistaFuncions llista;
+
+        private volatile boolean tancada = false;
+
+        Sessio(SocketChannel client, Selector selector, LlistaFuncions llista) {
+            this.client = client;
+            this.selector = selector;
+            this.llista = llista;
+        }
+
+        /**
+         * Llegir el que hagi arribat i posar a calcular els missatges sencers.
+         */
+        void llegir() throws IOException {
+            if (client.read(entrada) < 0) {
+                tancar();
+                return;
+            }
+
+            entrada.flip();
+            while (entrada.remaining() >= 4) {
+                int mida = entrada.getInt(entrada.position());
+                if (mida < 1 || mida > MIDA_MAXIMA) {
+                    tancar();
+                    return;
+                }
+
+                if (entrada.remaining() < 4 + mida) {
+                    // Fer lloc per la resta del missatge
+                    if (entrada.capacity() < 4 + mida) {
+                        ByteBuffer b = ByteBuffer.allocate(4 + mida);
+                        b.put(entrada);
+                        entrada = b;
+                        entrada.flip();
+                    }
+                    break;
+                }
+
+                byte[] missatge = new byte[mida];
+                entrada.position(entrada.position() + 4);
+                entrada.get(missatge);
+                encuar(ByteBuffer.wrap(missatge));
+            }
+            entrada.compact();
+            actualitzarInteres();
+        }
+
+        /**
+         * Enviar les respostes calculades, fins que el sòcol no n'accepti més.
+         */
+        void escriure() throws IOException {
+            ByteBuffer b;
+            while ((b = sortida.peek()) != null) {
+                client.write(b);
+                if (b.hasRemaining())
+                    break;
+                sortida.poll();
+            }
+            actualitzarInteres();
+        }
+
+        /**
+         * Escollir si s'ha de llegir i escriure segons les peticions i respostes
+         * pendents. Només es crida des del fil del selector.
+         */
+        void actualitzarInteres() {
+            if (!clau.isValid())
+                return;
+
+            int ops = 0;
+            synchronized (this) {
+                if (pendents.size() < MAX_PENDENTS)
+                    ops |= SelectionKey.OP_READ;
+            }
+            if (!sortida.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            clau.interestOps(ops);
+        }
+
+        private synchronized void encuar(ByteBuffer peticio) {
+            pendents.add(peticio);
+            if (!calculant) {
+                calculant = true;
+                calcularSeguent();
+            }
+        }
+
+        /**
+         * Calcular la primera petició pendent en un fil de càlcul. Quan acaba,
+         * continua amb la següent.
+         */
+        private synchronized void calcularSeguent() {
+            final ByteBuffer peticio = pendents.poll();
+            if (peticio == null || tancada) {
+                calculant = false;
+                return;
+            }
+
+            calculadors.execute(new Runnable() {
+                public void run() {
+                    ByteBuffer resposta = respondre(peticio);
+                    if (!tancada) {
+                        sortida.add(resposta);
+                        perRevisar.add(Sessio.this);
+                        selector.wakeup();
+                    }
+                    calcularSeguent();
+                }
+            });
+        }
+
+        private ByteBuffer respondre(ByteBuffer peticio) {
+            LlistaFuncions anterior = Funcio.usarLlista(llista);
+            try {
+                byte tipus = peticio.get();
+                if (tipus == DEFINIR)
+                    return definir(UTF8.decode(peticio).toString());
+                else if (tipus == EVALUAR)
+                    return evaluar(peticio);
+                else
+                    return error("Tipus de missatge desconegut: " + tipus);
+            } catch (ProcessadorExpressioException exception) {
+                return error(exception.getMessage());
+            } catch (ExpressioException exception) {
+                return error(exception.getMessage());
+            } catch (RuntimeException exception) {
+                return error("Missatge invàlid (" + exception + ")");
+            } finally {
+                Funcio.usarLlista(anterior);
+            }
+        }
+
+        private ByteBuffer definir(String definicio) throws ProcessadorExpressioException {
+            String text = CacheFuncions.normalitzar(definicio);
+            Integer id = identificadors.get(text);
+            FuncioUsuari f;
+            if (id != null) {
+                f = funcions.get(id);
+            } else {
+                if (funcions.size() >= MAX_FUNCIONS)
+                    return error("S'han definit massa funcions en aquesta sessió.");
+                f = new ProcessadorExpressio(definicio).processar();
+                id = funcions.size();
+                funcions.add(f);
+                identificadors.put(text, id);
+            }
+
+            // Les crides per nom de les altres funcions de la sessió arriben a l'última definida
+            if (llista.obtenir(f.nom) != f)
+                llista = llista.afegirLocal(f);
+
+            ByteBuffer b = capcalera(FUNCIO, 8);
+            b.putInt(id).putInt(f.numParams);
+            b.flip();
+            return b;
+        }
+
+        private ByteBuffer evaluar(ByteBuffer peticio) throws ExpressioException {
+            int id = peticio.getInt();
+            int n = peticio.getInt();
+            if (id < 0 || id >= funcions.size())
+                return error("No hi ha cap funció amb l'identificador " + id + ".");
+
+            FuncioUsuari f = funcions.get(id);
+            int p = f.numParams;
+            if (n < 0 || (long)n * p * 8 != peticio.remaining())
+                return error("La mida del lot no coincideix amb el nombre de punts.");
+            if (1 + 4 + 16L * n > MIDA_MAXIMA)
+                return error("El lot té massa punts: una resposta en pot tenir com a màxim "
+                        + (MIDA_MAXIMA - 1 - 4) / 16 + ".");
+
+            ByteBuffer b = capcalera(VALORS, 4 + 16L * n);
+            b.putInt(n);
+
+            // Calcular per blocs de la mida de les columnes, amb un paràmetre a cada columna
+            ColumnesComplexes c = columnes;
+            for (int inici = 0; inici < n; inici += c.mida) {
+                int m = Math.min(c.mida, n - inici);
+                c.assegurar(Math.max(p, 1));
+                for (int j = 0; j < m; j++) {
+                    for (int k = 0; k < p; k++) {
+                        c.re[k][j] = peticio.getDouble();
+                        c.im[k][j] = 0.0;
+                    }
+                }
+
+                f.calcularLot(c, 0, m);
+
+                for (int j = 0; j < m; j++)
+                    b.putDouble(c.re[0][j]).putDouble(c.im[0][j]);
+            }
+
+            b.flip();
+            return b;
+        }
+
+        void tancar() {
+            tancada = true;
+            clau.cancel();
+            try {
+                client.close();
+            } catch (IOException exception) {
+                // Ja està tancat
+            }
+        }
+    }
+
+    private static ByteBuffer capcalera(byte tipus, long mida) {
+        if (1 + mida > MIDA_MAXIMA)
+            throw new IllegalArgumentException("La resposta és massa gran.");
+
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + (int)mida);
+        b.putInt(1 + (int)mida).put(tipus);
+        return b;
+    }
+
+    private static ByteBuffer error(String missatge) {
+        byte[] text = String.valueOf(missatge).getBytes(UTF8);
+        ByteBuffer b = capcalera(ERROR, text.length);
+        b.put(text);
+        b.flip();
+        return b;
+    }
+}
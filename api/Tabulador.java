@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calcbatx.api;
+
+import calcbatx.ColumnesComplexes;
+import calcbatx.ExpressioException;
+import calcbatx.Funcio;
+import calcbatx.Progres;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escriu la taula de valors d'una funció d'x en punts equidistants d'un interval,
+ * sense guardar-la sencera a memòria. Es calcula per blocs de files: mentre un
+ * fil escriu un bloc, es calcula el següent, i només hi ha dos blocs alhora.
+ *
+ * Formats:
+ * <ul>
+ * <li>CSV: una capçalera "x,re,im" i una fila per punt, en text.</li>
+ * <li>BINARI: tres doubles per punt (x, part real, part imaginària), en ordre
+ * little-endian i sense capçalera.</li>
+ * </ul>
+ */
+public class Tabulador {
+    public static final int CSV = 0;
+    public static final int BINARI = 1;
+
+    /**
+     * Nombre de files de cada bloc.
+     */
+    public static final int FILES_BLOC = 1 << 16;
+
+    /**
+     * Mida màxima d'una fila en CSV: tres doubles de com a molt 24 caràcters,
+     * dues comes i el salt de línia.
+     */
+    private static final int MIDA_FILA_CSV = 3 * 24 + 3;
+
+    private static final byte[] CAPCALERA_CSV = { 'x', ',', 'r', 'e', ',', 'i', 'm', '\n' };
+
+    private final Funcio funcio;
+    private final double inici;
+    private final double fi;
+    private final long passos;
+    private final int format;
+
+    /**
+     * Crear un tabulador.
+     * @param funcio La funció, d'un paràmetre.
+     * @param inici L'extrem inferior.
+     * @param fi L'extrem superior.
+     * @param passos El nombre d'intervals; es calculen passos + 1 punts.
+     * @param format CSV o BINARI.
+     */
+    public Tabulador(Funcio funcio, double inici, double fi, long passos, int format) {
+        if (passos < 1)
+            throw new IllegalArgumentException("Hi ha d'haver com a mínim un pas.");
+        if (format != CSV && format != BINARI)
+            throw new IllegalArgumentException("Format desconegut: " + format);
+
+        this.funcio = funcio;
+        this.inici = inici;
+        this.fi = fi;
+        this.passos = passos;
+        this.format = format;
+    }
+
+    /**
+     * Bloc de files: els valors calculats i els bytes per escriure'ls.
+     */
+    private final class Bloc {
+        final double[] xs = new double[FILES_BLOC];
+        final double[] re = new double[FILES_BLOC];
+        final double[] im = new double[FILES_BLOC];
+        int n;
+
+        /**
+         * L'escriptura pendent del bloc, o null si encara no s'ha escrit mai.
+         */
+        Future<Void> escriptura;
+
+        final ByteBuffer bytes = ByteBuffer.allocateDirect(FILES_BLOC * (format == BINARI ? 24 : MIDA_FILA_CSV))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final StringBuilder fila = new StringBuilder(MIDA_FILA_CSV);
+
+        void escriure(WritableByteChannel canal) throws IOException {
+            bytes.clear();
+            if (format == BINARI) {
+                for (int j = 0; j < n; j++)
+                    bytes.putDouble(xs[j]).putDouble(re[j]).putDouble(im[j]);
+            } else {
+                for (int j = 0; j < n; j++) {
+                    fila.setLength(0);
+                    fila.append(xs[j]).append(',').append(re[j]).append(',').append(im[j]).append('\n');
+                    for (int k = 0; k < fila.length(); k++)
+                        bytes.put((byte)fila.charAt(k));
+                }
+            }
+
+            bytes.flip();
+            while (bytes.hasRemaining())
+                canal.write(bytes);
+        }
+    }
+
+    /**
+     * Calcular i escriure la taula.
+     * @param canal On s'escriu. No es tanca.
+     * @param progres On s'informa de l'avanç després de cada bloc, o null.
+     * @return El nombre de files escrites.
+     * @throws ExpressioException Si no es pot calcular la funció.
+     * @throws IOException Si no es pot escriure.
+     * @throws InterruptedException Si s'ha aturat el càlcul.
+     */
+    public long escriure(final WritableByteChannel canal, Progres progres)
+            throws ExpressioException, IOException, InterruptedException {
+        ExecutorService escriptor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Tabulador");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        Bloc[] blocs = { new Bloc(), new Bloc() };
+        try {
+            if (format == CSV) {
+                ByteBuffer capcalera = ByteBuffer.wrap(CAPCALERA_CSV);
+                while (capcalera.hasRemaining())
+                    canal.write(capcalera);
+            }
+
+            ColumnesComplexes c = new ColumnesComplexes(1);
+            double h = (fi - inici) / passos;
+            long files = passos + 1;
+
+            int k = 0;
+            for (long primera = 0; primera < files; primera += FILES_BLOC) {
+                // Esperar que s'hagi escrit el bloc abans de tornar-lo a omplir
+                final Bloc b = blocs[k];
+                esperar(b.escriptura);
+
+                b.n = (int)Math.min(FILES_BLOC, files - primera);
+                for (int j = 0; j < b.n; j++)
+                    b.xs[j] = inici + h * (primera + j);
+                funcio.calcularLot(b.xs, 0, b.n, b.re, b.im, c);
+
+                b.escriptura = escriptor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        b.escriure(canal);
+                        return null;
+                    }
+                });
+                k ^= 1;
+
+                if (progres != null)
+                    progres.actualitzar((double)(primera + b.n) / files);
+            }
+
+            esperar(blocs[k].escriptura);
+            esperar(blocs[k ^ 1].escriptura);
+            return files;
+        } finally {
+            // No s'interromp l'escriptor: interrompre una escriptura tancaria el canal
+            for (Bloc b : blocs)
+                if (b.escriptura != null)
+                    b.escriptura.cancel(false);
+            escriptor.shutdown();
+            acabar(escriptor);
+        }
+    }
+
+    /**
+     * Esperar que l'escriptor acabi l'escriptura que estigui fent, encara que
+     * s'interrompi el fil. Si s'interromp, es torna a marcar en acabar.
+     */
+    private static void acabar(ExecutorService escriptor) {
+        boolean interromput = false;
+        while (!escriptor.isTerminated()) {
+            try {
+                escriptor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException exception) {
+                interromput = true;
+            }
+        }
+
+        if (interromput)
+            Thread.currentThread().interrupt();
+    }
+
+    private static void esperar(Future<Void> f) throws IOException, InterruptedException {
+        if (f == null)
+            return;
+
+        try {
+            f.get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException)
+                throw (IOException)exception.getCause();
+            throw new RuntimeException(exception.getCause());
+        }
+    }
+}
@@ -37,6 +37,43 @@ public class FuncioArcTan extends Funcio {
         );
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) throws ExpressioException {
+        if (Complex.esComplex(r.im[s]))
+            throw new ExpressioException("Encara no es pot operar amb nombres complexos amb arctan.");
+
+        r.re[s] = Math.atan(r.re[s]);
+        r.im[s] = 0.0;
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] re = c.re[s], im = c.im[s];
+        for (int j = 0; j < n; j++) {
+            re[j] = Complex.esComplex(im[j]) ? Double.NaN : Math.atan(re[j]);
+            im[j] = 0.0;
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) throws ExpressioException {
+        double x = r.re[s], dar = r.dre[s], dai = r.dim[s];
+        calcular(r, s);
+
+        // arctan(a)' = a' / (1 + a^2)
+        double d = 1 + x * x;
+        r.dre[s] = dar / d;
+        r.dim[s] = dai / d;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        Complex valor = calcularValor(params);
+        if (grau == 0)
+            return SerieTaylor.constant(valor, grau);
+
+        // arctan(a) = integral de a' / (1 + a^2)
+        SerieTaylor a = SerieTaylor.truncar(params[0], grau - 1);
+        SerieTaylor u = SerieTaylor.sumar(SerieTaylor.constant(Complex.U, grau - 1), SerieTaylor.multiplicar(a, a));
+        return SerieTaylor.integrar(SerieTaylor.multiplicar(SerieTaylor.derivar(params[0]), SerieTaylor.invers(u)), valor);
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio("multiplicar", new Expressio[] {
             new ExpressioFuncio("invers", new Expressio[] {
@@ -37,6 +37,39 @@ public class FuncioCos extends Funcio {
         );
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) throws ExpressioException {
+        if (Complex.esComplex(r.im[s]))
+            throw new ExpressioException("Encara no es pot operar amb nombres complexos amb cos.");
+
+        r.re[s] = Math.cos(r.re[s]);
+        r.im[s] = 0.0;
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] re = c.re[s], im = c.im[s];
+        for (int j = 0; j < n; j++) {
+            re[j] = Complex.esComplex(im[j]) ? Double.NaN : Math.cos(re[j]);
+            im[j] = 0.0;
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) throws ExpressioException {
+        double x = r.re[s], dar = r.dre[s], dai = r.dim[s];
+        calcular(r, s);
+
+        // cos(a)' = -sin(a) * a'
+        double c = -Math.sin(x);
+        r.dre[s] = c * dar;
+        r.dim[s] = c * dai;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        Complex valor = calcularValor(params);
+        SerieTaylor s = SerieTaylor.sinCos(params[0])[1];
+        s.set(0, valor);
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio("multiplicar", new Expressio[] {
             new ExpressioFuncio("negar", new Expressio[] {
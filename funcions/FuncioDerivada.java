@@ -27,15 +27,49 @@ public class FuncioDerivada extends Funcio {
         super("D", 1);
     }
 
+    @Override public boolean esSimbolica() {
+        return true;
+    }
+
     public Expressio evaluar(Expressio[] parametres, Complex[] params) throws ExpressioException {
         return parametres[0].derivada();
     }
 
 
+    @Override public void evaluar(Expressio[] parametres, RegistresComplexos r, int params, int out) throws ExpressioException {
+        Expressio derivada = parametres[0].derivada();
+        r.assegurar(out + derivada.registresNecessaris());
+        derivada.evaluar(r, params, out);
+    }
+
+    @Override public void evaluarLot(Expressio[] parametres, ColumnesComplexes c, int params, int out, int n) throws ExpressioException {
+        Expressio derivada = parametres[0].derivada();
+        c.assegurar(out + derivada.registresNecessaris());
+        derivada.evaluarLot(c, params, out, n);
+    }
+
+    @Override public void evaluarDual(Expressio[] parametres, RegistresDuals r, int params, int out) throws ExpressioException {
+        Expressio derivada = parametres[0].derivada();
+        r.assegurar(out + derivada.registresNecessaris());
+        derivada.evaluarDual(r, params, out);
+    }
+
     public Complex calcular(Complex[] params) throws ExpressioException {
         return Complex.ZERO;
     }
 
+    @Override public void calcularDual(RegistresDuals r, int s) {
+        r.set(s, Complex.ZERO, Complex.ZERO);
+    }
+
+    @Override public SerieTaylor evaluarTaylor(Expressio[] parametres, SerieTaylor[] params, int grau) throws ExpressioException {
+        return parametres[0].derivada().evaluarTaylor(params, grau);
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) {
+        return new SerieTaylor(grau);
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return evaluar(params, null).derivada();
     }
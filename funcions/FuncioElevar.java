@@ -42,6 +42,106 @@ public class FuncioElevar extends Funcio {
         );
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) throws ExpressioException {
+        double br = r.re[s + 1], bi = r.im[s + 1];
+        if (Complex.esComplex(bi))
+            throw new ExpressioException("Encara no es pot operar amb nombres complexos amb elevar.");
+
+        double ar = r.re[s], ai = r.im[s];
+        if (Complex.esReal(br, bi) && br == 0.5 && ar < 0) {
+            r.re[s] = 0;
+            r.im[s] = Math.sqrt(-ar);
+            return;
+        }
+
+        double modul = Math.hypot(ar, ai), angle = Math.atan2(ai, ar), exp = br;
+        r.re[s] = Math.pow(modul, exp) * Math.cos(exp * angle);
+        r.im[s] = Math.pow(modul, exp) * Math.sin(exp * angle);
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] ar = c.re[s], ai = c.im[s], br = c.re[s + 1], bi = c.im[s + 1];
+        for (int j = 0; j < n; j++) {
+            double a = ar[j], b = ai[j], exp = br[j];
+            if (Complex.esComplex(bi[j])) {
+                ar[j] = Double.NaN;
+                ai[j] = 0.0;
+            } else if (Complex.esReal(exp, bi[j]) && exp == 0.5 && a < 0) {
+                ar[j] = 0;
+                ai[j] = Math.sqrt(-a);
+            } else {
+                double modul = Math.hypot(a, b), angle = Math.atan2(b, a);
+                ar[j] = Math.pow(modul, exp) * Math.cos(exp * angle);
+                ai[j] = Math.pow(modul, exp) * Math.sin(exp * angle);
+            }
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) throws ExpressioException {
+        double ar = r.re[s], ai = r.im[s], br = r.re[s + 1];
+        double dar = r.dre[s], dai = r.dim[s], dbr = r.dre[s + 1], dbi = r.dim[s + 1];
+        calcular(r, s);
+
+        if (dbr == 0 && dbi == 0) {
+            // Exponent constant: (a^n)' = n * a^(n-1) * a', igual que la derivada simbòlica
+            double pr, pi, exp = br - 1;
+            if (exp == 0.5 && ar < 0) {
+                pr = 0;
+                pi = Math.sqrt(-ar);
+            } else {
+                double modul = Math.hypot(ar, ai), angle = Math.atan2(ai, ar);
+                pr = Math.pow(modul, exp) * Math.cos(exp * angle);
+                pi = Math.pow(modul, exp) * Math.sin(exp * angle);
+            }
+            r.dre[s] = br * (pr * dar - pi * dai);
+            r.dim[s] = br * (pr * dai + pi * dar);
+        } else {
+            // (a^b)' = a^b * (b' * ln(a) + b * a' / a)
+            double lr = Math.log(Math.hypot(ar, ai)), li = Math.atan2(ai, ar);
+            double d = ar * ar + ai * ai;
+            double qr = (dar * ar + dai * ai) / d, qi = (dai * ar - dar * ai) / d;
+            double wr = (dbr * lr - dbi * li) + br * qr, wi = (dbr * li + dbi * lr) + br * qi;
+            double vr = r.re[s], vi = r.im[s];
+            r.dre[s] = vr * wr - vi * wi;
+            r.dim[s] = vr * wi + vi * wr;
+        }
+    }
+
+    @Override public void calcularParcials(RegistresDuals r, int s, double[] pre, double[] pim, int inici) throws ExpressioException {
+        double ar = r.re[s], ai = r.im[s];
+
+        // La parcial respecte la base és la derivada amb l'exponent constant
+        r.dre[s] = 1.0;
+        r.dim[s] = 0.0;
+        r.dre[s + 1] = 0.0;
+        r.dim[s + 1] = 0.0;
+        calcularDual(r, s);
+        pre[inici] = r.dre[s];
+        pim[inici] = r.dim[s];
+
+        // d(a^b)/db = a^b * ln(a)
+        double lr = Math.log(Math.hypot(ar, ai)), li = Math.atan2(ai, ar);
+        double vr = r.re[s], vi = r.im[s];
+        pre[inici + 1] = vr * lr - vi * li;
+        pim[inici + 1] = vr * li + vi * lr;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        Complex valor = calcularValor(params);
+
+        boolean exponentConstant = true;
+        for (int n = 1; n <= grau; n++)
+            if (params[1].re[n] != 0 || params[1].im[n] != 0)
+                exponentConstant = false;
+
+        // a^b = e^(b*ln(a)) si l'exponent no és constant
+        SerieTaylor s = exponentConstant ?
+            SerieTaylor.potencia(params[0], params[1].re[0], valor) :
+            SerieTaylor.exp(SerieTaylor.multiplicar(params[1], SerieTaylor.ln(params[0])));
+        s.set(0, valor);
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         // Derivada fàcil, per fer els càlculs més precisos i poder calcular la tangent quan ln < 0
         if (params[1].esConstant() && params[1].evaluar(null).esReal()) {
@@ -35,6 +35,51 @@ public class FuncioInvers extends Funcio {
         return new Complex(params[0].re() / denominador, -params[0].im() / denominador);
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) {
+        double re = r.re[s], im = r.im[s];
+        double denominador = re * re + im * im;
+        if (denominador == 0) {
+            r.re[s] = Double.POSITIVE_INFINITY;
+            r.im[s] = 0.0;
+        } else {
+            r.re[s] = re / denominador;
+            r.im[s] = -im / denominador;
+        }
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] re = c.re[s], im = c.im[s];
+        OperacionsLot vectorials = OperacionsLot.vectorials();
+        if (vectorials != null) {
+            vectorials.invers(re, im, n);
+            return;
+        }
+
+        for (int j = 0; j < n; j++) {
+            double a = re[j], b = im[j];
+            double denominador = a * a + b * b;
+            re[j] = denominador == 0 ? Double.POSITIVE_INFINITY : a / denominador;
+            im[j] = denominador == 0 ? 0.0 : -b / denominador;
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) {
+        double dar = r.dre[s], dai = r.dim[s];
+        calcular(r, s);
+
+        // (1/a)' = -a' / a^2 = -a' * (1/a)^2
+        double vr = r.re[s], vi = r.im[s];
+        double pr = vr * vr - vi * vi, pi = 2 * vr * vi;
+        r.dre[s] = -(dar * pr - dai * pi);
+        r.dim[s] = -(dar * pi + dai * pr);
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        SerieTaylor s = SerieTaylor.invers(params[0]);
+        s.set(0, calcularValor(params));
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio("multiplicar", new Expressio[] {
             new ExpressioFuncio("negar", new Expressio[] {
@@ -39,6 +39,55 @@ public class FuncioLn extends Funcio {
         }
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) throws ExpressioException {
+        if (Complex.esComplex(r.im[s]))
+            throw new ExpressioException("Encara no es pot operar amb nombres complexos amb ln.");
+
+        double x = r.re[s];
+        if (x >= 0) {
+            r.re[s] = Math.log(x);
+            r.im[s] = 0.0;
+        } else {
+            // ln(-x) = ln(x) + i*pi
+            r.re[s] = Math.log(-x);
+            r.im[s] = Math.PI;
+        }
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] re = c.re[s], im = c.im[s];
+        for (int j = 0; j < n; j++) {
+            double x = re[j];
+            if (Complex.esComplex(im[j])) {
+                re[j] = Double.NaN;
+                im[j] = 0.0;
+            } else if (x >= 0) {
+                re[j] = Math.log(x);
+                im[j] = 0.0;
+            } else {
+                re[j] = Math.log(-x);
+                im[j] = Math.PI;
+            }
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) throws ExpressioException {
+        double ar = r.re[s], ai = r.im[s], dar = r.dre[s], dai = r.dim[s];
+        calcular(r, s);
+
+        // ln(a)' = a' / a
+        double d = ar * ar + ai * ai;
+        r.dre[s] = (dar * ar + dai * ai) / d;
+        r.dim[s] = (dai * ar - dar * ai) / d;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        Complex valor = calcularValor(params);
+        SerieTaylor s = SerieTaylor.ln(params[0]);
+        s.set(0, valor);
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio("multiplicar", new Expressio[] {
             new ExpressioFuncio("invers", new Expressio[] {
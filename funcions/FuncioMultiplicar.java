@@ -37,6 +37,58 @@ public class FuncioMultiplicar extends Funcio {
         );
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) {
+        double ar = r.re[s], ai = r.im[s], br = r.re[s + 1], bi = r.im[s + 1];
+        if (Complex.esReal(ar, ai)) {
+            r.re[s] = ar * br;
+            r.im[s] = ar * bi;
+        } else {
+            r.re[s] = ar * br - ai * bi;
+            r.im[s] = ar * bi + ai * br;
+        }
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] ar = c.re[s], ai = c.im[s], br = c.re[s + 1], bi = c.im[s + 1];
+        OperacionsLot vectorials = OperacionsLot.vectorials();
+        if (vectorials != null) {
+            vectorials.multiplicar(ar, ai, br, bi, n);
+            return;
+        }
+
+        for (int j = 0; j < n; j++) {
+            double a = ar[j], b = ai[j], x = br[j], y = bi[j];
+            boolean real = Complex.esReal(a, b);
+            ar[j] = real ? a * x : a * x - b * y;
+            ai[j] = real ? a * y : a * y + b * x;
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) {
+        double ar = r.re[s], ai = r.im[s], br = r.re[s + 1], bi = r.im[s + 1];
+        double dar = r.dre[s], dai = r.dim[s], dbr = r.dre[s + 1], dbi = r.dim[s + 1];
+        calcular(r, s);
+
+        // (ab)' = a'b + ab'
+        r.dre[s] = (dar * br - dai * bi) + (ar * dbr - ai * dbi);
+        r.dim[s] = (dar * bi + dai * br) + (ar * dbi + ai * dbr);
+    }
+
+    @Override public void calcularParcials(RegistresDuals r, int s, double[] pre, double[] pim, int inici) {
+        double ar = r.re[s], ai = r.im[s], br = r.re[s + 1], bi = r.im[s + 1];
+        calcular(r, s);
+        pre[inici] = br;
+        pim[inici] = bi;
+        pre[inici + 1] = ar;
+        pim[inici + 1] = ai;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        SerieTaylor s = SerieTaylor.multiplicar(params[0], params[1]);
+        s.set(0, calcularValor(params));
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio("sumar", new Expressio[] {
             new ExpressioFuncio("multiplicar", new Expressio[] {
@@ -34,6 +34,43 @@ public class FuncioNegar extends Funcio {
         );
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) {
+        r.re[s] = -r.re[s];
+        r.im[s] = -r.im[s];
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] re = c.re[s], im = c.im[s];
+        OperacionsLot vectorials = OperacionsLot.vectorials();
+        if (vectorials != null) {
+            vectorials.negar(re, im, n);
+            return;
+        }
+
+        for (int j = 0; j < n; j++) {
+            re[j] = -re[j];
+            im[j] = -im[j];
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) {
+        calcular(r, s);
+        r.dre[s] = -r.dre[s];
+        r.dim[s] = -r.dim[s];
+    }
+
+    @Override public void calcularParcials(RegistresDuals r, int s, double[] pre, double[] pim, int inici) {
+        calcular(r, s);
+        pre[inici] = -1.0;
+        pim[inici] = 0.0;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        SerieTaylor s = SerieTaylor.negar(params[0]);
+        s.set(0, calcularValor(params));
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio(
             "negar",
@@ -34,6 +34,46 @@ public class FuncioSumar extends Funcio {
         );
     }
 
+    @Override public void calcular(RegistresComplexos r, int s) {
+        r.re[s] = r.re[s] + r.re[s + 1];
+        r.im[s] = r.im[s] + r.im[s + 1];
+    }
+
+    @Override public void calcularLot(ColumnesComplexes c, int s, int n) {
+        double[] ar = c.re[s], ai = c.im[s], br = c.re[s + 1], bi = c.im[s + 1];
+        OperacionsLot vectorials = OperacionsLot.vectorials();
+        if (vectorials != null) {
+            vectorials.sumar(ar, ai, br, bi, n);
+            return;
+        }
+
+        for (int j = 0; j < n; j++) {
+            ar[j] = ar[j] + br[j];
+            ai[j] = ai[j] + bi[j];
+        }
+    }
+
+    @Override public void calcularDual(RegistresDuals r, int s) {
+        double dar = r.dre[s], dai = r.dim[s], dbr = r.dre[s + 1], dbi = r.dim[s + 1];
+        calcular(r, s);
+        r.dre[s] = dar + dbr;
+        r.dim[s] = dai + dbi;
+    }
+
+    @Override public void calcularParcials(RegistresDuals r, int s, double[] pre, double[] pim, int inici) {
+        calcular(r, s);
+        pre[inici] = 1.0;
+        pim[inici] = 0.0;
+        pre[inici + 1] = 1.0;
+        pim[inici + 1] = 0.0;
+    }
+
+    @Override public SerieTaylor calcularTaylor(SerieTaylor[] params, int grau) throws ExpressioException {
+        SerieTaylor s = SerieTaylor.sumar(params[0], params[1]);
+        s.set(0, calcularValor(params));
+        return s;
+    }
+
     @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
         return new ExpressioFuncio("sumar", new Expressio[] {
             params[0].derivada(), params[1].derivada() }
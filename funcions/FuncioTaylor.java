@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx.funcions;
+import calcbatx.*;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Funció taylor - Polinomi de Taylor.
+ * taylor(f, x0, k) és el polinomi de Taylor de grau k de l'expressió f, respecte
+ * la variable de la funció (el primer paràmetre), al voltant de x0 i evaluat a x.
+ * Els coeficients es calculen amb aritmètica de sèries truncades, sense construir
+ * les derivades simbòliques.
+ */
+public class FuncioTaylor extends Funcio {
+    /**
+     * Grau màxim dels polinomis.
+     */
+    public static final int MAX_GRAU = 100;
+
+    public FuncioTaylor() {
+        super("taylor", 3);
+    }
+
+    @Override public boolean esSimbolica() {
+        return true;
+    }
+
+    /**
+     * Calcula la sèrie de Taylor de l'expressió.
+     * @param parametres Les expressions dels paràmetres (f, x0 i k).
+     * @param params Els valors dels paràmetres de la funció on apareix el polinomi.
+     * @return La sèrie, al voltant de x0.
+     * @throws ExpressioException
+     */
+    private SerieTaylor serie(Expressio[] parametres, Complex[] params) throws ExpressioException {
+        if (params == null || params.length == 0)
+            throw new ExpressioException("La funció taylor necessita una variable.");
+
+        Complex x0 = parametres[1].evaluar(params), k = parametres[2].evaluar(params);
+        if (!k.esNatural() || k.re() > MAX_GRAU)
+            throw new ExpressioException("El grau del polinomi de Taylor ha de ser un nombre natural fins a " + MAX_GRAU + ".");
+
+        // La variable es desenvolupa al voltant de x0, la resta de paràmetres són constants
+        int grau = (int)k.re();
+        SerieTaylor[] series = new SerieTaylor[params.length];
+        series[0] = SerieTaylor.variable(x0, grau);
+        for (int i = 1; i < params.length; i++)
+            series[i] = SerieTaylor.constant(params[i], grau);
+
+        return parametres[0].evaluarTaylor(series, grau);
+    }
+
+    /**
+     * Calcula la distància entre la variable i x0.
+     * @param parametres Les expressions dels paràmetres (f, x0 i k).
+     * @param params Els valors dels paràmetres de la funció on apareix el polinomi.
+     * @return x - x0.
+     * @throws ExpressioException
+     */
+    private static Complex distancia(Expressio[] parametres, Complex[] params) throws ExpressioException {
+        Complex x0 = parametres[1].evaluar(params);
+        return new Complex(params[0].re() - x0.re(), params[0].im() - x0.im());
+    }
+
+    public Expressio evaluar(Expressio[] parametres, Complex[] params) throws ExpressioException {
+        return new ExpressioNombre(serie(parametres, params).evaluar(distancia(parametres, params)));
+    }
+
+    @Override public void evaluar(Expressio[] parametres, RegistresComplexos r, int params, int out) throws ExpressioException {
+        r.set(out, evaluar(parametres, llegirParametres(parametres, r, params)).evaluar(null));
+    }
+
+    @Override public void evaluarLot(Expressio[] parametres, ColumnesComplexes c, int params, int out, int n) throws ExpressioException {
+        // La sèrie només depèn de x0, k i els paràmetres que no són la variable. Si x0 i k
+        // són constants, es reutilitza mentre no canviïn els altres paràmetres
+        boolean constants = parametres[1].esConstant() && parametres[2].esConstant();
+        Complex[] p = new Complex[numParametres(parametres)];
+        Complex[] anteriors = null;
+        SerieTaylor serie = null;
+        Complex x0 = null;
+
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < p.length; i++)
+                p[i] = new Complex(c.re[params + i][j], c.im[params + i][j]);
+
+            if (!constants || anteriors == null || !mateixosParametres(p, anteriors)) {
+                try {
+                    serie = serie(parametres, p);
+                    x0 = parametres[1].evaluar(p);
+                } catch (ExpressioException exception) {
+                    serie = null;
+                }
+                anteriors = p.clone();
+            }
+
+            Complex valor = serie == null ? Complex.NaN
+                    : serie.evaluar(new Complex(p[0].re() - x0.re(), p[0].im() - x0.im()));
+            c.re[out][j] = valor.re();
+            c.im[out][j] = valor.im();
+        }
+    }
+
+    /**
+     * Compara els paràmetres que no són la variable.
+     * @param a Uns paràmetres.
+     * @param b Els altres paràmetres, del mateix nombre.
+     * @return true si són idèntics.
+     */
+    private static boolean mateixosParametres(Complex[] a, Complex[] b) {
+        for (int i = 1; i < a.length; i++)
+            if (Double.compare(a[i].re(), b[i].re()) != 0 || Double.compare(a[i].im(), b[i].im()) != 0)
+                return false;
+        return true;
+    }
+
+    @Override public void evaluarDual(Expressio[] parametres, RegistresDuals r, int params, int out) throws ExpressioException {
+        // Només es pot derivar respecte la variable, no respecte la resta de paràmetres
+        Complex[] p = llegirParametres(parametres, r, params);
+        for (int i = 1; i < p.length; i++)
+            if (r.dre[params + i] != 0 || r.dim[params + i] != 0)
+                throw new ExpressioException("No es pot derivar taylor respecte els paràmetres que no són la variable.");
+
+        SerieTaylor s = serie(parametres, p);
+        Complex h = distancia(parametres, p), d = s.evaluarDerivada(h);
+        double dxr = r.dre[params], dxi = r.dim[params];
+        r.set(out, s.evaluar(h), new Complex(d.re() * dxr - d.im() * dxi, d.re() * dxi + d.im() * dxr));
+    }
+
+    @Override public SerieTaylor evaluarTaylor(Expressio[] parametres, SerieTaylor[] params, int grau) throws ExpressioException {
+        // Composició: el polinomi s'evalua amb la sèrie de la variable menys x0
+        Complex[] p = new Complex[params.length];
+        for (int i = 0; i < p.length; i++)
+            p[i] = params[i].get(0);
+
+        SerieTaylor s = serie(parametres, p);
+        SerieTaylor h = SerieTaylor.sumar(params[0], SerieTaylor.negar(SerieTaylor.constant(parametres[1].evaluar(p), grau)));
+
+        SerieTaylor resultat = new SerieTaylor(grau);
+        for (int n = s.grau(); n >= 0; n--) {
+            resultat = SerieTaylor.multiplicar(resultat, h);
+            resultat.re[0] += s.re[n];
+            resultat.im[0] += s.im[n];
+        }
+        return resultat;
+    }
+
+    public Complex calcular(Complex[] params) throws ExpressioException {
+        throw new ExpressioException("La funció taylor s'ha d'aplicar a una expressió.");
+    }
+
+    @Override public Expressio derivada(Expressio[] params) throws ExpressioException {
+        // La derivada del polinomi de grau k de f és el polinomi de grau k-1 de f'
+        if (params[2].esConstant() && params[2].evaluar(null).equals(Complex.ZERO))
+            return new ExpressioNombre(Complex.ZERO);
+
+        return new ExpressioFuncio("taylor", new Expressio[] {
+            new ExpressioFuncio("D", new Expressio[] { params[0] }),
+            params[1],
+            new ExpressioFuncio("sumar", new Expressio[] {
+                params[2], new ExpressioNombre(new Complex(-1))
+            })
+        });
+    }
+
+    /**
+     * Llegeix dels registres els valors dels paràmetres que utilitzen les expressions.
+     * @param parametres Les expressions dels paràmetres (f, x0 i k).
+     * @param r Els registres.
+     * @param params El primer registre dels paràmetres.
+     * @return Els valors dels paràmetres.
+     */
+    private static Complex[] llegirParametres(Expressio[] parametres, RegistresComplexos r, int params) {
+        Complex[] p = new Complex[numParametres(parametres)];
+        for (int i = 0; i < p.length; i++)
+            p[i] = r.get(params + i);
+        return p;
+    }
+
+    /**
+     * Calcula el nombre de paràmetres que utilitzen les expressions (com a mínim la
+     * variable), ja que amb registres no se sap quants en té la funció on apareixen.
+     * @param parametres Les expressions.
+     * @return El nombre de paràmetres.
+     */
+    private static int numParametres(Expressio[] parametres) {
+        int n = 1;
+        Map<Expressio, Boolean> visitats = new IdentityHashMap<Expressio, Boolean>();
+        for (Expressio e : parametres)
+            n = Math.max(n, maxParametre(e, visitats) + 1);
+        return n;
+    }
+
+    /**
+     * Obtè l'index més gran dels paràmetres d'una expressió.
+     * @param e L'expressió.
+     * @param visitats Els nodes ja visitats, per no recórrer més d'un cop els compartits.
+     * @return L'index, o -1 si no en té cap.
+     */
+    private static int maxParametre(Expressio e, Map<Expressio, Boolean> visitats) {
+        if (e instanceof ExpressioParametre)
+            return ((ExpressioParametre)e).getIndex();
+
+        int max = -1;
+        if (e instanceof ExpressioFuncio && visitats.put(e, Boolean.TRUE) == null)
+            for (Expressio p : ((ExpressioFuncio)e).parametres)
+                max = Math.max(max, maxParametre(p, visitats));
+        return max;
+    }
+}
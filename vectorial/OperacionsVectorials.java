@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) Joan Bruguera 2010
+ *
+ * This file is part of CalcBatx.
+ *
+ * CalcBatx is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CalcBatx is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with CalcBatx.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package calcbatx.vectorial;
+import calcbatx.*;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Operacions per lots amb l'API vectorial de Java (DoubleVector).
+ * Aquesta classe només es carrega des d'OperacionsLot si el mòdul jdk.incubator.vector
+ * és present. Per compilar-la cal --add-modules jdk.incubator.vector.
+ */
+public class OperacionsVectorials extends OperacionsLot {
+    /**
+     * Nombre de doubles per vector preferit per la màquina (4 amb AVX2, 8 amb AVX-512).
+     */
+    private static final VectorSpecies<Double> ESPECIE = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Marge d'error de Nombre.practicamentIgual.
+     */
+    private static final double MARGE = 0.00000001;
+
+    public void sumar(double[] ar, double[] ai, double[] br, double[] bi, int n) {
+        int j = 0;
+        for (int limit = ESPECIE.loopBound(n); j < limit; j += ESPECIE.length()) {
+            DoubleVector.fromArray(ESPECIE, ar, j).add(DoubleVector.fromArray(ESPECIE, br, j)).intoArray(ar, j);
+            DoubleVector.fromArray(ESPECIE, ai, j).add(DoubleVector.fromArray(ESPECIE, bi, j)).intoArray(ai, j);
+        }
+
+        for (; j < n; j++) {
+            ar[j] = ar[j] + br[j];
+            ai[j] = ai[j] + bi[j];
+        }
+    }
+
+    public void negar(double[] re, double[] im, int n) {
+        int j = 0;
+        for (int limit = ESPECIE.loopBound(n); j < limit; j += ESPECIE.length()) {
+            DoubleVector.fromArray(ESPECIE, re, j).neg().intoArray(re, j);
+            DoubleVector.fromArray(ESPECIE, im, j).neg().intoArray(im, j);
+        }
+
+        for (; j < n; j++) {
+            re[j] = -re[j];
+            im[j] = -im[j];
+        }
+    }
+
+    public void multiplicar(double[] ar, double[] ai, double[] br, double[] bi, int n) {
+        int j = 0;
+        for (int limit = ESPECIE.loopBound(n); j < limit; j += ESPECIE.length()) {
+            DoubleVector a = DoubleVector.fromArray(ESPECIE, ar, j);
+            DoubleVector b = DoubleVector.fromArray(ESPECIE, ai, j);
+            DoubleVector x = DoubleVector.fromArray(ESPECIE, br, j);
+            DoubleVector y = DoubleVector.fromArray(ESPECIE, bi, j);
+
+            // Els punts on el primer factor és real (Complex.esReal) es calculen com a real per complex
+            VectorMask<Double> real = b.abs().lt(MARGE).and(a.abs().lt(Double.POSITIVE_INFINITY));
+
+            DoubleVector ax = a.mul(x), ay = a.mul(y);
+            ax.sub(b.mul(y)).blend(ax, real).intoArray(ar, j);
+            ay.add(b.mul(x)).blend(ay, real).intoArray(ai, j);
+        }
+
+        for (; j < n; j++) {
+            double a = ar[j], b = ai[j], x = br[j], y = bi[j];
+            boolean real = Complex.esReal(a, b);
+            ar[j] = real ? a * x : a * x - b * y;
+            ai[j] = real ? a * y : a * y + b * x;
+        }
+    }
+
+    public void invers(double[] re, double[] im, int n) {
+        int j = 0;
+        for (int limit = ESPECIE.loopBound(n); j < limit; j += ESPECIE.length()) {
+            DoubleVector a = DoubleVector.fromArray(ESPECIE, re, j);
+            DoubleVector b = DoubleVector.fromArray(ESPECIE, im, j);
+            DoubleVector denominador = a.mul(a).add(b.mul(b));
+            VectorMask<Double> zero = denominador.eq(0.0);
+
+            a.div(denominador).blend(Double.POSITIVE_INFINITY, zero).intoArray(re, j);
+            b.neg().div(denominador).blend(0.0, zero).intoArray(im, j);
+        }
+
+        for (; j < n; j++) {
+            double a = re[j], b = im[j];
+            double denominador = a * a + b * b;
+            re[j] = denominador == 0 ? Double.POSITIVE_INFINITY : a / denominador;
+            im[j] = denominador == 0 ? 0.0 : -b / denominador;
+        }
+    }
+}